@@ -0,0 +1,203 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * The checkpoint file of every account, in an explicit binary layout instead of Java
+ * serialization. Accounts are written in blocks of about a megabyte, each with its own CRC32,
+ * so corruption anywhere in the file is detected on load rather than read back as garbage.
+ *
+ * File layout: [int magic][int version][long checkpointSequence][long accountCount][int crc32]
+ * followed by blocks of [int payloadLength][int accountCount][accounts][int crc32 of the accounts].
+ *
+ * Account layout: [int accountId][int length][name][int length][pin hash][long balance in cents]
+ * [int length][encoded TransactionHistory, with its DailyTotals]. Strings are UTF-8.
+ */
+public final class AccountFile {
+    private static final int MAGIC = 0x41544D41; // "ATMA"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES * 2 + Integer.BYTES;
+    private static final int BLOCK_HEADER_SIZE = Integer.BYTES * 2;
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    private AccountFile() {}
+
+    /**
+     * Writes the accounts to the file, replacing anything already in it, and forces it to disk.
+     */
+    public static void write(Path path, long checkpointSequence, List<AccountRecord> accounts) throws IOException {
+        write(path, checkpointSequence, accounts.iterator());
+    }
+
+    /**
+     * Writes the accounts as the iterator hands them out, so they never all have to be in a
+     * list at once. The account count in the header is filled in at the end.
+     *
+     * @return The number of accounts written.
+     */
+    public static long write(Path path, long checkpointSequence, Iterator<AccountRecord> accounts) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+
+            buffer.position(HEADER_SIZE);
+            writeFully(channel, buffer); // Placeholder for the header
+
+            long accountCount = 0;
+            int blockCount = 0;
+            buffer.position(BLOCK_HEADER_SIZE);
+            while (accounts.hasNext()) {
+                AccountRecord account = accounts.next();
+                byte[] name = account.accountName.getBytes(StandardCharsets.UTF_8);
+                byte[] pinHash = account.pinHash.getBytes(StandardCharsets.UTF_8);
+                int size = Integer.BYTES * 4 + name.length + pinHash.length + Long.BYTES + account.history.encodedSize();
+
+                if (buffer.remaining() < size + Integer.BYTES) {
+                    if (blockCount > 0) {
+                        writeBlock(channel, buffer, blockCount, crc);
+                        blockCount = 0;
+                    }
+                    if (buffer.capacity() < BLOCK_HEADER_SIZE + size + Integer.BYTES) {
+                        // Only a history configured far above the default capacity gets here
+                        buffer = ByteBuffer.allocateDirect(BLOCK_HEADER_SIZE + size + Integer.BYTES);
+                    }
+                    buffer.clear().position(BLOCK_HEADER_SIZE);
+                }
+
+                buffer.putInt(account.accountId);
+                buffer.putInt(name.length).put(name);
+                buffer.putInt(pinHash.length).put(pinHash);
+                buffer.putLong(account.balanceMinor);
+                buffer.putInt(account.history.encodedSize());
+                account.history.encode(buffer);
+                blockCount++;
+                accountCount++;
+            }
+            if (blockCount > 0) {
+                writeBlock(channel, buffer, blockCount, crc);
+            }
+
+            buffer.clear().putInt(MAGIC).putInt(VERSION).putLong(checkpointSequence).putLong(accountCount);
+            crc.reset();
+            crc.update(buffer.duplicate().flip());
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, buffer.position());
+            }
+            channel.force(true);
+            return accountCount;
+        }
+    }
+
+    /**
+     * Hands every account in the file to the consumer, in the order they were written.
+     *
+     * @return The journal sequence the file was checkpointed at.
+     * @throws IOException If the file cannot be read, or any part of it fails its checksum.
+     */
+    public static long read(Path path, Consumer<AccountRecord> consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+
+            buffer.limit(HEADER_SIZE);
+            readFully(channel, buffer, path);
+            buffer.flip();
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not an account file.");
+            }
+            if (buffer.getInt(Integer.BYTES) != VERSION) {
+                throw new IOException(path + " has unsupported version " + buffer.getInt(Integer.BYTES) + ".");
+            }
+            crc.update(buffer.duplicate().limit(HEADER_SIZE - Integer.BYTES));
+            if ((int) crc.getValue() != buffer.getInt(HEADER_SIZE - Integer.BYTES)) {
+                throw new IOException(path + " has a corrupt header.");
+            }
+            long checkpointSequence = buffer.getLong(Integer.BYTES * 2);
+            long accountCount = buffer.getLong(Integer.BYTES * 2 + Long.BYTES);
+
+            long accountsRead = 0;
+            while (accountsRead < accountCount) {
+                buffer.clear().limit(BLOCK_HEADER_SIZE);
+                readFully(channel, buffer, path);
+                int payloadLength = buffer.getInt(0);
+                int blockCount = buffer.getInt(Integer.BYTES);
+                if (payloadLength <= 0 || blockCount <= 0 || blockCount > accountCount - accountsRead) {
+                    throw new IOException(path + " has a corrupt block at account " + accountsRead + ".");
+                }
+
+                if (buffer.capacity() < payloadLength + Integer.BYTES) {
+                    buffer = ByteBuffer.allocateDirect(payloadLength + Integer.BYTES);
+                }
+                buffer.clear().limit(payloadLength + Integer.BYTES);
+                readFully(channel, buffer, path);
+                int expected = buffer.getInt(payloadLength);
+                buffer.flip().limit(payloadLength);
+                crc.reset();
+                crc.update(buffer.duplicate());
+                if ((int) crc.getValue() != expected) {
+                    throw new IOException(path + " fails its checksum at account " + accountsRead + ".");
+                }
+
+                for (int i = 0; i < blockCount; i++) {
+                    consumer.accept(readAccount(buffer));
+                }
+                accountsRead += blockCount;
+            }
+            return checkpointSequence;
+        }
+    }
+
+    private static AccountRecord readAccount(ByteBuffer buffer) {
+        int accountId = buffer.getInt();
+        String accountName = readString(buffer);
+        String pinHash = readString(buffer);
+        long balanceMinor = buffer.getLong();
+        int historyLength = buffer.getInt();
+        TransactionHistory history = TransactionHistory.decode(buffer.slice(buffer.position(), historyLength));
+        buffer.position(buffer.position() + historyLength);
+        return new AccountRecord(accountId, accountName, pinHash, balanceMinor, history);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Fills in the block header and checksum around the accounts already in the buffer
+    private static void writeBlock(FileChannel channel, ByteBuffer buffer, int blockCount, CRC32 crc) throws IOException {
+        int payloadLength = buffer.position() - BLOCK_HEADER_SIZE;
+        crc.reset();
+        crc.update(buffer.duplicate().position(BLOCK_HEADER_SIZE).limit(buffer.position()));
+        buffer.putInt((int) crc.getValue());
+        buffer.putInt(0, payloadLength);
+        buffer.putInt(Integer.BYTES, blockCount);
+        writeFully(channel, buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, Path path) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException(path + " is truncated.");
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+/**
+ * The saved state of one account, as the persistence layers read and write it.
+ */
+public class AccountRecord {
+    public final int accountId;
+    public final String accountName;
+    public final String pinHash;
+    public final long balanceMinor;
+    public final TransactionHistory history;
+
+    public AccountRecord(int accountId, String accountName, String pinHash, long balanceMinor, TransactionHistory history) {
+        this.accountId = accountId;
+        this.accountName = accountName;
+        this.pinHash = pinHash;
+        this.balanceMinor = balanceMinor;
+        this.history = history;
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A thread-safe registry of accounts by ID. The accounts are spread over lock-striped
+ * IntHashIndex segments, so sessions looking up or creating different accounts rarely
+ * wait on each other.
+ */
+public class AccountRegistry {
+    private static final int STRIPES = 64; // Power of two, so the stripe is just the low bits of the ID
+
+    private final IntHashIndex<BankAccount>[] segments;
+    private final ReentrantReadWriteLock[] locks;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public AccountRegistry(int expectedSize) {
+        segments = new IntHashIndex[STRIPES];
+        locks = new ReentrantReadWriteLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            segments[i] = new IntHashIndex<>(expectedSize / STRIPES);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    public AccountRegistry() {
+        this(0);
+    }
+
+    public BankAccount get(int accountId) {
+        int stripe = accountId & (STRIPES - 1);
+        ReentrantReadWriteLock.ReadLock lock = locks[stripe].readLock();
+        lock.lock();
+        try {
+            return segments[stripe].get(accountId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the account unless one with the same ID is already registered.
+     *
+     * @return The account now registered under the ID.
+     */
+    public BankAccount putIfAbsent(BankAccount account) {
+        int stripe = account.getAccountId() & (STRIPES - 1);
+        ReentrantReadWriteLock.WriteLock lock = locks[stripe].writeLock();
+        lock.lock();
+        try {
+            BankAccount existing = segments[stripe].get(account.getAccountId());
+            if (existing != null) {
+                return existing;
+            }
+            segments[stripe].put(account.getAccountId(), account);
+            return account;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            ReentrantReadWriteLock.ReadLock lock = locks[i].readLock();
+            lock.lock();
+            try {
+                size += segments[i].size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies out every registered account in creation order. IDs are handed out in
+     * increasing order, so sorting by ID restores the order across the stripes.
+     */
+    public ArrayList<BankAccount> toList() {
+        ArrayList<BankAccount> accounts = new ArrayList<>();
+        for (int i = 0; i < STRIPES; i++) {
+            ReentrantReadWriteLock.ReadLock lock = locks[i].readLock();
+            lock.lock();
+            try {
+                for (BankAccount account : segments[i]) {
+                    accounts.add(account);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        accounts.sort(Comparator.comparingInt(BankAccount::getAccountId));
+        return accounts;
+    }
+}
@@ -0,0 +1,502 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Serves the ATM over TCP, one session per connection, against the shared account store.
+ * The protocol is one command per line, mirroring the console menus:
+ *
+ *   CREATE pin amount name                -> OK accountId
+ *   LOGIN accountId                       -> OK
+ *   PIN pin                               -> OK
+ *   DEPOSIT amount [requestId]            -> OK balance
+ *   WITHDRAW amount [requestId]           -> OK balance
+ *   TRANSFER accountId amount [requestId] -> OK balance
+ *   BALANCE                               -> OK balance
+ *   HISTORY [limit] [page]                -> OK lineCount, followed by that many lines
+ *   STATEMENT [from to]                   -> OK lineCount, followed by that many lines
+ *   METRICS                               -> OK lineCount, followed by that many lines (see Metrics)
+ *   TOTALS [days]                         -> OK lineCount, followed by that many lines (see LedgerTotals)
+ *   RECONCILE                             -> OK lineCount, followed by that many lines
+ *   OPERATOR token                        -> OK
+ *   BACKUP                                -> OK name accountCount
+ *   LOGOUT / QUIT                         -> OK
+ *
+ * A request ID is a positive number chosen by the client, unique per account. An operation sent
+ * again with the same ID, say after the connection dropped before the answer arrived, is
+ * answered with the outcome of the first one and not applied twice (see RequestCache). The
+ * balance in the answer is always the current one.
+ *
+ * STATEMENT takes ISO dates (2024-01-31) in UTC and defaults to the current month. TOTALS
+ * covers the last 30 days by default. RECONCILE checks the running totals against a full
+ * recompute and pauses the ledger meanwhile. BACKUP writes the ledger as of now to
+ * backups/backup-<UTC time> without pausing it, see BankAccount.backup(). It can be taken
+ * once every atm.backup.minIntervalSeconds (300 by default), and only the latest
+ * atm.backup.keep (7 by default) are kept, so backups can't fill the disk.
+ *
+ * TOTALS, RECONCILE and BACKUP are for operators only: the session has to send OPERATOR with
+ * the token the server was started with, -Datm.operator.token, first. Without a token they
+ * are turned off, and a wrong token closes the connection.
+ *
+ * Any failure is answered with "ERR message" and leaves the session as it was.
+ *
+ * A line longer than atm.server.maxLineLength characters (4096 by default) is answered with
+ * an error and the connection closed, as is one idle for atm.server.idleTimeoutSeconds (300
+ * by default), so no client can make the server buffer without end or hold a session forever.
+ *
+ * When the accounts are spread over several ledger nodes (see ShardMap), every node runs its
+ * own server, clients log in at the node owning their account, and the nodes send each other
+ * the steps of cross-node transfers on a separate peer port (see ClusterClient). A peer
+ * connection has to name its node and give the cluster's secret before anything else, and a
+ * node can only send transfers from its own accounts. PENDING answers with the number of those
+ * transfers still in flight.
+ *
+ * Run with: java AtmServer [port]
+ */
+public class AtmServer {
+    private static final int DEFAULT_PORT = 5050;
+    private static final String BACKUP_DIRECTORY = "backups";
+    private static final String BACKUP_PREFIX = "backup-";
+    private static final DateTimeFormatter BACKUP_NAME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss").withZone(ZoneOffset.UTC);
+    private static final long BACKUP_MIN_INTERVAL_MILLIS = Math.max(1, Long.getLong("atm.backup.minIntervalSeconds", 300)) * 1000;
+    private static final int BACKUPS_KEPT = Math.max(1, Integer.getInteger("atm.backup.keep", 7));
+    private static final Object backupLock = new Object();
+    private static long lastBackupMillis; // Guarded by backupLock
+    private static final String OPERATOR_TOKEN = System.getProperty("atm.operator.token");
+    private static final int MAX_LINE_LENGTH = Math.max(1, Integer.getInteger("atm.server.maxLineLength", 4096));
+    private static final int IDLE_TIMEOUT_MILLIS = (int) Math.min(Integer.MAX_VALUE,
+            Math.max(1, Long.getLong("atm.server.idleTimeoutSeconds", 300)) * 1000);
+
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ExecutorService sessions = newSessionExecutor();
+        Runtime.getRuntime().addShutdownHook(new Thread(BankAccount::saveAccounts, "atm-server-shutdown"));
+
+        ShardMap shards = ShardMap.getInstance();
+        if (shards.isClustered()) {
+            ServerSocket peerSocket = new ServerSocket(shards.getPeerAddress(shards.getLocalNode()).getPort(), 256);
+            Thread peers = new Thread(() -> accept(peerSocket, sessions, true), "atm-peer-listener");
+            peers.setDaemon(true);
+            peers.start();
+            System.out.println("Accepting ledger nodes on port " + peerSocket.getLocalPort());
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 4096)) {
+            System.out.println("ATM server listening on port " + port);
+            accept(serverSocket, sessions, false);
+        }
+    }
+
+    private static void accept(ServerSocket serverSocket, ExecutorService sessions, boolean peers) {
+        try (serverSocket) {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Handler handler = peers ? new PeerSession()::handle : new Session()::handle;
+                sessions.execute(() -> serve(socket, handler));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not accept connections on port " + serverSocket.getLocalPort() + ".", e);
+        }
+    }
+
+    /**
+     * Runs each session on its own virtual thread when the JVM has them (Java 21+), so idle
+     * sessions only cost a little heap. On older JVMs it falls back to platform threads with
+     * a small stack.
+     */
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(null, runnable, "atm-session", 256 * 1024);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private interface Handler {
+        // Answers one command line, returns false once the connection is to be closed
+        boolean handle(String line, BufferedWriter writer) throws IOException;
+    }
+
+    private static void serve(Socket socket, Handler session) {
+        try (socket;
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(IDLE_TIMEOUT_MILLIS); // A read waiting longer throws, which closes the connection
+            String line;
+            while ((line = readLine(reader)) != null) {
+                if (line.length() > MAX_LINE_LENGTH) {
+                    writer.write("ERR Line too long.\n");
+                    writer.flush();
+                    break;
+                }
+                boolean open = session.handle(line.trim(), writer);
+                writer.flush();
+                if (!open) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away or went idle, nothing to clean up beyond closing the socket
+        }
+    }
+
+    // Reads up to a line feed, which isn't returned, or null at the end of the stream. Stops at
+    // one character past MAX_LINE_LENGTH, so a line without end is never held in memory.
+    private static String readLine(BufferedReader reader) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = reader.read()) >= 0 && c != '\n') {
+            line.append((char) c);
+            if (line.length() > MAX_LINE_LENGTH) {
+                break;
+            }
+        }
+        return (c < 0 && line.length() == 0) ? null : line.toString();
+    }
+
+    /**
+     * The state of one connection: which account it has selected and whether the PIN matched.
+     */
+    static class Session {
+        private BankAccount account;
+        private boolean authenticated;
+        private boolean operator;
+
+        /**
+         * @return false once the client has asked to quit.
+         */
+        boolean handle(String line, BufferedWriter writer) throws IOException {
+            String[] parts = line.split(" ", 4);
+            String command = parts[0].toUpperCase();
+            try {
+                switch (command) {
+                    case "CREATE" -> create(parts, line, writer);
+                    case "LOGIN" -> login(parts, writer);
+                    case "PIN" -> pin(parts, writer);
+                    case "DEPOSIT" -> {
+                        requireArguments(parts, 2);
+                        respond(writer, requireAuthenticated().deposit(requestId(parts, 2), Money.parse(parts[1])));
+                    }
+                    case "WITHDRAW" -> {
+                        requireArguments(parts, 2);
+                        respond(writer, requireAuthenticated().withdraw(requestId(parts, 2), Money.parse(parts[1])));
+                    }
+                    case "TRANSFER" -> {
+                        requireArguments(parts, 3);
+                        respond(writer, requireAuthenticated().transfer(requestId(parts, 3), Integer.parseInt(parts[1]),
+                                Money.parse(parts[2])));
+                    }
+                    case "BALANCE" -> ok(writer, Money.format(requireAuthenticated().balanceInquiry()));
+                    case "HISTORY" -> history(parts, writer);
+                    case "STATEMENT" -> statement(parts, writer);
+                    case "METRICS" -> lines(writer, Metrics.report().split("\n"));
+                    case "TOTALS" -> {
+                        requireOperator();
+                        totals(parts, writer);
+                    }
+                    case "RECONCILE" -> {
+                        requireOperator();
+                        lines(writer, BankAccount.reconcileTotals().split("\n"));
+                    }
+                    case "BACKUP" -> {
+                        requireOperator();
+                        backup(writer);
+                    }
+                    case "OPERATOR" -> {
+                        return operator(parts, writer);
+                    }
+                    case "LOGOUT" -> {
+                        account = null;
+                        authenticated = false;
+                        operator = false;
+                        ok(writer, null);
+                    }
+                    case "QUIT" -> {
+                        ok(writer, null);
+                        return false;
+                    }
+                    case "PENDING" -> ok(writer, String.valueOf(BankAccount.getPendingTransferCount()));
+                    default -> error(writer, "Unknown command.");
+                }
+            } catch (NumberFormatException e) {
+                error(writer, "Invalid number.");
+            } catch (DateTimeParseException e) {
+                error(writer, "Invalid date, use the form 2024-01-31.");
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                error(writer, e.getMessage());
+            }
+            return true;
+        }
+
+        // Answers a ledger operation with the new balance, or why it was rejected
+        private void respond(BufferedWriter writer, OperationResult result) throws IOException {
+            if (result.isOk()) {
+                ok(writer, Money.format(account.balanceInquiry()));
+            } else {
+                error(writer, result.getMessage());
+            }
+        }
+
+        private void create(String[] parts, String line, BufferedWriter writer) throws IOException {
+            requireArguments(parts, 4);
+            String pin = parts[1];
+            if (!Main.isPinValid(pin)) {
+                error(writer, "Invalid pin combination, the pin must be 6 digits.");
+                return;
+            }
+            BankAccount newAccount = new BankAccount(parts[3].toUpperCase(), pin, Money.parse(parts[2]));
+            ok(writer, String.valueOf(newAccount.getAccountId()));
+        }
+
+        private void login(String[] parts, BufferedWriter writer) throws IOException {
+            requireArguments(parts, 2);
+            int accountId = Integer.parseInt(parts[1]);
+            ShardMap shards = ShardMap.getInstance();
+            int node = shards.nodeFor(accountId);
+            if (shards.isClustered() && node >= 0 && !shards.isLocal(accountId)) {
+                InetSocketAddress address = shards.getAddress(node);
+                error(writer, "This account is served by " + address.getHostString() + ":" + address.getPort() + ".");
+                return;
+            }
+
+            BankAccount selected = BankAccount.getBankAccount(accountId);
+            if (selected == null) {
+                error(writer, "Invalid, the account id does not exist.");
+                return;
+            }
+            account = selected;
+            authenticated = false;
+            ok(writer, null);
+        }
+
+        private void pin(String[] parts, BufferedWriter writer) throws IOException {
+            requireArguments(parts, 2);
+            if (account == null) {
+                error(writer, "Login first.");
+                return;
+            }
+            if (!account.isPinValid(parts[1])) {
+                error(writer, account.isLocked() ? "Too many invalid pins, this account is locked." : "Invalid pin.");
+                return;
+            }
+            authenticated = true;
+            ok(writer, null);
+        }
+
+        private void history(String[] parts, BufferedWriter writer) throws IOException {
+            int limit = (parts.length > 1) ? Integer.parseInt(parts[1]) : BankAccount.HISTORY_PAGE_SIZE;
+            int page = (parts.length > 2) ? Integer.parseInt(parts[2]) : 0;
+            lines(writer, requireAuthenticated().displayTransactionHistory(limit, page).split("\n"));
+        }
+
+        private void statement(String[] parts, BufferedWriter writer) throws IOException {
+            LocalDate today = LocalDate.now(ZoneOffset.UTC);
+            LocalDate from = (parts.length > 1) ? LocalDate.parse(parts[1]) : today.withDayOfMonth(1);
+            LocalDate to = (parts.length > 2) ? LocalDate.parse(parts[2]) : today;
+            if (to.isBefore(from)) {
+                throw new IllegalArgumentException("The end date is before the start date.");
+            }
+            lines(writer, requireAuthenticated().statement(from, to).split("\n"));
+        }
+
+        private static void totals(String[] parts, BufferedWriter writer) throws IOException {
+            int days = (parts.length > 1) ? Integer.parseInt(parts[1]) : 30;
+            if (days <= 0) {
+                throw new IllegalArgumentException("The number of days must be positive.");
+            }
+            long today = LocalDate.now(ZoneOffset.UTC).toEpochDay();
+            lines(writer, BankAccount.totalsReport(today - days + 1, today).split("\n"));
+        }
+
+        // One backup at a time, named by the server, and the oldest beyond BACKUPS_KEPT removed
+        private static void backup(BufferedWriter writer) throws IOException {
+            synchronized (backupLock) {
+                long now = System.currentTimeMillis();
+                if (lastBackupMillis != 0 && now - lastBackupMillis < BACKUP_MIN_INTERVAL_MILLIS) {
+                    throw new IllegalStateException("The last backup was taken less than "
+                            + BACKUP_MIN_INTERVAL_MILLIS / 1000 + " seconds ago.");
+                }
+                lastBackupMillis = now;
+                String name = BACKUP_PREFIX + BACKUP_NAME.format(Instant.ofEpochMilli(now));
+                try {
+                    long accountCount = BankAccount.backup(Paths.get(BACKUP_DIRECTORY, name));
+                    removeOldBackups();
+                    ok(writer, name + " " + accountCount);
+                } catch (IOException e) {
+                    error(writer, "The backup failed: " + e.getMessage());
+                }
+            }
+        }
+
+        // The names sort by time, so the oldest come first
+        private static void removeOldBackups() throws IOException {
+            List<Path> backups;
+            try (Stream<Path> entries = Files.list(Paths.get(BACKUP_DIRECTORY))) {
+                backups = entries.filter(path -> path.getFileName().toString().startsWith(BACKUP_PREFIX)).sorted().toList();
+            }
+            for (Path backup : backups.subList(0, Math.max(0, backups.size() - BACKUPS_KEPT))) {
+                try (Stream<Path> files = Files.walk(backup)) {
+                    for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        }
+
+        private static void lines(BufferedWriter writer, String[] lines) throws IOException {
+            ok(writer, String.valueOf(lines.length));
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+
+        // A wrong token ends the session, so guessing it costs a connection per guess
+        private boolean operator(String[] parts, BufferedWriter writer) throws IOException {
+            requireArguments(parts, 2);
+            if (OPERATOR_TOKEN == null || OPERATOR_TOKEN.isBlank()) {
+                error(writer, "Operator commands are turned off on this server.");
+                return true;
+            }
+            if (!MessageDigest.isEqual(OPERATOR_TOKEN.getBytes(StandardCharsets.UTF_8), parts[1].getBytes(StandardCharsets.UTF_8))) {
+                error(writer, "Invalid operator token.");
+                return false;
+            }
+            operator = true;
+            ok(writer, null);
+            return true;
+        }
+
+        private void requireOperator() {
+            if (!operator) {
+                throw new IllegalStateException("Only operators can do that, send OPERATOR with the token first.");
+            }
+        }
+
+        private BankAccount requireAuthenticated() {
+            if (account == null || !authenticated) {
+                throw new IllegalStateException("Login and enter your PIN first.");
+            }
+            return account;
+        }
+
+        // The optional request ID at the given index, or none
+        private static long requestId(String[] parts, int index) {
+            if (parts.length <= index) {
+                return RequestCache.NO_REQUEST;
+            }
+            long requestId = Long.parseLong(parts[index].trim());
+            if (requestId <= 0) {
+                throw new IllegalArgumentException("The request ID must be a positive number.");
+            }
+            return requestId;
+        }
+
+        private static void requireArguments(String[] parts, int count) {
+            if (parts.length < count) {
+                throw new IllegalArgumentException("Missing arguments.");
+            }
+        }
+
+        private static void ok(BufferedWriter writer, String result) throws IOException {
+            writer.write((result == null) ? "OK\n" : "OK " + result + "\n");
+        }
+
+        private static void error(BufferedWriter writer, String message) throws IOException {
+            writer.write("ERR " + message + "\n");
+        }
+    }
+
+    /**
+     * A connection from another ledger node, which may only send the steps of transfers from its
+     * own accounts, once it proved it is a node of the cluster.
+     */
+    static class PeerSession {
+        private int node = -1;
+
+        boolean handle(String line, BufferedWriter writer) throws IOException {
+            String[] fields = line.split(" ");
+            String command = fields[0].toUpperCase();
+            try {
+                if (node < 0) {
+                    return identify(command, line, writer);
+                }
+                switch (command) {
+                    case "PREPARE", "COMMIT", "ABORT" -> transferStep(command, fields, writer);
+                    case "QUIT" -> {
+                        Session.ok(writer, null);
+                        return false;
+                    }
+                    default -> Session.error(writer, "Unknown command.");
+                }
+            } catch (NumberFormatException e) {
+                Session.error(writer, "Invalid number.");
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                Session.error(writer, e.getMessage());
+            }
+            return true;
+        }
+
+        // PEER node secret, anything else first closes the connection
+        private boolean identify(String command, String line, BufferedWriter writer) throws IOException {
+            String[] fields = line.split(" ", 3);
+            ShardMap shards = ShardMap.getInstance();
+            if (!command.equals("PEER") || fields.length < 3 || !shards.isSecret(fields[2])) {
+                Session.error(writer, "Not a node of this cluster.");
+                return false;
+            }
+            int claimed = Integer.parseInt(fields[1]);
+            if (claimed < 0 || claimed >= shards.getNodeCount() || claimed == shards.getLocalNode()) {
+                Session.error(writer, "Not a node of this cluster.");
+                return false;
+            }
+            node = claimed;
+            Session.ok(writer, null);
+            return true;
+        }
+
+        private void transferStep(String command, String[] fields, BufferedWriter writer) throws IOException {
+            Session.requireArguments(fields, command.equals("PREPARE") ? 5 : 2);
+            long transferId = Long.parseLong(fields[1]);
+            switch (command) {
+                case "PREPARE" -> {
+                    OperationResult vote = BankAccount.prepareIncoming(node, transferId, Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]), Long.parseLong(fields[4]));
+                    if (!vote.isOk()) {
+                        writer.write("REFUSED " + vote.name() + "\n");
+                        return;
+                    }
+                }
+                case "COMMIT" -> BankAccount.commitIncoming(node, transferId);
+                case "ABORT" -> BankAccount.abortIncoming(node, transferId);
+            }
+            Session.ok(writer, null);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Remembers recently verified PINs for a short time, so an account that is used repeatedly
+ * doesn't pay for a full PIN hash on every check. Only an HMAC of the PIN under a key that
+ * lives in this process is kept, never the PIN itself. The cache is bounded, dropping the
+ * least recently used account once it is full.
+ */
+public class AuthenticationCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final SecretKeySpec key;
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private static class Entry {
+        final byte[] digest;
+        final long expiresAt;
+
+        Entry(byte[] digest, long expiresAt) {
+            this.digest = digest;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public AuthenticationCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+
+        // Access order, so the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > AuthenticationCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return true if this exact PIN was verified for the account within the TTL.
+     */
+    public boolean isVerified(int accountId, String pin) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(accountId);
+            if (entry != null && entry.expiresAt <= System.currentTimeMillis()) {
+                entries.remove(accountId);
+                entry = null;
+            }
+        }
+        return entry != null && MessageDigest.isEqual(entry.digest, digest(pin));
+    }
+
+    public void markVerified(int accountId, String pin) {
+        Entry entry = new Entry(digest(pin), System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            entries.put(accountId, entry);
+        }
+    }
+
+    public void invalidate(int accountId) {
+        synchronized (entries) {
+            entries.remove(accountId);
+        }
+    }
+
+    private byte[] digest(String pin) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return mac.doFinal(pin.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available.", e);
+        }
+    }
+}
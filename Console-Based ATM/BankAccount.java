@@ -1,95 +1,913 @@
+import java.io.EOFException;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class BankAccount implements Serializable {
+    // Pinned to the value of the original class, so accounts.ser files written before it was declared still load
+    private static final long serialVersionUID = 1672431156657986875L;
+
+    private static final String ACCOUNTS_FILE = "accounts.bin";
+    private static final String LEGACY_ACCOUNTS_FILE = "accounts.ser"; // Java serialization, only read to migrate it
+    private static final String JOURNAL_FILE = "transactions.journal";
+    private static final String TOTALS_FILE = "totals.bin";
+    private static final String REQUESTS_FILE = "requests.bin";
+    private static final String STORE_RECORD_FILE = "accounts.dat";
+    private static final String STORE_HEAP_FILE = "accounts.heap";
+    private static final int FIRST_ACCOUNT_ID = 1000;
+    public static final int HISTORY_PAGE_SIZE = 20;
+    private static final int MAX_HISTORY_PAGE_SIZE = 1000; // Older pages are read into memory whole
+
+    // Ledger operations share the read side, so they only exclude a checkpoint, not each other
+    private static final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+    private static final ShardMap shards = ShardMap.getInstance();
+    // Transfers to or from accounts on other ledger nodes that are not finished yet, by transfer ID
+    private static final ConcurrentHashMap<Long, PendingTransfer> pendingTransfers = new ConcurrentHashMap<>();
+    // Chunks of unfinished bulk posting runs journaled, by run name and then chunk, see PostingEngine. Their
+    // records, without the postings, are kept when the journal is truncated, so this outlives checkpoints.
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<Integer, TransactionJournal.Record>> journaledPostings =
+            new ConcurrentHashMap<>();
+    private static final Object snapshotWriter = new Object(); // Checkpoints and backups are written one at a time
+
+    private static volatile LedgerSnapshot snapshot; // The one being written, see LedgerSnapshot
+    private static long snapshotEpoch; // Only changed with the checkpoint lock held for writing
+
     private static UniqueIdGenerator uniqueIdGenerator = UniqueIdGenerator.getInstance();
-    private static ArrayList<BankAccount> listOfAccounts = loadAccounts();
+    private static long checkpointSequence; // Last journal sequence covered by the saved accounts, set by loadAccounts()
+    private static boolean migratingLegacyFile; // Set by loadAccounts() when it read accounts.ser
+    private static MappedAccountStore store = openStore(); // Only used with -Datm.storage=mapped
+    private static AccountRegistry listOfAccounts = loadAccounts(); // Every account, or just the working set with the mapped store
+    // Opened after the accounts, to drop any segment of a checkpoint newer than the one loaded
+    private static HistoryArchive archive = openArchive();
+    private static boolean totalsRebuilt = loadTotals(); // Set when totals.bin didn't match the saved accounts
+    private static RequestCache requests = loadRequests(); // Filled in further by the journal replay
+    private static TransactionJournal journal = openJournal();
+    private static AuthenticationCache authenticationCache = new AuthenticationCache(
+            Integer.getInteger("atm.auth.cacheSize", 10_000), Long.getLong("atm.auth.cacheTtlSeconds", 300) * 1000);
+    private static LoginThrottle loginThrottle = new LoginThrottle(
+            Integer.getInteger("atm.auth.maxFailures", 5), Long.getLong("atm.auth.lockoutSeconds", 900) * 1000);
+    private static ClusterClient cluster = shards.isClustered() ? new ClusterClient(shards) : null;
+
+    static {
+        // Histories saved with another capacity, or read from accounts.ser, are fitted before anything is saved again
+        for (BankAccount account : listOfAccounts.toList()) {
+            account.fitHistory();
+        }
+        if (migratingLegacyFile) {
+            migrateLegacyFile();
+        }
+        if (cluster != null) {
+            startCluster();
+        }
+    }
 
     private int accountId;
     private String accountName;
-    private String pin;
-    private double balance;
-    private ArrayList<String> transactionHistory = new ArrayList<>();
+    private String pinHash; // See PinHasher, the PIN itself is never stored
+    private long balanceMinor; // In cents, see Money
+    private TransactionHistory history = new TransactionHistory();
+    private long createdInEpoch;  // Epoch of the last snapshot started before the account was created, which leaves it out
+    private long preservedEpoch;  // Epoch of the last snapshot given the account's state, see preserveForSnapshot()
 
-    BankAccount(String accountName, String pin, double amount) {
-        this.accountId = uniqueIdGenerator.getNextUniqueId();
+    BankAccount(String accountName, String pin, long amount) {
+        String pinHash = PinHasher.hash(pin); // Deliberately slow, so done before taking any lock
+
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            this.accountId = uniqueIdGenerator.getNextUniqueId();
+            long timestamp = System.currentTimeMillis();
+            journal.append(TransactionJournal.CREATE, accountId, 0, amount, timestamp, accountName, pinHash);
+            initialize(accountName, pinHash, amount, timestamp);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Used when replaying the journal, the account ID was already issued before the crash
+    private BankAccount(int accountId, String accountName, String pinHash, long amount, long timestamp) {
+        this.accountId = accountId;
+        initialize(accountName, pinHash, amount, timestamp);
+    }
+
+    // Used when loading an account from accounts.bin or the mapped store
+    BankAccount(AccountRecord record) {
+        this.accountId = record.accountId;
+        this.accountName = record.accountName;
+        this.pinHash = record.pinHash;
+        this.balanceMinor = record.balanceMinor;
+        this.history = record.history;
+    }
+
+    private void initialize(String accountName, String pinHash, long amount, long timestamp) {
+        this.createdInEpoch = snapshotEpoch;
         this.accountName = accountName;
-        this.pin = pin;
-        this.balance = (amount >= 0) ? amount : 0;
-        this.transactionHistory.add(String.format("Initial Deposit: \t+%,.2f", amount));
-        listOfAccounts.add(this);
+        this.pinHash = pinHash;
+        this.balanceMinor = (amount >= 0) ? amount : 0;
+        LedgerTotals.adjustLiabilities(balanceMinor);
+        addToHistory(TransactionType.INITIAL_DEPOSIT, amount, timestamp, 0);
+        listOfAccounts.putIfAbsent(this);
     }
 
-    public void deposit(double amount) {
-        if (amount < 0) {
-            throw new IllegalArgumentException("Amount cannot be negative.");
+    /**
+     * @param amount The amount to deposit, in cents.
+     */
+    public OperationResult deposit(long amount) {
+        return deposit(RequestCache.NO_REQUEST, amount);
+    }
+
+    /**
+     * @param requestId Chosen by the client, a retry with the same ID gets the first outcome
+     *                  back instead of depositing again. See RequestCache.
+     * @param amount The amount to deposit, in cents.
+     */
+    public OperationResult deposit(long requestId, long amount) {
+        long start = Metrics.start(Metrics.Operation.DEPOSIT);
+        OperationResult result = (amount < 0) ? OperationResult.NEGATIVE_AMOUNT : journalDeposit(requestId, amount);
+        Metrics.record(Metrics.Operation.DEPOSIT, start, result);
+        return result;
+    }
+
+    private OperationResult journalDeposit(long requestId, long amount) {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                long timestamp = System.currentTimeMillis();
+                OperationResult result = requests.lookup(accountId, requestId, TransactionJournal.DEPOSIT, 0, amount, timestamp);
+                if (result != null) {
+                    return result;
+                }
+
+                if (!canReceive(amount)) {
+                    result = OperationResult.BALANCE_OVERFLOW;
+                } else {
+                    journal.append(TransactionJournal.DEPOSIT, accountId, 0, amount, timestamp, requestId);
+                    applyDeposit(amount, timestamp);
+                    result = OperationResult.OK;
+                }
+                requests.record(accountId, requestId, TransactionJournal.DEPOSIT, 0, amount, timestamp, result);
+                return result;
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        balance += amount;
-        transactionHistory.add(String.format("Deposit: \t\t+%,.2f", amount));
+    private void applyDeposit(long amount, long timestamp) {
+        preserveForSnapshot();
+        balanceMinor = Money.add(balanceMinor, amount);
+        LedgerTotals.adjustLiabilities(amount);
+        addToHistory(TransactionType.DEPOSIT, amount, timestamp, 0);
     }
 
-    public void withdraw(double amount) {
-        if (amount < 0) {
-            throw new IllegalArgumentException("Amount cannot be negative.");
+    /**
+     * @param amount The amount to withdraw, in cents.
+     */
+    public OperationResult withdraw(long amount) {
+        return withdraw(RequestCache.NO_REQUEST, amount);
+    }
+
+    /**
+     * @param requestId Chosen by the client, a retry with the same ID gets the first outcome
+     *                  back instead of withdrawing again. See RequestCache.
+     * @param amount The amount to withdraw, in cents.
+     */
+    public OperationResult withdraw(long requestId, long amount) {
+        long start = Metrics.start(Metrics.Operation.WITHDRAW);
+        OperationResult result = (amount < 0) ? OperationResult.NEGATIVE_AMOUNT : journalWithdraw(requestId, amount);
+        Metrics.record(Metrics.Operation.WITHDRAW, start, result);
+        return result;
+    }
+
+    private OperationResult journalWithdraw(long requestId, long amount) {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                long timestamp = System.currentTimeMillis();
+                OperationResult result = requests.lookup(accountId, requestId, TransactionJournal.WITHDRAW, 0, amount, timestamp);
+                if (result != null) {
+                    return result;
+                }
+
+                if (amount > balanceMinor) {
+                    result = OperationResult.INSUFFICIENT_FUNDS;
+                } else {
+                    journal.append(TransactionJournal.WITHDRAW, accountId, 0, amount, timestamp, requestId);
+                    applyWithdraw(amount, timestamp);
+                    result = OperationResult.OK;
+                }
+                requests.record(accountId, requestId, TransactionJournal.WITHDRAW, 0, amount, timestamp, result);
+                return result;
+            }
+        } finally {
+            lock.unlock();
         }
-        if (amount > balance) {
-            throw new IllegalStateException("Amount is greater than the current balance.");
+    }
+
+    private void applyWithdraw(long amount, long timestamp) {
+        preserveForSnapshot();
+        balanceMinor = Money.subtract(balanceMinor, amount);
+        LedgerTotals.adjustLiabilities(-amount);
+        addToHistory(TransactionType.WITHDRAWAL, amount, timestamp, 0);
+    }
+
+    // Every history entry also counts toward the totals of the node, on the day the history stored it under.
+    // The entry a full history overwrites is archived first.
+    private void addToHistory(TransactionType type, long amount, long timestamp, int counterpartyId) {
+        if (history.isFull()) {
+            archive.add(accountId, history);
         }
+        LedgerTotals.record(type, amount, history.add(type, amount, timestamp, counterpartyId));
+    }
 
-        balance -= amount;
-        transactionHistory.add(String.format("Withdrawal: \t\t\t\t\t-%,.2f", amount));
+    /**
+     * The arguments are validated before the recipient is looked up, so the cheapest
+     * rejections cost nothing beyond a comparison.
+     *
+     * @param accountId The ID of the recipient account.
+     * @param amount The amount to transfer, in cents.
+     */
+    public OperationResult transfer(int accountId, long amount) {
+        return transfer(RequestCache.NO_REQUEST, accountId, amount);
     }
 
-    public void transfer(int accountId, double amount) {
-        BankAccount recipientAccount = getBankAccount(accountId); 
+    /**
+     * @param requestId Chosen by the client, a retry with the same ID gets the first outcome
+     *                  back instead of transferring again. See RequestCache.
+     * @param accountId The ID of the recipient account.
+     * @param amount The amount to transfer, in cents.
+     */
+    public OperationResult transfer(long requestId, int accountId, long amount) {
+        long start = Metrics.start(Metrics.Operation.TRANSFER);
+        OperationResult result;
         if (accountId == this.accountId) {
-            throw new IllegalAccessError("Cannot transfer to own account.");
+            result = OperationResult.SELF_TRANSFER;
+        } else if (amount < 0) {
+            result = OperationResult.NEGATIVE_AMOUNT;
+        } else if (cluster != null && !shards.isLocal(accountId)) {
+            result = transferToNode(requestId, accountId, amount);
+        } else {
+            result = journalTransfer(requestId, accountId, amount);
         }
+        Metrics.record(Metrics.Operation.TRANSFER, start, result);
+        return result;
+    }
+
+    private OperationResult journalTransfer(long requestId, int accountId, long amount) {
+        BankAccount recipientAccount = getBankAccount(accountId);
         if (recipientAccount == null) {
-            throw new NullPointerException("Account ID does not exist.");
+            return OperationResult.UNKNOWN_RECIPIENT;
+        }
+
+        // Both accounts are always locked lower ID first, so two opposite transfers can't deadlock
+        BankAccount first = (this.accountId < accountId) ? this : recipientAccount;
+        BankAccount second = (first == this) ? recipientAccount : this;
+
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (first) {
+                synchronized (second) {
+                    long timestamp = System.currentTimeMillis();
+                    OperationResult result = requests.lookup(this.accountId, requestId, TransactionJournal.TRANSFER, accountId,
+                            amount, timestamp);
+                    if (result != null) {
+                        return result;
+                    }
+
+                    if (amount > balanceMinor) {
+                        result = OperationResult.INSUFFICIENT_FUNDS;
+                    } else if (!recipientAccount.canReceive(amount)) {
+                        result = OperationResult.BALANCE_OVERFLOW;
+                    } else {
+                        // One record covers both sides, so a crash can never replay half a transfer
+                        journal.append(TransactionJournal.TRANSFER, this.accountId, accountId, amount, timestamp, requestId);
+                        applyTransfer(recipientAccount, amount, timestamp);
+                        result = OperationResult.OK;
+                    }
+                    requests.record(this.accountId, requestId, TransactionJournal.TRANSFER, accountId, amount, timestamp, result);
+                    return result;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void applyTransfer(BankAccount recipientAccount, long amount, long timestamp) {
+        preserveForSnapshot();
+        balanceMinor = Money.subtract(balanceMinor, amount);
+        recipientAccount.receive(accountId, amount, timestamp);
+        addToHistory(TransactionType.TRANSFER, amount, timestamp, recipientAccount.accountId);
+    }
+
+    private void receive(int senderId, long amount, long timestamp) {
+        preserveForSnapshot();
+        balanceMinor = Money.add(balanceMinor, amount);
+        addToHistory(TransactionType.RECEIVE, amount, timestamp, senderId);
+    }
+
+    /**
+     * Posts one chunk of a bulk run, such as month-end interest, to every account with an ID in
+     * [fromId, toId). The whole chunk is journaled as one record, so after a crash either every
+     * posting of the chunk is replayed or none is. See PostingEngine.
+     *
+     * Each balance is changed under its own account's lock and the chunk is journaled after,
+     * since a fee is only charged up to the balance at the moment it is taken. The checkpoint
+     * is held off for the whole chunk, so no checkpoint can see a posting the journal doesn't
+     * have yet, and history entries are only added once the journal does.
+     *
+     * @param onJournaled Run once the chunk is durable, before the checkpoint lock is released.
+     * @return The number of accounts posted to.
+     */
+    static int postChunk(String runName, PostingEngine.Kind kind, long parameter, int chunk, int fromId, int toId,
+                         Runnable onJournaled) {
+        long start = Metrics.start(Metrics.Operation.POST_CHUNK);
+        BankAccount[] accounts = new BankAccount[toId - fromId];
+        int[] accountIds = new int[accounts.length];
+        long[] amounts = new long[accounts.length];
+        int count = 0;
+
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            for (int id = fromId; id < toId; id++) {
+                BankAccount account = getBankAccount(id);
+                if (account == null) {
+                    continue; // Never issued, or lost to a crash before it was journaled
+                }
+                long amount;
+                synchronized (account) {
+                    amount = kind.amountFor(account.balanceMinor, parameter);
+                    if (amount == 0 || (kind.isCredit() && !account.canReceive(amount))) {
+                        continue;
+                    }
+                    account.preserveForSnapshot(); // No snapshot can start before the chunk is done, so once is enough
+                    account.balanceMinor = kind.isCredit() ? Money.add(account.balanceMinor, amount)
+                                                           : Money.subtract(account.balanceMinor, amount);
+                }
+                LedgerTotals.adjustLiabilities(kind.isCredit() ? amount : -amount);
+                accounts[count] = account;
+                accountIds[count] = id;
+                amounts[count++] = amount;
+            }
+
+            long timestamp = System.currentTimeMillis();
+            TransactionJournal.Record record;
+            try {
+                record = journal.appendPosting(runName, kind.getCode(), parameter, chunk, timestamp, accountIds, amounts, count);
+            } catch (UncheckedIOException e) {
+                for (int i = 0; i < count; i++) {
+                    synchronized (accounts[i]) {
+                        accounts[i].balanceMinor = kind.isCredit() ? Money.subtract(accounts[i].balanceMinor, amounts[i])
+                                                                   : Money.add(accounts[i].balanceMinor, amounts[i]);
+                    }
+                    LedgerTotals.adjustLiabilities(kind.isCredit() ? -amounts[i] : amounts[i]);
+                }
+                throw e;
+            }
+            markPostingJournaled(record);
+            for (int i = 0; i < count; i++) {
+                synchronized (accounts[i]) {
+                    accounts[i].addToHistory(kind.getTransactionType(), amounts[i], timestamp, 0);
+                }
+            }
+            onJournaled.run();
+            return count;
+        } finally {
+            lock.unlock();
+            Metrics.record(Metrics.Operation.POST_CHUNK, start);
+        }
+    }
+
+    private void applyPosting(PostingEngine.Kind kind, long amount, long timestamp) {
+        preserveForSnapshot();
+        balanceMinor = kind.isCredit() ? Money.add(balanceMinor, amount) : Money.subtract(balanceMinor, amount);
+        LedgerTotals.adjustLiabilities(kind.isCredit() ? amount : -amount);
+        addToHistory(kind.getTransactionType(), amount, timestamp, 0);
+    }
+
+    /**
+     * @return true if the chunk of the run was journaled, since startup or before it, in which
+     *         case it is posted even if saving the run's progress didn't get that far.
+     */
+    static boolean isPostingJournaled(String runName, int chunk) {
+        Map<Integer, TransactionJournal.Record> chunks = journaledPostings.get(runName);
+        return chunks != null && chunks.containsKey(chunk);
+    }
+
+    /**
+     * Stops keeping the journaled chunks of the run, once the progress file has it as finished.
+     */
+    static void forgetPostings(String runName) {
+        journaledPostings.remove(runName);
+    }
+
+    private static void markPostingJournaled(TransactionJournal.Record record) {
+        journaledPostings.computeIfAbsent(record.name, name -> new ConcurrentHashMap<>())
+                .put(record.accountId, record.withoutPostings());
+    }
+
+    /**
+     * Transfers to an account on another ledger node with two-phase commit. This node debits
+     * the sender and journals it, the recipient's node votes and journals its vote, then this
+     * node journals the outcome and passes it on. If this node stops before deciding, the
+     * transfer is aborted when it starts again (see startCluster()).
+     */
+    private OperationResult transferToNode(long requestId, int recipientId, long amount) {
+        int node = shards.nodeFor(recipientId);
+        if (node < 0) {
+            return OperationResult.UNKNOWN_RECIPIENT;
+        }
+
+        OperationResult[] rejection = new OperationResult[1];
+        PendingTransfer transfer = prepareOutgoing(requestId, recipientId, amount, rejection);
+        if (transfer == null) {
+            return rejection[0];
+        }
+        OperationResult vote;
+        try {
+            vote = cluster.prepare(node, transfer.transferId, accountId, recipientId, amount);
+        } catch (IOException e) {
+            vote = OperationResult.RECIPIENT_NODE_UNAVAILABLE;
+        }
+
+        finishOutgoing(transfer, vote);
+        if (vote.isOk() || vote == OperationResult.RECIPIENT_NODE_UNAVAILABLE) {
+            sendOutcome(transfer); // An unreachable node may still have voted yes, so it is told to abort
+        } else {
+            pendingTransfers.remove(transfer.transferId); // The other node refused, so it holds nothing to abort
+        }
+        return vote;
+    }
+
+    // Returns the transfer once it is in pendingTransfers, or null with rejection[0] set to why it
+    // wasn't prepared: the sender can't cover the amount, or the request ID was seen before. The
+    // transfer ID comes from the journal record, so only transfers that were journaled use one up.
+    private PendingTransfer prepareOutgoing(long requestId, int recipientId, long amount, OperationResult[] rejection) {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                long timestamp = System.currentTimeMillis();
+                OperationResult earlier = requests.lookup(accountId, requestId, TransactionJournal.TRANSFER, recipientId, amount,
+                        timestamp);
+                if (earlier != null) {
+                    rejection[0] = earlier;
+                    return null;
+                }
+
+                if (amount > balanceMinor) {
+                    requests.record(accountId, requestId, TransactionJournal.TRANSFER, recipientId, amount, timestamp,
+                            OperationResult.INSUFFICIENT_FUNDS);
+                    rejection[0] = OperationResult.INSUFFICIENT_FUNDS;
+                    return null;
+                }
+
+                TransactionJournal.Record record = journal.appendOutgoingTransfer(shards.getLocalNode(),
+                        accountId, recipientId, amount, timestamp, requestId);
+                preserveForSnapshot();
+                balanceMinor = Money.subtract(balanceMinor, amount);
+                LedgerTotals.adjustLiabilities(-amount); // Owed to the other node's customer from here on
+                PendingTransfer transfer = new PendingTransfer(record);
+                pendingTransfers.put(transfer.transferId, transfer);
+                // In flight until the outcome is decided, so a retry meanwhile doesn't send it twice
+                requests.record(accountId, requestId, TransactionJournal.TRANSFER, recipientId, amount, timestamp, null);
+                return transfer;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param outcome What the customer is told, OK commits the transfer and anything else aborts it.
+     */
+    private void finishOutgoing(PendingTransfer transfer, OperationResult outcome) {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                TransactionJournal.Record record = journal.appendTransfer(outcome.isOk() ? TransactionJournal.COMMIT : TransactionJournal.ABORT,
+                        accountId, transfer.counterpartyId, transfer.amount, System.currentTimeMillis(), transfer.transferId);
+                applyOutgoingOutcome(transfer, record, true, outcome);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // The sender was debited when the transfer was prepared, so an abort refunds it
+    private void applyOutgoingOutcome(PendingTransfer transfer, TransactionJournal.Record record, boolean applyBalance,
+                                      OperationResult outcome) {
+        requests.complete(accountId, transfer.requestId, outcome);
+        if (applyBalance) {
+            preserveForSnapshot();
+        }
+        if (record.type == TransactionJournal.COMMIT) {
+            transfer.state = PendingTransfer.COMMITTED;
+            if (applyBalance) {
+                addToHistory(TransactionType.TRANSFER, transfer.amount, record.timestamp, transfer.counterpartyId);
+            }
+        } else {
+            transfer.state = PendingTransfer.ABORTED;
+            if (applyBalance) {
+                balanceMinor = Money.add(balanceMinor, transfer.amount);
+                LedgerTotals.adjustLiabilities(transfer.amount);
+            }
+        }
+        transfer.records.add(record);
+    }
+
+    // The transfer stays pending until the recipient's node acknowledges the outcome
+    private static void sendOutcome(PendingTransfer transfer) {
+        int node = shards.nodeFor(transfer.counterpartyId);
+        try {
+            if (transfer.state == PendingTransfer.COMMITTED) {
+                cluster.commit(node, transfer.transferId);
+            } else {
+                cluster.abort(node, transfer.transferId);
+            }
+            pendingTransfers.remove(transfer.transferId);
+        } catch (IOException e) {
+            // Sent again by resolvePendingTransfers() until the node is back
+        }
+    }
+
+    private static void resolvePendingTransfers() {
+        for (PendingTransfer transfer : pendingTransfers.values()) {
+            if (transfer.outgoing && transfer.state != PendingTransfer.PREPARED) {
+                sendOutcome(transfer);
+            }
+        }
+    }
+
+    private static void startCluster() {
+        // Nobody else can decide transfers this node was sending when it stopped, so they are aborted
+        for (PendingTransfer transfer : pendingTransfers.values()) {
+            if (transfer.outgoing && transfer.state == PendingTransfer.PREPARED) {
+                getBankAccount(transfer.accountId).finishOutgoing(transfer, OperationResult.RECIPIENT_NODE_UNAVAILABLE);
+            }
+        }
+        cluster.startRetries(BankAccount::resolvePendingTransfers, Long.getLong("atm.cluster.retryIntervalMillis", 1000));
+    }
+
+    /**
+     * Votes on a transfer from an account on another ledger node. Agreeing journals the vote
+     * but credits nothing until the outcome arrives, and voting again on the same transfer ID
+     * changes nothing, also once the outcome arrived: a committed transfer is voted for again
+     * and an aborted one refused. The outcomes are kept in the request cache under the sender's
+     * account, which no request on this node can use, and the transfer ID.
+     *
+     * @param fromNode The node that sent the vote request, which has to own the sender and the transfer ID.
+     * @return OK if this node agrees to the credit, otherwise why it refuses.
+     */
+    public static OperationResult prepareIncoming(int fromNode, long transferId, int senderId, int recipientId, long amount) {
+        requirePeer(fromNode);
+        if (shards.nodeFor(senderId) != fromNode || (transferId >>> 48) != fromNode) {
+            throw new IllegalArgumentException("Node " + fromNode + " can only send transfers from its own accounts.");
         }
         if (amount < 0) {
-            throw new IllegalArgumentException("Amount cannot be negative.");
+            return OperationResult.NEGATIVE_AMOUNT;
         }
-        if (amount > balance) {
-            throw new IllegalStateException("Amount is greater than the current balance.");
+        BankAccount recipientAccount = shards.isLocal(recipientId) ? getBankAccount(recipientId) : null;
+        if (recipientAccount == null) {
+            return OperationResult.UNKNOWN_RECIPIENT;
         }
 
-        balance -= amount;
-        recipientAccount.receive(amount);
-        transactionHistory.add(String.format("Transfer: \t\t\t\t\t-%,.2f", amount));
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (recipientAccount) {
+                if (pendingTransfers.containsKey(transferId)) {
+                    return OperationResult.OK;
+                }
+                long timestamp = System.currentTimeMillis();
+                OperationResult finished = requests.lookup(senderId, transferId, TransactionJournal.PREPARE_IN, recipientId, amount,
+                        timestamp);
+                if (finished != null) {
+                    return finished;
+                }
+                if (!recipientAccount.canReceive(amount)) {
+                    return OperationResult.BALANCE_OVERFLOW;
+                }
+                TransactionJournal.Record record = journal.appendTransfer(TransactionJournal.PREPARE_IN,
+                        recipientId, senderId, amount, timestamp, transferId);
+                pendingTransfers.put(transferId, new PendingTransfer(record));
+                return OperationResult.OK;
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
-    private void receive(double amount) {
-        balance += amount;
-        transactionHistory.add(String.format("Receive: \t\t+%,.2f", amount));
+    public static void commitIncoming(int fromNode, long transferId) {
+        finishIncoming(fromNode, transferId, true);
     }
 
-    public double balanceInquiry() {
-        return balance;
+    public static void abortIncoming(int fromNode, long transferId) {
+        finishIncoming(fromNode, transferId, false);
+    }
+
+    // An unknown transfer ID was already finished, the sender only sends an outcome after this node voted
+    private static void finishIncoming(int fromNode, long transferId, boolean commit) {
+        requirePeer(fromNode);
+        PendingTransfer transfer = pendingTransfers.get(transferId);
+        if (transfer == null || transfer.outgoing) {
+            return;
+        }
+        if (shards.nodeFor(transfer.counterpartyId) != fromNode) {
+            throw new IllegalArgumentException("Only the sender's node can decide a transfer.");
+        }
+
+        BankAccount recipientAccount = getBankAccount(transfer.accountId);
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (recipientAccount) {
+                if (pendingTransfers.get(transferId) != transfer) {
+                    return; // A duplicate of this message finished it meanwhile
+                }
+                TransactionJournal.Record record = journal.appendTransfer(commit ? TransactionJournal.COMMIT : TransactionJournal.ABORT,
+                        transfer.accountId, transfer.counterpartyId, transfer.amount, System.currentTimeMillis(), transferId);
+                recipientAccount.applyIncomingOutcome(transfer, record, true);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Transfer steps only come from the other nodes of a cluster, never from this one or without one
+    private static void requirePeer(int fromNode) {
+        if (!shards.isClustered()) {
+            throw new IllegalStateException("This ledger node is not part of a cluster.");
+        }
+        if (fromNode < 0 || fromNode >= shards.getNodeCount() || fromNode == shards.getLocalNode()) {
+            throw new IllegalArgumentException("Node " + fromNode + " is not another node of the cluster.");
+        }
+    }
+
+    private void applyIncomingOutcome(PendingTransfer transfer, TransactionJournal.Record record, boolean applyBalance) {
+        pendingTransfers.remove(transfer.transferId);
+        requests.record(transfer.counterpartyId, transfer.transferId, TransactionJournal.PREPARE_IN, transfer.accountId,
+                transfer.amount, record.timestamp, (record.type == TransactionJournal.COMMIT) ? OperationResult.OK
+                        : OperationResult.RECIPIENT_NODE_REFUSED);
+        if (record.type == TransactionJournal.COMMIT && applyBalance) {
+            receive(transfer.counterpartyId, transfer.amount, record.timestamp);
+            LedgerTotals.adjustLiabilities(transfer.amount);
+        }
+    }
+
+    /**
+     * @return The number of transfers with other ledger nodes still in flight on this node.
+     */
+    public static int getPendingTransferCount() {
+        return pendingTransfers.size();
+    }
+
+    // A history saved with another capacity is rebuilt at the configured one, once the entries it
+    // holds beyond that are archived, so they still show in older pages
+    private void fitHistory() {
+        Lock lock = checkpointLock.readLock();
+        lock.lock();
+        try {
+            synchronized (this) {
+                if (history.getCapacity() == TransactionHistory.DEFAULT_CAPACITY) {
+                    return;
+                }
+                preserveForSnapshot();
+                int overflow = history.size() - TransactionHistory.DEFAULT_CAPACITY;
+                if (overflow > 0) {
+                    archive.add(accountId, history, overflow);
+                }
+                history = history.resized(TransactionHistory.DEFAULT_CAPACITY);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checked before a credit is journaled, so an overflowing balance never reaches the log
+    private boolean canReceive(long amount) {
+        return amount <= Long.MAX_VALUE - balanceMinor;
+    }
+
+    // Called with the account's monitor held before anything about it changes. The first change
+    // after a snapshot started hands the snapshot a copy of the account as it was.
+    private void preserveForSnapshot() {
+        LedgerSnapshot current = snapshot;
+        if (current != null && preservedEpoch < current.epoch && createdInEpoch < current.epoch) {
+            current.preserve(copyRecord());
+            preservedEpoch = current.epoch;
+        }
+    }
+
+    // The account as the snapshot sees it, or null if it was created after the snapshot started
+    private synchronized AccountRecord snapshotRecord(LedgerSnapshot started) {
+        if (createdInEpoch >= started.epoch) {
+            return null;
+        }
+        if (preservedEpoch >= started.epoch) {
+            return started.take(accountId);
+        }
+        preservedEpoch = started.epoch; // Unchanged so far, and copied now, so later changes need no copy
+        return copyRecord();
+    }
+
+    private AccountRecord copyRecord() {
+        return new AccountRecord(accountId, accountName, pinHash, balanceMinor, history.copy());
+    }
+
+    /**
+     * @return The current balance, in cents.
+     */
+    public synchronized long balanceInquiry() {
+        return balanceMinor;
     }
 
     public String displayTransactionHistory() {
-        String string = "";
-        for (String transaction : transactionHistory) {
-            string += transaction + "\n";
+        return displayTransactionHistory(HISTORY_PAGE_SIZE);
+    }
+
+    /**
+     * @return The number of transactions the account has ever made, to page through its history.
+     */
+    public synchronized long getTransactionCount() {
+        return history.getTotalCount();
+    }
+
+    /**
+     * Renders one page of the history, the newest being page 0. The entries the account's
+     * history still holds are rendered with the account locked; older ones are read from the
+     * HistoryArchive afterwards, so the account isn't held up while the segments are read.
+     *
+     * @param limit The number of entries on a page, at most MAX_HISTORY_PAGE_SIZE.
+     * @param page  The page, counting back from the newest entries.
+     * @throws IllegalArgumentException If the page is negative.
+     */
+    public String displayTransactionHistory(int limit, int page) {
+        if (page < 0) {
+            throw new IllegalArgumentException("The page can't be negative.");
         }
-        string += String.format("Current balance: \t %,.2f", balance);
-        return string;
+        if (page == 0) {
+            return displayTransactionHistory(limit);
+        }
+        limit = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+
+        StringBuilder held = new StringBuilder();
+        TransactionHistory.Visitor render = (type, amountMinor, timestamp, counterpartyId) ->
+                Money.appendTo(held.append(type.getLabel()), amountMinor).append('\n');
+        long total;
+        long fromOrdinal;
+        long toOrdinal;
+        long oldestHeld;
+        long balance;
+        synchronized (this) {
+            total = history.getTotalCount();
+            toOrdinal = Math.max(0, total - (long) page * limit);
+            fromOrdinal = Math.max(0, toOrdinal - limit);
+            oldestHeld = history.getOldestOrdinal();
+            history.forEachBetweenOrdinals(fromOrdinal, toOrdinal, render);
+            balance = balanceMinor;
+        }
+
+        StringBuilder builder = new StringBuilder();
+        if (fromOrdinal == toOrdinal) {
+            builder.append("There are no older transactions.\n");
+        } else {
+            builder.append(String.format("Showing transactions %d to %d of %d.%n", fromOrdinal + 1, toOrdinal, total));
+            long archivedTo = Math.min(toOrdinal, oldestHeld);
+            if (fromOrdinal < archivedTo) {
+                int archived = archive.forEachBetween(accountId, fromOrdinal, archivedTo, (type, amountMinor, timestamp, counterpartyId) ->
+                        Money.appendTo(builder.append(type.getLabel()), amountMinor).append('\n'));
+                if (archived < archivedTo - fromOrdinal) {
+                    builder.append(String.format("%d of these transactions are no longer kept.%n", archivedTo - fromOrdinal - archived));
+                }
+            }
+        }
+        builder.append(held);
+        Money.appendTo(builder.append("Current balance: \t "), balance);
+        return builder.toString();
+    }
+
+    /**
+     * Renders only the last entries of the history, so the cost depends on the page size
+     * rather than on how many transactions the account has ever made.
+     *
+     * @param limit The maximum number of entries to show.
+     */
+    public synchronized String displayTransactionHistory(int limit) {
+        StringBuilder builder = new StringBuilder();
+        if (history.getTotalCount() > limit) {
+            builder.append(String.format("Showing the last %d of %d transactions.%n", Math.min(limit, history.size()), history.getTotalCount()));
+        }
+        history.forEachLast(limit, (type, amountMinor, timestamp, counterpartyId) ->
+                Money.appendTo(builder.append(type.getLabel()), amountMinor).append('\n'));
+        Money.appendTo(builder.append("Current balance: \t "), balanceMinor);
+        return builder.toString();
     }
 
+    /**
+     * Renders the totals of every transaction type over the days [from, to] (UTC), answered
+     * from the account's daily totals, so the cost grows with the days with activity rather
+     * than with the transactions.
+     */
+    public synchronized String statement(LocalDate from, LocalDate to) {
+        DailyTotals totals = history.getTotals();
+        long[] sums = new long[TransactionType.values().length];
+        totals.forEachDay(from.toEpochDay(), to.toEpochDay(), (day, amounts) -> {
+            for (int t = 0; t < sums.length; t++) {
+                sums[t] += amounts[t];
+            }
+        });
+
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("Statement of account %d from %s to %s%n", accountId, from, to));
+        if (totals.getDroppedThrough() >= from.toEpochDay()) {
+            builder.append(String.format("Only days after %s are still held.%n", LocalDate.ofEpochDay(totals.getDroppedThrough())));
+        }
+        long net = 0;
+        for (TransactionType type : TransactionType.values()) {
+            long sum = sums[type.ordinal()];
+            if (sum != 0) {
+                Money.appendTo(builder.append(type.getLabel()), sum).append('\n');
+                net = type.isCredit() ? Money.add(net, sum) : Money.subtract(net, sum);
+            }
+        }
+        Money.appendTo(builder.append("Net change: \t\t "), net).append('\n');
+        Money.appendTo(builder.append("Current balance: \t "), balanceMinor);
+        return builder.toString();
+    }
+
+    /**
+     * @return The total of the type over the account's whole life, in cents.
+     */
+    public synchronized long getLifetimeTotal(TransactionType type) {
+        return history.getTotals().getLifetimeTotal(type);
+    }
+
+    /**
+     * Visits the last entries of the history, oldest first.
+     */
+    public synchronized void forEachRecentTransaction(int limit, TransactionHistory.Visitor visitor) {
+        history.forEachLast(limit, visitor);
+    }
+
+    /**
+     * Visits the history entries made in [fromTime, toTime), in epoch milliseconds.
+     */
+    public synchronized void forEachTransactionBetween(long fromTime, long toTime, TransactionHistory.Visitor visitor) {
+        history.forEachBetween(fromTime, toTime, visitor);
+    }
+
+    /**
+     * Checks the PIN, counting failures toward a lockout. A locked account fails without the
+     * PIN being hashed at all, and a PIN verified recently is answered from the cache.
+     */
     public boolean isPinValid(String pin) {
-        if (this.pin.equals(pin)) {
+        if (loginThrottle.isLocked(accountId)) {
+            return false;
+        }
+        if (authenticationCache.isVerified(accountId, pin)) {
+            return true;
+        }
+
+        if (PinHasher.verify(pin, pinHash)) {
+            loginThrottle.recordSuccess(accountId);
+            authenticationCache.markVerified(accountId, pin);
             return true;
         }
+        loginThrottle.recordFailure(accountId);
         return false;
     }
 
+    /**
+     * @return true while the account is locked out after too many wrong PINs.
+     */
+    public boolean isLocked() {
+        return loginThrottle.isLocked(accountId);
+    }
+
     // GETTER METHODS
     public int getAccountId() {
         return accountId;
@@ -100,36 +918,538 @@ public class BankAccount implements Serializable {
     }
 
     public static BankAccount getBankAccount(int accountId) {
-        for (BankAccount account : listOfAccounts) {
-            if (account.accountId == accountId) {
-                return account;
+        long start = Metrics.start(Metrics.Operation.GET_ACCOUNT);
+        BankAccount account = listOfAccounts.get(accountId);
+        if (account == null && store != null) {
+            account = materialize(accountId);
+        }
+        Metrics.record(Metrics.Operation.GET_ACCOUNT, start);
+        return account;
+    }
+
+    private static BankAccount materialize(int accountId) {
+        try {
+            AccountRecord record = store.load(accountId);
+            if (record == null) {
+                return null;
+            }
+            // Another session may have materialized the same account meanwhile, keep whichever came first
+            BankAccount loaded = new BankAccount(record);
+            BankAccount account = listOfAccounts.putIfAbsent(loaded);
+            if (account == loaded) {
+                account.fitHistory();
             }
+            return account;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read account " + accountId + " from the account store.", e);
+        }
+    }
+
+    private static MappedAccountStore openStore() {
+        if (!"mapped".equals(System.getProperty("atm.storage"))) {
+            return null;
+        }
+
+        try {
+            return new MappedAccountStore(Paths.get(STORE_RECORD_FILE), Paths.get(STORE_HEAP_FILE), FIRST_ACCOUNT_ID);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the account store.", e);
+        }
+    }
+
+    private static HistoryArchive openArchive() {
+        try {
+            return new HistoryArchive(Paths.get(HistoryArchive.DIRECTORY), checkpointSequence);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the history archive.", e);
+        }
+    }
+
+    private static AccountRegistry loadAccounts() {
+        long start = Metrics.start(Metrics.Operation.LOAD_ACCOUNTS);
+        try {
+            return readAccounts();
+        } finally {
+            Metrics.record(Metrics.Operation.LOAD_ACCOUNTS, start);
+        }
+    }
+
+    private static AccountRegistry readAccounts() {
+        // With the mapped store nothing is loaded up front, unless a checkpoint file still has to be migrated into it
+        if (store != null && !store.isEmpty()) {
+            checkpointSequence = store.getCheckpointSequence();
+            return new AccountRegistry();
+        }
+
+        Path accountsFile = Paths.get(ACCOUNTS_FILE);
+        if (Files.exists(accountsFile)) {
+            AccountRegistry index = new AccountRegistry();
+            try {
+                checkpointSequence = AccountFile.read(accountsFile, record -> index.putIfAbsent(new BankAccount(record)));
+            } catch (IOException e) {
+                // Starting empty would hand out the IDs of existing accounts, so refuse to start at all
+                throw new IllegalStateException("Could not read " + ACCOUNTS_FILE + ".", e);
+            }
+            return index;
+        }
+
+        if (Files.exists(Paths.get(LEGACY_ACCOUNTS_FILE))) {
+            migratingLegacyFile = true;
+            return loadLegacyAccounts();
+        }
+        return new AccountRegistry();
+    }
+
+    // Outcomes saved by the last checkpoint, the journal replay adds those of the operations after it
+    private static RequestCache loadRequests() {
+        RequestCache cache = new RequestCache(Integer.getInteger("atm.requests.capacity", 250_000),
+                Long.getLong("atm.requests.windowMinutes", 1440) * 60 * 1000);
+        try {
+            cache.read(Paths.get(REQUESTS_FILE));
+        } catch (IOException e) {
+            e.printStackTrace(); // Retries of operations before the last checkpoint are applied again
+        }
+        return cache;
+    }
+
+    // Totals saved with the checkpoint the accounts came from are used as they are, and the
+    // journal replay adds what came after. Otherwise they are rebuilt from the account histories.
+    private static boolean loadTotals() {
+        try {
+            if (LedgerTotals.read(Paths.get(TOTALS_FILE)) == checkpointSequence) {
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        LedgerTotals.clear();
+        ArrayList<BankAccount> accounts = listOfAccounts.toList();
+        for (BankAccount account : accounts) {
+            LedgerTotals.adjustLiabilities(account.balanceMinor);
+            account.history.forEachLast(account.history.size(), (type, amountMinor, timestamp, counterpartyId) ->
+                    LedgerTotals.record(type, amountMinor, timestamp));
+        }
+        if (checkpointSequence > 0 || !accounts.isEmpty()) {
+            System.err.println("Rebuilt the ledger totals from " + (store != null ? "the loaded" : "the")
+                    + " account histories, days older than the histories hold are missing.");
+        }
+        return true;
+    }
+
+    /**
+     * Renders the node's totals over the days [fromDay, toDay], see LedgerTotals.report().
+     * Going through here makes sure the accounts, and so the totals, are loaded first.
+     */
+    public static String totalsReport(long fromDay, long toDay) {
+        return LedgerTotals.report(fromDay, toDay);
+    }
+
+    /**
+     * Checks the running totals against a full recompute, with the ledger paused meanwhile:
+     *
+     * - the daily totals of every account against its history, for the days the history
+     *   still holds in full
+     * - the daily amounts of the node against the sums of the accounts' daily totals
+     * - the liabilities of the node against the sum of the balances
+     *
+     * With the mapped store only the accounts in memory are checked, so the last two are skipped.
+     *
+     * @return One line per mismatch, or a single line starting with OK.
+     */
+    public static String reconcileTotals() {
+        Lock lock = checkpointLock.writeLock();
+        lock.lock();
+        try {
+            StringBuilder mismatches = new StringBuilder();
+            ArrayList<BankAccount> accounts = listOfAccounts.toList();
+            HashMap<Long, long[]> accountDays = new HashMap<>();
+            long liabilities = 0;
+            long comparableFrom = LedgerTotals.getFirstRetainedDay();
+
+            for (BankAccount account : accounts) {
+                liabilities += account.balanceMinor;
+                DailyTotals totals = account.history.getTotals();
+                long droppedThrough = totals.getDroppedThrough();
+                long completeFrom = Math.max(account.history.getCompleteFromDay(),
+                        (droppedThrough == Long.MIN_VALUE) ? Long.MIN_VALUE : droppedThrough + 1);
+                if (!totals.matches(account.history.recomputeTotals(), completeFrom)) {
+                    mismatches.append("Account ").append(account.accountId).append(": daily totals differ from its history.\n");
+                }
+
+                // Days an account no longer holds, or the node's totals were rebuilt without, can't be compared
+                if (droppedThrough != Long.MIN_VALUE) {
+                    comparableFrom = Math.max(comparableFrom, droppedThrough + 1);
+                }
+                if (totalsRebuilt) {
+                    comparableFrom = Math.max(comparableFrom, account.history.getCompleteFromDay());
+                }
+                totals.forEachDay(Long.MIN_VALUE, Long.MAX_VALUE, (day, amounts) -> {
+                    long[] sums = accountDays.computeIfAbsent(day, key -> new long[amounts.length]);
+                    for (int t = 0; t < amounts.length; t++) {
+                        sums[t] += amounts[t];
+                    }
+                });
+            }
+
+            if (store == null) {
+                if (liabilities != LedgerTotals.getLiabilities()) {
+                    mismatches.append(String.format("Liabilities: totals %s, balances %s%n",
+                            Money.format(LedgerTotals.getLiabilities()), Money.format(liabilities)));
+                }
+                long firstDay = Math.max(comparableFrom, Math.min(LedgerTotals.getOldestDay(),
+                        accountDays.keySet().stream().min(Long::compare).orElse(Long.MAX_VALUE)));
+                long lastDay = Math.max(LedgerTotals.getNewestDay(), accountDays.keySet().stream().max(Long::compare).orElse(Long.MIN_VALUE));
+                for (long day = firstDay; day <= lastDay; day++) {
+                    long[] sums = accountDays.get(day);
+                    for (TransactionType type : TransactionType.values()) {
+                        long expected = (sums == null) ? 0 : sums[type.ordinal()];
+                        if (LedgerTotals.getAmount(day, type) != expected) {
+                            mismatches.append(String.format("%s %s: totals %s, accounts %s%n", LocalDate.ofEpochDay(day),
+                                    type.name().toLowerCase(), Money.format(LedgerTotals.getAmount(day, type)), Money.format(expected)));
+                        }
+                    }
+                }
+            }
+
+            if (mismatches.length() > 0) {
+                return mismatches.toString();
+            }
+            return String.format("OK, the totals of %,d accounts match%s", accounts.size(),
+                    (store == null) ? "" : " (only accounts in memory were checked)");
+        } finally {
+            lock.unlock();
         }
-        return null;
     }
 
     @SuppressWarnings("unchecked")
-    private static ArrayList<BankAccount> loadAccounts() {
-        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream("accounts.ser"))) {
-            return (ArrayList<BankAccount>) objectInputStream.readObject();
-        } catch (Exception e) {
+    private static AccountRegistry loadLegacyAccounts() {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(LEGACY_ACCOUNTS_FILE))) {
+            ArrayList<BankAccount> accounts = (ArrayList<BankAccount>) objectInputStream.readObject();
+            AccountRegistry index = new AccountRegistry(accounts.size());
+            for (BankAccount account : accounts) {
+                index.putIfAbsent(account);
+            }
+            try {
+                checkpointSequence = objectInputStream.readLong();
+            } catch (EOFException e) {
+                // Files written before the journal existed end right after the list
+            }
+            return index;
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Could not read " + LEGACY_ACCOUNTS_FILE + ".", e);
+        }
+    }
+
+    // Rewrites the accounts read from accounts.ser in the current format, then moves the old file aside
+    private static void migrateLegacyFile() {
+        if (!writeCheckpoint()) {
+            return; // accounts.ser stays in place, so the next start tries again
+        }
+        try {
+            Files.move(Paths.get(LEGACY_ACCOUNTS_FILE), Paths.get(LEGACY_ACCOUNTS_FILE + ".migrated"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
             e.printStackTrace();
         }
-        return new ArrayList<>();
     }
 
+    private static TransactionJournal openJournal() {
+        long syncIntervalMillis = Long.getLong("atm.journal.syncIntervalMillis", 50);
+        long checkpointIntervalMillis = Long.getLong("atm.journal.checkpointIntervalSeconds", 300) * 1000;
+        try {
+            TransactionJournal journal = new TransactionJournal(Paths.get(JOURNAL_FILE), syncIntervalMillis);
+            journal.replay(checkpointSequence, BankAccount::replay);
+            journal.startBackground(BankAccount::saveAccounts, checkpointIntervalMillis);
+            return journal;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the transaction journal.", e);
+        }
+    }
+
+    // Re-applies a journaled operation on startup without journaling it again
+    private static void replay(TransactionJournal.Record record) {
+        boolean checkpointed = record.sequence <= checkpointSequence;
+        if (TransactionJournal.isTransferStep(record.type)) {
+            replayTransferStep(record, !checkpointed);
+            return;
+        }
+        if (record.type == TransactionJournal.POSTING) {
+            replayPosting(record, !checkpointed);
+            return;
+        }
+        if (record.requestId != RequestCache.NO_REQUEST) {
+            // Also for checkpointed records, in case requests.bin is from an older checkpoint
+            requests.record(record.accountId, record.requestId, record.type, record.counterpartyId, record.amount,
+                    record.timestamp, OperationResult.OK);
+        }
+        if (checkpointed) {
+            return; // Already part of the saved accounts
+        }
+
+        switch (record.type) {
+            case TransactionJournal.CREATE -> new BankAccount(record.accountId, record.name,
+                    PinHasher.isHashed(record.pin) ? record.pin : PinHasher.hash(record.pin), record.amount, record.timestamp);
+            case TransactionJournal.DEPOSIT -> getBankAccount(record.accountId).applyDeposit(record.amount, record.timestamp);
+            case TransactionJournal.WITHDRAW -> getBankAccount(record.accountId).applyWithdraw(record.amount, record.timestamp);
+            case TransactionJournal.TRANSFER -> getBankAccount(record.accountId)
+                    .applyTransfer(getBankAccount(record.counterpartyId), record.amount, record.timestamp);
+        }
+    }
+
+    // Every step still in the journal rebuilds the pending transfers, including the ones a
+    // checkpoint covers, but only the steps after the checkpoint change balances and history
+    private static void replayTransferStep(TransactionJournal.Record record, boolean applyBalance) {
+        if (record.type == TransactionJournal.PREPARE_OUT || record.type == TransactionJournal.PREPARE_IN) {
+            PendingTransfer transfer = new PendingTransfer(record);
+            pendingTransfers.put(record.transferId, transfer);
+            if (transfer.outgoing) {
+                requests.record(record.accountId, record.requestId, TransactionJournal.TRANSFER, record.counterpartyId,
+                        record.amount, record.timestamp, null);
+            }
+            if (applyBalance && transfer.outgoing) {
+                BankAccount sender = getBankAccount(record.accountId);
+                sender.balanceMinor = Money.subtract(sender.balanceMinor, record.amount);
+                LedgerTotals.adjustLiabilities(-record.amount);
+            }
+            return;
+        }
+
+        PendingTransfer transfer = pendingTransfers.get(record.transferId);
+        if (transfer == null) {
+            return;
+        }
+        BankAccount account = getBankAccount(transfer.accountId);
+        if (transfer.outgoing) {
+            // Why a transfer was aborted isn't journaled, the node being unreachable is the likeliest
+            account.applyOutgoingOutcome(transfer, record, applyBalance, (record.type == TransactionJournal.COMMIT)
+                    ? OperationResult.OK : OperationResult.RECIPIENT_NODE_UNAVAILABLE);
+        } else {
+            account.applyIncomingOutcome(transfer, record, applyBalance);
+        }
+    }
+
+    private static void replayPosting(TransactionJournal.Record record, boolean applyBalance) {
+        markPostingJournaled(record);
+        if (!applyBalance) {
+            return;
+        }
+        PostingEngine.Kind kind = PostingEngine.Kind.fromCode(record.counterpartyId);
+        for (int i = 0; i < record.postingAccountIds.length; i++) {
+            getBankAccount(record.postingAccountIds[i]).applyPosting(kind, record.postingAmounts[i], record.timestamp);
+        }
+    }
+
+    // Kept when the journal is truncated: no checkpoint covers an unfinished transfer, so all its
+    // steps, and the chunks of unfinished posting runs, so a resumed run doesn't post them again
+    // when the progress file missed them
+    private static List<TransactionJournal.Record> journalCarryOver() {
+        ArrayList<TransactionJournal.Record> records = new ArrayList<>();
+        for (PendingTransfer transfer : pendingTransfers.values()) {
+            records.addAll(transfer.records);
+        }
+        for (Map<Integer, TransactionJournal.Record> chunks : journaledPostings.values()) {
+            records.addAll(chunks.values());
+        }
+        records.sort(Comparator.comparingLong(record -> record.sequence));
+        return records;
+    }
+
+    /**
+     * Writes a checkpoint of every account to accounts.bin and empties the journal. The
+     * checkpoint records the last journal sequence it covers, so if the process dies between
+     * the two steps the leftover records are skipped rather than applied twice.
+     *
+     * The accounts are written from a LedgerSnapshot, so operations carry on meanwhile and the
+     * journal keeps the records they add. The mapped store is written with the ledger paused.
+     */
     public static void saveAccounts() {
-        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream("accounts.ser"))) {
-            objectOutputStream.writeObject(listOfAccounts);;
-        } catch (Exception e) {
-            e.printStackTrace();
+        long start = Metrics.start(Metrics.Operation.SAVE_ACCOUNTS);
+        writeCheckpoint();
+        Metrics.record(Metrics.Operation.SAVE_ACCOUNTS, start);
+    }
+
+    /**
+     * Writes accounts.bin, totals.bin, requests.bin and uniqueId.txt as of now to the directory,
+     * creating it if need be, without pausing the ledger while the accounts are copied (see
+     * LedgerSnapshot), and copies the history segments into its history directory. A node
+     * started from those files has every account as it was when the backup started. The
+     * journal is left as it is.
+     *
+     * @return The number of accounts backed up.
+     * @throws IllegalStateException With the mapped store, whose files are copied after a checkpoint instead.
+     */
+    public static long backup(Path directory) throws IOException {
+        if (store != null) {
+            throw new IllegalStateException("Backups are only taken of the in-memory store, copy " + STORE_RECORD_FILE
+                    + " and " + STORE_HEAP_FILE + " after a checkpoint instead.");
+        }
+        synchronized (snapshotWriter) {
+            Files.createDirectories(directory);
+            LedgerSnapshot started = startSnapshot();
+            try {
+                long accountCount = writeSnapshot(started, directory);
+                archive.copyTo(directory.resolve(HistoryArchive.DIRECTORY), started.journalSequence);
+                Path uniqueIds = Paths.get(UniqueIdGenerator.FILE_NAME);
+                if (Files.exists(uniqueIds)) {
+                    // Copied after the snapshot, so it only ever covers more IDs than the accounts use
+                    Files.copy(uniqueIds, directory.resolve(UniqueIdGenerator.FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+                }
+                return accountCount;
+            } finally {
+                snapshot = null;
+            }
+        }
+    }
+
+    // Returns false if the checkpoint could not be written, in which case the journal is kept
+    private static boolean writeCheckpoint() {
+        synchronized (snapshotWriter) {
+            if (store != null) {
+                return saveToStore();
+            }
+
+            LedgerSnapshot started;
+            try {
+                started = startSnapshot();
+                try {
+                    // A crash between the files leaves totals of another checkpoint, which are then rebuilt
+                    writeSnapshot(started, Paths.get(""));
+                } finally {
+                    snapshot = null;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return false; // Keep the journal, it is still the only durable copy
+            }
+
+            try {
+                journal.truncate(started.carryOver, started.journalMark);
+            } catch (IOException e) {
+                e.printStackTrace(); // Harmless, the records it still holds are skipped on replay
+            }
+            compactArchive(started.journalSequence);
+            return true;
+        }
+    }
+
+    // Pauses the ledger only to fix the journal sequence the snapshot covers and copy the totals
+    private static LedgerSnapshot startSnapshot() throws IOException {
+        Lock lock = checkpointLock.writeLock();
+        lock.lock();
+        try {
+            long sequence = journal.getSequence();
+            LedgerSnapshot started = new LedgerSnapshot(++snapshotEpoch, sequence, journal.mark(),
+                    LedgerTotals.encode(sequence), journalCarryOver(), archive.detach());
+            snapshot = started;
+            return started;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the number of accounts written. The evicted history is sealed first, as the accounts written no longer hold it.
+    private static long writeSnapshot(LedgerSnapshot started, Path directory) throws IOException {
+        archive.seal(started.evictedHistory, started.journalSequence);
+        Iterator<AccountRecord> records = listOfAccounts.toList().stream()
+                .map(account -> account.snapshotRecord(started))
+                .filter(Objects::nonNull)
+                .iterator();
+        Path temporary = directory.resolve(ACCOUNTS_FILE + ".tmp");
+        long accountCount = AccountFile.write(temporary, started.journalSequence, records);
+        Files.move(temporary, directory.resolve(ACCOUNTS_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        LedgerTotals.write(directory.resolve(TOTALS_FILE), started.totals);
+        requests.write(directory.resolve(REQUESTS_FILE));
+        return accountCount;
+    }
+
+    // Only the materialized accounts can have changed, so only those are written back
+    private static boolean saveToStore() {
+        Lock lock = checkpointLock.writeLock();
+        lock.lock();
+        try {
+            archive.seal(archive.detach(), journal.getSequence());
+            for (BankAccount account : listOfAccounts.toList()) {
+                store.save(account.accountId, account.accountName, account.pinHash,
+                        account.balanceMinor, account.history);
+            }
+            store.checkpoint(journal.getSequence());
+            LedgerTotals.write(Paths.get(TOTALS_FILE), journal.getSequence());
+            requests.write(Paths.get(REQUESTS_FILE));
+            journal.truncate(journalCarryOver());
+        } catch (IOException e) {
+            e.printStackTrace(); // Keep the journal, it is still the only durable copy
+            return false;
+        } finally {
+            lock.unlock();
+        }
+        compactArchive(store.getCheckpointSequence());
+        return true;
+    }
+
+    // Merges the segments checkpoints have sealed, with the ledger running; called holding snapshotWriter
+    private static void compactArchive(long checkpointSequence) {
+        try {
+            archive.compact(checkpointSequence);
+        } catch (IOException e) {
+            e.printStackTrace(); // Harmless, the segments stay as they are and the next checkpoint tries again
+        }
+    }
+
+    /**
+     * Reads accounts.ser files written by older versions: plaintext PINs are hashed, double
+     * balances converted to cents, and histories that were lists of formatted lines are parsed
+     * back into entries, which then have no timestamp or counterparty.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        accountId = fields.get("accountId", 0);
+        accountName = (String) fields.get("accountName", null);
+        if (fields.getObjectStreamClass().getField("pin") != null) {
+            pinHash = PinHasher.hash((String) fields.get("pin", null)); // Saved in plaintext by an older version
+        } else {
+            pinHash = (String) fields.get("pinHash", null);
+        }
+        if (fields.getObjectStreamClass().getField("balance") != null) {
+            balanceMinor = Money.fromDouble(fields.get("balance", 0.0)); // Saved before balances were fixed-point
+        } else {
+            balanceMinor = fields.get("balanceMinor", 0L);
+        }
+        history = (TransactionHistory) fields.get("history", null);
+
+        if (history == null) {
+            ArrayList<String> lines = (fields.getObjectStreamClass().getField("transactionHistory") != null)
+                    ? (ArrayList<String>) fields.get("transactionHistory", null) : new ArrayList<>();
+            // Large enough for every line, the archive isn't open yet; fitHistory() moves the older ones into it
+            history = new TransactionHistory(Math.max(TransactionHistory.DEFAULT_CAPACITY, lines.size()));
+            for (String line : lines) {
+                addLegacyEntry(line);
+            }
+        }
+    }
+
+    private void addLegacyEntry(String line) {
+        int colon = line.indexOf(':');
+        if (colon < 0) {
+            return;
+        }
+
+        String label = line.substring(0, colon + 1);
+        for (TransactionType type : TransactionType.values()) {
+            if (type.getLabel().startsWith(label)) {
+                String amount = line.substring(colon + 1).trim().substring(1); // Drop the +/- the label added
+                history.add(type, Money.parse(amount), 0, 0);
+                return;
+            }
         }
     }
 
     @Override
-    public String toString() {
+    public synchronized String toString() {
         return "Account Id: " + accountId + "\n" +
                "Account Name: " + accountName + "\n" +
-               "Balance: " + balance;
+               "Balance: " + Money.format(balanceMinor);
     }
 }
@@ -0,0 +1,219 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Applies a file of operations to the accounts without any prompts, for bulk runs such as
+ * payroll and settlement. Each line of the input is one operation:
+ *
+ *   DEPOSIT,accountId,amount[,requestId]
+ *   WITHDRAW,accountId,amount[,requestId]
+ *   TRANSFER,accountId,amount,recipientId[,requestId]
+ *
+ * With a request ID on every line, running a file again after a crash partway through is
+ * safe: the lines that were applied the first time report their original outcome and are
+ * not applied twice (see RequestCache). IDs only need to be unique per account.
+ *
+ * Blank lines and lines starting with # are skipped. Every other line gets a line in the
+ * report, either "lineNumber,OK" or "lineNumber,REJECTED,reason".
+ *
+ * Run with: java BatchProcessor operations.csv report.csv
+ */
+public class BatchProcessor {
+    private static final int BATCH_SIZE = 8192;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private static final byte INVALID = 0;
+    private static final byte DEPOSIT = 1;
+    private static final byte WITHDRAW = 2;
+    private static final byte TRANSFER = 3;
+
+    // One batch of parsed lines, kept as primitive columns and reused for every batch
+    private final long[] lineNumbers = new long[BATCH_SIZE];
+    private final byte[] operations = new byte[BATCH_SIZE];
+    private final int[] accountIds = new int[BATCH_SIZE];
+    private final long[] amounts = new long[BATCH_SIZE];
+    private final int[] recipientIds = new int[BATCH_SIZE];
+    private final long[] requestIds = new long[BATCH_SIZE];
+    private final String[] parseErrors = new String[BATCH_SIZE];
+    private int batchSize;
+
+    private final StringBuilder line = new StringBuilder(128);
+    private long applied;
+    private long rejected;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: java BatchProcessor <operations.csv> <report.csv>");
+            return;
+        }
+
+        BatchProcessor processor = new BatchProcessor();
+        long start = System.nanoTime();
+        processor.process(Paths.get(args[0]), Paths.get(args[1]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long total = processor.applied + processor.rejected;
+        System.out.printf("Processed %,d operations (%,d applied, %,d rejected) in %.2fs, %,.0f operations/s%n",
+                total, processor.applied, processor.rejected, seconds, total / seconds);
+        BankAccount.saveAccounts();
+    }
+
+    public void process(Path input, Path report) throws IOException {
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+             BufferedWriter writer = Files.newBufferedWriter(report, StandardCharsets.UTF_8)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+            buffer.flip();
+            long lineNumber = 0;
+
+            while (readLine(channel, buffer)) {
+                lineNumber++;
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                parse(lineNumber);
+                if (batchSize == BATCH_SIZE) {
+                    applyBatch(writer);
+                }
+            }
+            applyBatch(writer);
+        }
+    }
+
+    // Reads the next line into the line builder, without the line ending
+    private boolean readLine(FileChannel channel, ByteBuffer buffer) throws IOException {
+        line.setLength(0);
+        boolean readAnything = false;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read < 0) {
+                    return readAnything;
+                }
+            }
+
+            while (buffer.hasRemaining()) {
+                char c = (char) (buffer.get() & 0xFF); // Operations are plain ASCII
+                readAnything = true;
+                if (c == '\n') {
+                    return true;
+                }
+                if (c != '\r') {
+                    line.append(c);
+                }
+            }
+        }
+    }
+
+    // Parses the current line into the next slot of the batch
+    private void parse(long lineNumber) {
+        int slot = batchSize++;
+        lineNumbers[slot] = lineNumber;
+        operations[slot] = INVALID;
+        parseErrors[slot] = null;
+
+        try {
+            int first = line.indexOf(",");
+            int second = (first < 0) ? -1 : line.indexOf(",", first + 1);
+            if (second < 0) {
+                parseErrors[slot] = "Expected operation,accountId,amount";
+                return;
+            }
+            int third = line.indexOf(",", second + 1);
+            int amountEnd = (third < 0) ? line.length() : third;
+
+            byte operation = parseOperation(first);
+            accountIds[slot] = Integer.parseInt(line, first + 1, second, 10);
+            amounts[slot] = Money.parse(line, second + 1, amountEnd);
+            int requestStart = third;
+            if (operation == TRANSFER) {
+                if (third < 0) {
+                    parseErrors[slot] = "Transfer is missing the recipient account ID";
+                    return;
+                }
+                int fourth = line.indexOf(",", third + 1);
+                recipientIds[slot] = Integer.parseInt(line, third + 1, (fourth < 0) ? line.length() : fourth, 10);
+                requestStart = fourth;
+            }
+            if (operation == INVALID) {
+                parseErrors[slot] = "Unknown operation";
+                return;
+            }
+            requestIds[slot] = (requestStart < 0) ? RequestCache.NO_REQUEST : Long.parseLong(line, requestStart + 1, line.length(), 10);
+            if (requestIds[slot] < 0) {
+                parseErrors[slot] = "Request ID must be positive";
+                return;
+            }
+            operations[slot] = operation;
+        } catch (NumberFormatException e) {
+            parseErrors[slot] = "Invalid number";
+        }
+    }
+
+    private byte parseOperation(int end) {
+        if (matches("DEPOSIT", end)) {
+            return DEPOSIT;
+        }
+        if (matches("WITHDRAW", end)) {
+            return WITHDRAW;
+        }
+        if (matches("TRANSFER", end)) {
+            return TRANSFER;
+        }
+        return INVALID;
+    }
+
+    private boolean matches(String operation, int end) {
+        if (end != operation.length()) {
+            return false;
+        }
+        for (int i = 0; i < end; i++) {
+            if (Character.toUpperCase(line.charAt(i)) != operation.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Applies every parsed operation of the batch in order, then writes its report lines
+    private void applyBatch(BufferedWriter writer) throws IOException {
+        StringBuilder report = new StringBuilder(batchSize * 16);
+        for (int i = 0; i < batchSize; i++) {
+            String error = (operations[i] == INVALID) ? parseErrors[i] : apply(i);
+            report.append(lineNumbers[i]);
+            if (error == null) {
+                applied++;
+                report.append(",OK\n");
+            } else {
+                rejected++;
+                report.append(",REJECTED,").append(error).append('\n');
+            }
+        }
+        writer.append(report);
+        batchSize = 0;
+    }
+
+    // Returns null if the operation was applied, or the reason it was rejected
+    private String apply(int i) {
+        BankAccount account = BankAccount.getBankAccount(accountIds[i]);
+        if (account == null) {
+            return "Account ID does not exist.";
+        }
+
+        OperationResult result = switch (operations[i]) {
+            case DEPOSIT -> account.deposit(requestIds[i], amounts[i]);
+            case WITHDRAW -> account.withdraw(requestIds[i], amounts[i]);
+            default -> account.transfer(requestIds[i], recipientIds[i], amounts[i]);
+        };
+        return result.isOk() ? null : result.getMessage();
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the steps of two-phase transfers to the other ledger nodes, over the peer port of their
+ * AtmServer (see ShardMap). Connections are pooled per node, so a transfer costs two round
+ * trips rather than two connects. Every connection first proves it comes from a node of the
+ * cluster, then sends the steps:
+ *
+ *   PEER node secret                                      -> OK
+ *   PREPARE transferId senderId recipientId amountInCents -> OK, or REFUSED result if refused
+ *   COMMIT transferId                                     -> OK
+ *   ABORT transferId                                      -> OK
+ *
+ * Every message is idempotent on its transfer ID, so any of them can safely be sent again.
+ */
+public class ClusterClient {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("atm.cluster.timeoutMillis", 5000);
+
+    private final ShardMap shards;
+    private final ConcurrentLinkedQueue<Connection>[] idleConnections;
+    private ScheduledExecutorService retries;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ClusterClient(ShardMap shards) {
+        this.shards = shards;
+        this.idleConnections = new ConcurrentLinkedQueue[shards.getNodeCount()];
+        for (int i = 0; i < idleConnections.length; i++) {
+            idleConnections[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Asks the node owning the recipient to vote on a transfer.
+     *
+     * @return OK if the node agreed to the credit, otherwise why it refused.
+     * @throws IOException If the node could not be reached, in which case it may or may not have voted.
+     */
+    public OperationResult prepare(int node, long transferId, int senderId, int recipientId, long amount) throws IOException {
+        String response = send(node, "PREPARE " + transferId + " " + senderId + " " + recipientId + " " + amount);
+        if (response.equals("OK")) {
+            return OperationResult.OK;
+        }
+        if (response.startsWith("REFUSED ")) {
+            try {
+                return OperationResult.valueOf(response.substring("REFUSED ".length()));
+            } catch (IllegalArgumentException e) {
+                // A result this node doesn't know, from a newer node
+            }
+        }
+        return OperationResult.RECIPIENT_NODE_REFUSED;
+    }
+
+    public void commit(int node, long transferId) throws IOException {
+        expectOk(send(node, "COMMIT " + transferId));
+    }
+
+    public void abort(int node, long transferId) throws IOException {
+        expectOk(send(node, "ABORT " + transferId));
+    }
+
+    /**
+     * Runs the task every interval on a background thread, for re-sending outcomes a node
+     * has not acknowledged yet.
+     */
+    public synchronized void startRetries(Runnable task, long intervalMillis) {
+        if (retries != null) {
+            return;
+        }
+        retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-retries");
+            thread.setDaemon(true);
+            return thread;
+        });
+        retries.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private String send(int node, String line) throws IOException {
+        Connection connection = idleConnections[node].poll();
+        if (connection != null) {
+            try {
+                String response = connection.request(line);
+                idleConnections[node].offer(connection);
+                return response;
+            } catch (IOException e) {
+                // Most likely the node restarted since the connection was pooled, retry once on a new one
+                connection.close();
+            }
+        }
+
+        connection = new Connection(shards.getPeerAddress(node));
+        try {
+            expectOk(connection.request("PEER " + shards.getLocalNode() + " " + shards.getSecret()));
+            String response = connection.request(line);
+            idleConnections[node].offer(connection);
+            return response;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static void expectOk(String response) throws IOException {
+        if (!response.equals("OK")) {
+            throw new IOException("Unexpected response from ledger node: " + response);
+        }
+    }
+
+    private static class Connection {
+        private final Socket socket = new Socket();
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+
+        Connection(InetSocketAddress address) throws IOException {
+            try {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        String request(String line) throws IOException {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("Ledger node closed the connection.");
+            }
+            return response;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken, nothing more to do
+            }
+        }
+    }
+}
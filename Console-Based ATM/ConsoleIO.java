@@ -0,0 +1,274 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/**
+ * The console Main's menus talk through, in place of a Scanner over System.in and prints to
+ * System.out. Tokens are cut from a byte buffer by hand instead of with Scanner's regular
+ * expressions, and numbers and amounts are parsed straight from those bytes.
+ *
+ * Output is gathered in memory and only written out when the console is about to wait for
+ * more input, when a lot of it has piled up, or on flush(). Typed at a terminal, every prompt
+ * still shows before the console waits; driven from a file or a pipe, a whole script runs
+ * with a write every BUFFER_SIZE characters instead of one per print.
+ */
+public final class ConsoleIO implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final InputStream in;
+    private final OutputStream stream;
+    private final Writer writer;         // Encodes whatever is not plain ASCII
+    private final Charset charset;
+    private final boolean asciiCompatible;
+
+    private final byte[] input = new byte[BUFFER_SIZE];
+    private int position;         // Next byte of input to read
+    private int limit;            // End of the bytes read into input
+    private boolean ended;        // The input has no more bytes
+
+    private byte[] token = new byte[64];
+    private int tokenLength;
+    private char[] tokenChars = new char[token.length];
+    private CharBuffer tokenView = CharBuffer.wrap(tokenChars); // For Money.parse, without a String per amount
+
+    private final StringBuilder output = new StringBuilder(BUFFER_SIZE + 1024);
+    private char[] outputChars = new char[0];
+    private byte[] outputBytes = new byte[0];
+
+    public ConsoleIO(InputStream in, OutputStream out) {
+        this(in, out, Charset.defaultCharset());
+    }
+
+    public ConsoleIO(InputStream in, OutputStream out, Charset charset) {
+        this.in = in;
+        this.stream = out;
+        this.writer = new OutputStreamWriter(out, charset);
+        this.charset = charset;
+        this.asciiCompatible = charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return The next token as a String, like Scanner.next().
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public String next() {
+        readToken();
+        return new String(token, 0, tokenLength, charset);
+    }
+
+    /**
+     * @return The next token as an int, like Scanner.nextInt().
+     * @throws InputMismatchException If the token is not a whole number that fits an int. The
+     *                                token is consumed either way.
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public int nextInt() {
+        readToken();
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
+        }
+        if (i == tokenLength) {
+            throw new InputMismatchException("Not a number: " + new String(token, 0, tokenLength, charset));
+        }
+
+        long value = 0;
+        for (; i < tokenLength; i++) {
+            int digit = token[i] - '0';
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) > (long) Integer.MAX_VALUE + 1) {
+                throw new InputMismatchException("Not a number: " + new String(token, 0, tokenLength, charset));
+            }
+        }
+        if (negative) {
+            return (int) -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            throw new InputMismatchException("Not a number: " + new String(token, 0, tokenLength, charset));
+        }
+        return (int) value;
+    }
+
+    /**
+     * @return The next token as an amount in cents, see Money.parse().
+     * @throws NumberFormatException  If the token is not an amount. The token is consumed either way.
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public long nextAmount() {
+        readToken();
+        // Amounts are ASCII, anything else fails to parse whichever char it becomes
+        for (int i = 0; i < tokenLength; i++) {
+            tokenChars[i] = (char) (token[i] & 0xFF);
+        }
+        return Money.parse(tokenView, 0, tokenLength);
+    }
+
+    /**
+     * @return The rest of the current line without its line break, like Scanner.nextLine().
+     * @throws NoSuchElementException If the input has ended.
+     */
+    public String nextLine() {
+        if (position == limit && !fill()) {
+            throw new NoSuchElementException("The input has ended.");
+        }
+        tokenLength = 0;
+        while (position < limit || fill()) {
+            byte b = input[position++];
+            if (b == '\n') {
+                break;
+            }
+            append(b);
+        }
+        int length = (tokenLength > 0 && token[tokenLength - 1] == '\r') ? tokenLength - 1 : tokenLength;
+        return new String(token, 0, length, charset);
+    }
+
+    public ConsoleIO print(String text) {
+        output.append(text);
+        return flushIfFull();
+    }
+
+    public ConsoleIO print(long value) {
+        output.append(value);
+        return flushIfFull();
+    }
+
+    /**
+     * Prints an amount in cents the way Money.format() renders it.
+     */
+    public ConsoleIO printAmount(long amountMinor) {
+        Money.appendTo(output, amountMinor);
+        return flushIfFull();
+    }
+
+    public ConsoleIO println(String text) {
+        output.append(text).append('\n');
+        return flushIfFull();
+    }
+
+    public ConsoleIO println() {
+        output.append('\n');
+        return flushIfFull();
+    }
+
+    /**
+     * Writes out everything printed so far.
+     */
+    public void flush() {
+        try {
+            int length = output.length();
+            if (length > 0) {
+                if (outputChars.length < length) {
+                    outputChars = new char[output.capacity()];
+                    outputBytes = new byte[output.capacity()];
+                }
+                output.getChars(0, length, outputChars, 0);
+                output.setLength(0);
+
+                // The menus are ASCII, which every ASCII compatible charset encodes as the chars themselves
+                int ascii = 0;
+                if (asciiCompatible) {
+                    for (char c; ascii < length && (c = outputChars[ascii]) < 0x80; ascii++) {
+                        outputBytes[ascii] = (byte) c;
+                    }
+                    stream.write(outputBytes, 0, ascii);
+                }
+                if (ascii < length) {
+                    writer.write(outputChars, ascii, length - ascii);
+                    writer.flush();
+                }
+            }
+            stream.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the console.", e);
+        }
+    }
+
+    /**
+     * Flushes the output and closes both streams.
+     */
+    @Override
+    public void close() {
+        flush();
+        try {
+            in.close();
+            writer.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close the console.", e);
+        }
+    }
+
+    private ConsoleIO flushIfFull() {
+        if (output.length() >= BUFFER_SIZE) {
+            flush();
+        }
+        return this;
+    }
+
+    // Reads the next run of non-whitespace bytes into token
+    private void readToken() {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw new NoSuchElementException("The input has ended.");
+            }
+            if (!isWhitespace(input[position])) {
+                break;
+            }
+            position++;
+        }
+
+        tokenLength = 0;
+        while ((position < limit || fill()) && !isWhitespace(input[position])) {
+            append(input[position++]);
+        }
+    }
+
+    // Spaces, tabs and line breaks; bytes of non-ASCII characters are negative and never whitespace
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private void append(byte b) {
+        if (tokenLength == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+            tokenChars = new char[token.length];
+            tokenView = CharBuffer.wrap(tokenChars);
+        }
+        token[tokenLength++] = b;
+    }
+
+    // Flushes first, as whoever reads the console may be waiting on the last prompt
+    private boolean fill() {
+        if (ended) {
+            return false;
+        }
+        flush();
+        try {
+            int read;
+            do {
+                read = in.read(input, 0, input.length);
+            } while (read == 0);
+            if (read < 0) {
+                ended = true;
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read from the console.", e);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Running totals of one account's transactions by type, per day and for the account's whole
+ * life, kept up to date as entries are added to its TransactionHistory. A statement over a
+ * date range then sums one row per day with activity instead of rescanning the history.
+ *
+ * Days are UTC epoch days. Only the last atm.totals.accountDays days with activity (400 by
+ * default) are kept per day, older rows are dropped; the lifetime totals are never dropped.
+ */
+public class DailyTotals implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("atm.totals.accountDays", 400);
+    public static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+    private static final int TYPES = TransactionType.values().length;
+    private static final int ROW = 1 + TYPES; // The epoch day, then the amount of every type
+    private static final int INITIAL_ROWS = 2;
+
+    private final int capacity;
+    private final long[] lifetime = new long[TYPES];
+    private long[] rows;          // Ring of rows, oldest first from the start index
+    private int head;             // Row the next new day is written to
+    private int size;             // Rows currently held
+    private long droppedThrough = Long.MIN_VALUE; // Newest day whose row was dropped, if any
+
+    public DailyTotals() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DailyTotals(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.capacity = capacity;
+        this.rows = new long[Math.min(INITIAL_ROWS, capacity) * ROW];
+    }
+
+    public static long dayOf(long timestamp) {
+        return Math.floorDiv(timestamp, MILLIS_PER_DAY);
+    }
+
+    /**
+     * @param timestamp Never before the timestamp of the previous call, which TransactionHistory ensures.
+     */
+    public void add(TransactionType type, long amountMinor, long timestamp) {
+        long day = dayOf(timestamp);
+        if (size == 0 || rows[row(size - 1)] != day) {
+            newRow(day);
+        }
+        rows[row(size - 1) + 1 + type.ordinal()] += amountMinor;
+        lifetime[type.ordinal()] += amountMinor;
+    }
+
+    /**
+     * @return The total of the type over the account's whole life.
+     */
+    public long getLifetimeTotal(TransactionType type) {
+        return lifetime[type.ordinal()];
+    }
+
+    /**
+     * @return The total of the type over the days [fromDay, toDay], of those still held.
+     */
+    public long getTotal(TransactionType type, long fromDay, long toDay) {
+        long total = 0;
+        for (int i = firstAtOrAfter(fromDay); i < size && rows[row(i)] <= toDay; i++) {
+            total += rows[row(i) + 1 + type.ordinal()];
+        }
+        return total;
+    }
+
+    /**
+     * Receives the totals of one day, indexed by TransactionType ordinal. The array is reused.
+     */
+    public interface DayVisitor {
+        void visit(long day, long[] amounts);
+    }
+
+    /**
+     * Visits every held day in [fromDay, toDay] with activity, oldest first.
+     */
+    public void forEachDay(long fromDay, long toDay, DayVisitor visitor) {
+        long[] amounts = new long[TYPES];
+        for (int i = firstAtOrAfter(fromDay); i < size && rows[row(i)] <= toDay; i++) {
+            System.arraycopy(rows, row(i) + 1, amounts, 0, TYPES);
+            visitor.visit(rows[row(i)], amounts);
+        }
+    }
+
+    /**
+     * @return The newest day whose row was dropped to stay within the capacity, or
+     *         Long.MIN_VALUE if every day since the account was opened is still held.
+     */
+    public long getDroppedThrough() {
+        return droppedThrough;
+    }
+
+    /**
+     * @return true if both hold the same days from fromDay on, with the same totals. The
+     *         lifetime totals are only compared when fromDay is Long.MIN_VALUE, as both then
+     *         cover the account's whole life.
+     */
+    public boolean matches(DailyTotals other, long fromDay) {
+        int i = firstAtOrAfter(fromDay);
+        int j = other.firstAtOrAfter(fromDay);
+        if (size - i != other.size - j) {
+            return false;
+        }
+        for (; i < size; i++, j++) {
+            if (!Arrays.equals(rows, row(i), row(i) + ROW, other.rows, other.row(j), other.row(j) + ROW)) {
+                return false;
+            }
+        }
+        return fromDay != Long.MIN_VALUE || Arrays.equals(lifetime, other.lifetime);
+    }
+
+    public DailyTotals copy() {
+        DailyTotals copy = new DailyTotals(capacity);
+        System.arraycopy(lifetime, 0, copy.lifetime, 0, TYPES);
+        copy.rows = rows.clone();
+        copy.head = head;
+        copy.size = size;
+        copy.droppedThrough = droppedThrough;
+        return copy;
+    }
+
+    public int encodedSize() {
+        return Integer.BYTES * 2 + Long.BYTES + TYPES * Long.BYTES + size * ROW * Long.BYTES;
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(capacity);
+        buffer.putLong(droppedThrough);
+        for (long total : lifetime) {
+            buffer.putLong(total);
+        }
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            for (int k = 0; k < ROW; k++) {
+                buffer.putLong(rows[row(i) + k]);
+            }
+        }
+    }
+
+    public static DailyTotals decode(ByteBuffer buffer) {
+        DailyTotals totals = new DailyTotals(buffer.getInt());
+        totals.droppedThrough = buffer.getLong();
+        for (int t = 0; t < TYPES; t++) {
+            totals.lifetime[t] = buffer.getLong();
+        }
+        int size = buffer.getInt();
+        totals.rows = new long[Math.max(Math.min(INITIAL_ROWS, totals.capacity), size) * ROW];
+        for (int i = 0; i < size * ROW; i++) {
+            totals.rows[i] = buffer.getLong();
+        }
+        totals.size = size;
+        totals.head = size % (totals.rows.length / ROW);
+        return totals;
+    }
+
+    private void newRow(long day) {
+        int length = rows.length / ROW;
+        if (size == length && length < capacity) {
+            // Still growing toward the capacity, nothing has wrapped yet so head == size
+            rows = Arrays.copyOf(rows, Math.min(length * 2, capacity) * ROW);
+            head = size;
+            length = rows.length / ROW;
+        }
+
+        int base = head * ROW;
+        if (size == length) {
+            droppedThrough = rows[base]; // The oldest row is overwritten
+        } else {
+            size++;
+        }
+        Arrays.fill(rows, base, base + ROW, 0);
+        rows[base] = day;
+        head = (head + 1) % length;
+    }
+
+    // Maps the i-th oldest held row to the index of its day in the array
+    private int row(int i) {
+        int length = rows.length / ROW;
+        int oldest = (size < length) ? 0 : head;
+        return ((oldest + i) % length) * ROW;
+    }
+
+    private int firstAtOrAfter(long day) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rows[row(middle)] < day) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,867 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The cold tier of the transaction histories. An account's TransactionHistory only holds its
+ * latest entries; the entry a full history is about to overwrite is handed to the archive
+ * instead (add()), and kept in memory until the next checkpoint seals everything gathered
+ * since the last one into a compressed segment file in the history directory. Segments are
+ * never changed after that, so reading older history needs no locks on the ledger.
+ *
+ * Each entry keeps its ordinal, its position among every entry the account ever had from 0,
+ * so a page of history is a range of ordinals: the newest from the account's history, any
+ * older from the archive, read only when someone asks for them (forEachBetween()).
+ *
+ * Inside a segment the entries are sorted by account and cut into chunks of about CHUNK_SIZE
+ * bytes, each compressed on its own and holding whole accounts. The segment ends with a table
+ * of the chunks and the first and last account in each, which is all of a segment kept in
+ * memory: a sparse index, a binary search of which finds the only chunk an account can be in,
+ * so reading an account's entries from a segment decompresses one chunk.
+ *
+ * Entries waiting for a checkpoint are spread over stripes by account, each with its own lock
+ * and an index from account to its latest entry, chained to the ones before it, so accounts
+ * archiving at the same time rarely wait for each other and reading an account's pending
+ * entries only visits its own.
+ *
+ * Segments carry the journal sequence of the checkpoint that sealed them. One sealed by a
+ * checkpoint that never finished is deleted on startup, as the journal replay evicts its
+ * entries from the histories again.
+ *
+ * Every checkpoint seals a new segment, so once MERGE_FAN_IN segments of about the same size
+ * exist they are merged into one (compact()), the way a log-structured merge tree does. The
+ * number of segments a read looks at then grows with the logarithm of the archive's size
+ * rather than with the number of checkpoints, and every entry is rewritten a logarithmic
+ * number of times. Readers keep going during a merge: a segment deleted under one is read
+ * again from the merged one.
+ *
+ * File layout: [int magic][int version][long journalSequence], chunks, then the chunk table
+ * [int chunkCount] and per chunk [int firstAccountId][int lastAccountId][long offset]
+ * [int compressedLength][int rawLength][int crc32 of the compressed bytes], and the footer
+ * [long tableOffset][int crc32 of the table][int magic].
+ *
+ * Chunk layout, before compression: [int runCount], per run of consecutive entries of one
+ * account [int accountId][long firstOrdinal][int entryCount][int offset of its entries], then
+ * the entries: [byte type][amount][timestamp, less the previous one of the run][counterparty
+ * ID], the numbers as zigzag variable-length integers.
+ */
+public class HistoryArchive {
+    public static final String DIRECTORY = "history";
+
+    private static final int MAGIC = 0x41544D48; // "ATMH"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+    private static final int TABLE_ROW_SIZE = Integer.BYTES * 5 + Long.BYTES;
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES * 2;
+    private static final int RUN_SIZE = Integer.BYTES * 3 + Long.BYTES;
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final String SUFFIX = ".seg";
+    private static final int STRIPES = 64; // Power of two, so the stripe is just the low bits of the account ID
+    private static final int MERGE_FAN_IN = 8;
+    // Segments bigger than this together are left as they are, a merge holds its entries in memory
+    private static final long MAX_MERGE_BYTES = Long.getLong("atm.history.maxMergeMegabytes", 64) << 20;
+    private static final int READ_ATTEMPTS = 3;
+    private static final Comparator<Segment> SEQUENCE_ORDER = Comparator.<Segment>comparingLong(segment -> segment.journalSequence)
+            .thenComparingInt(segment -> segment.path.getFileName().toString().length())
+            .thenComparing(segment -> segment.path.getFileName().toString());
+
+    private final Path directory;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private volatile List<Segment> segments; // Oldest first, replaced as a whole with the archive's monitor held
+
+    // The entries of one stripe's accounts not in a segment yet, guarded by the stripe itself
+    private static class Stripe {
+        Entries pending = new Entries(); // Added since the last detach()
+        Entries sealing;                 // Detached and not sealed into a segment yet
+    }
+
+    /**
+     * Opens the archive in the directory, creating it if need be, and deletes the segments
+     * sealed after the given journal sequence, that of the checkpoint the ledger starts from.
+     */
+    public HistoryArchive(Path directory, long checkpointSequence) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        List<Segment> found = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX + ".tmp")) {
+                    Files.delete(file); // Left by a crash while sealing
+                } else if (name.endsWith(SUFFIX)) {
+                    Segment segment = Segment.open(file);
+                    if (segment.journalSequence > checkpointSequence) {
+                        Files.delete(file);
+                    } else {
+                        found.add(segment);
+                    }
+                }
+            }
+        }
+        found.sort(SEQUENCE_ORDER);
+        segments = List.copyOf(found);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Archives the oldest entry of the account's history, which is full and about to
+     * overwrite it. Called with the account locked.
+     */
+    public void add(int accountId, TransactionHistory history) {
+        add(accountId, history, 1);
+    }
+
+    /**
+     * Archives the oldest count entries the account's history holds, which it is about to drop.
+     * Called with the account locked.
+     */
+    public void add(int accountId, TransactionHistory history, int count) {
+        Stripe stripe = stripes[accountId & (STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.pending.accountId = accountId;
+            stripe.pending.ordinal = history.getOldestOrdinal();
+            history.forEachBetweenOrdinals(history.getOldestOrdinal(), history.getOldestOrdinal() + count, stripe.pending);
+        }
+    }
+
+    /**
+     * Takes the entries added so far out of the pending ones, for seal() to write into a
+     * segment. Called with the ledger paused, so they are exactly the ones evicted from the
+     * histories a snapshot holds.
+     *
+     * @return The entries of each stripe.
+     */
+    public Entries[] detach() {
+        Entries[] detached = new Entries[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            synchronized (stripes[i]) {
+                detached[i] = stripes[i].pending;
+                stripes[i].pending = new Entries();
+                stripes[i].sealing = detached[i];
+            }
+        }
+        return detached;
+    }
+
+    /**
+     * Writes the detached entries into a new segment and forces it to disk. If that fails the
+     * entries are put back with the pending ones, for the next checkpoint to try again.
+     *
+     * @param journalSequence The last journal sequence of the checkpoint the segment belongs to.
+     */
+    public void seal(Entries[] detached, long journalSequence) throws IOException {
+        try {
+            Entries entries = new Entries(false);
+            for (Entries stripeEntries : detached) {
+                entries.append(stripeEntries);
+            }
+            if (entries.size > 0) {
+                Segment segment = Segment.write(uniquePath(journalSequence), journalSequence, entries);
+                synchronized (this) {
+                    List<Segment> updated = new ArrayList<>(segments);
+                    updated.add(segment);
+                    segments = List.copyOf(updated);
+                }
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < STRIPES; i++) {
+                synchronized (stripes[i]) {
+                    detached[i].append(stripes[i].pending); // Evicted before those, so they go first
+                    stripes[i].pending = detached[i];
+                }
+            }
+            throw e;
+        } finally {
+            for (int i = 0; i < STRIPES; i++) {
+                synchronized (stripes[i]) {
+                    if (stripes[i].sealing == detached[i]) {
+                        stripes[i].sealing = null;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges segments of about the same size, MERGE_FAN_IN at a time, until no size has that
+     * many. Sizes go in tiers of factors of MERGE_FAN_IN, from a chunk up. Only segments of
+     * checkpoints that completed are merged: the merged segment carries the latest of their
+     * journal sequences, and one of a checkpoint that never finished would take the others
+     * with it when it is deleted on startup. Called after each checkpoint, one at a time.
+     *
+     * @param checkpointSequence The journal sequence of the last checkpoint that completed.
+     * @return The number of segments there are fewer of.
+     */
+    public int compact(long checkpointSequence) throws IOException {
+        int removed = 0;
+        List<Segment> inputs;
+        while ((inputs = nextMerge(checkpointSequence)) != null) {
+            Entries entries = new Entries(false);
+            long journalSequence = 0;
+            for (Segment input : inputs) {
+                input.readAll(entries); // Oldest first, so each account's entries stay in ordinal order
+                journalSequence = Math.max(journalSequence, input.journalSequence);
+            }
+            Segment merged = Segment.write(uniquePath(journalSequence), journalSequence, entries);
+            synchronized (this) {
+                List<Segment> updated = new ArrayList<>(segments);
+                updated.removeAll(inputs);
+                updated.add(merged);
+                updated.sort(SEQUENCE_ORDER);
+                segments = List.copyOf(updated);
+            }
+            // A crash before these are gone leaves their entries twice, which reads take once
+            for (Segment input : inputs) {
+                Files.deleteIfExists(input.path);
+            }
+            removed += inputs.size() - 1;
+        }
+        return removed;
+    }
+
+    // The oldest MERGE_FAN_IN segments of the lowest tier that has that many, or null if none has
+    private List<Segment> nextMerge(long checkpointSequence) {
+        List<List<Segment>> tiers = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.journalSequence > checkpointSequence) {
+                continue;
+            }
+            int tier = (63 - Long.numberOfLeadingZeros(Math.max(1, segment.size / CHUNK_SIZE))) / 3;
+            while (tiers.size() <= tier) {
+                tiers.add(new ArrayList<>());
+            }
+            tiers.get(tier).add(segment);
+        }
+        for (List<Segment> tier : tiers) {
+            if (tier.size() >= MERGE_FAN_IN) {
+                List<Segment> inputs = tier.subList(0, MERGE_FAN_IN);
+                long bytes = 0;
+                for (Segment input : inputs) {
+                    bytes += input.size;
+                }
+                if (bytes <= MAX_MERGE_BYTES) {
+                    return inputs;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies the segments of checkpoints up to the journal sequence into the directory, for a
+     * backup taken at that sequence.
+     *
+     * @return The number of segments copied.
+     */
+    public int copyTo(Path target, long journalSequence) throws IOException {
+        Files.createDirectories(target);
+        int copied = 0;
+        for (Segment segment : segments) { // Merges only run between checkpoints and backups, not during one
+            if (segment.journalSequence <= journalSequence) {
+                Files.copy(segment.path, target.resolve(segment.path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                copied++;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Visits the account's archived entries with ordinals in [fromOrdinal, toOrdinal), oldest
+     * first, reading only the one chunk of each segment the account can be in. Entries the
+     * archive never got, overwritten before it existed, are left out.
+     *
+     * @return The number of entries visited.
+     */
+    public int forEachBetween(int accountId, long fromOrdinal, long toOrdinal, TransactionHistory.Visitor visitor) {
+        if (toOrdinal <= fromOrdinal) {
+            return 0;
+        }
+        Entries found = Entries.page((int) (toOrdinal - fromOrdinal));
+        int count;
+        // The entries in memory first: any that are sealed meanwhile are in a segment by the time the segments are read
+        Stripe stripe = stripes[accountId & (STRIPES - 1)];
+        synchronized (stripe) {
+            count = stripe.pending.copyBetween(accountId, fromOrdinal, toOrdinal, found);
+            if (stripe.sealing != null) {
+                count += stripe.sealing.copyBetween(accountId, fromOrdinal, toOrdinal, found);
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
+            try {
+                List<Segment> current = segments;
+                for (int i = current.size() - 1; i >= 0 && count < found.types.length; i--) {
+                    count += current.get(i).copyBetween(accountId, fromOrdinal, toOrdinal, found);
+                }
+                break;
+            } catch (NoSuchFileException e) {
+                // Merged away meanwhile, the entries are in the merged segment, which the list has by now
+                if (attempt == READ_ATTEMPTS) {
+                    throw new UncheckedIOException("Could not read the archived history of account " + accountId + ".", e);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read the archived history of account " + accountId + ".", e);
+            }
+        }
+
+        int visited = 0;
+        for (int i = 0; i < found.types.length; i++) {
+            if (found.ordinals[i] >= 0) {
+                visitor.visit(TransactionType.fromCode(found.types[i]), found.amounts[i], found.timestamps[i],
+                        found.counterparties[i]);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    private Path uniquePath(long journalSequence) {
+        Path path = directory.resolve(String.format("%020d%s", journalSequence, SUFFIX));
+        for (int i = 1; Files.exists(path); i++) {
+            path = directory.resolve(String.format("%020d-%d%s", journalSequence, i, SUFFIX));
+        }
+        return path;
+    }
+
+    /**
+     * Archived entries held in memory, as primitive columns: those waiting for the next
+     * checkpoint, or a page of them being read back, where entry i is the one with ordinal
+     * fromOrdinal + i and an ordinal of -1 marks the ones not found (yet).
+     *
+     * Pending entries are indexed by account: an open-addressing table holds each account's
+     * latest entry, and previous[] the entry of the same account before each one.
+     */
+    public static class Entries implements TransactionHistory.Visitor {
+        private static final int INITIAL_LENGTH = 64;
+        private static final int NONE = -1;
+
+        private int[] accountIds;
+        private long[] ordinals;
+        private byte[] types;
+        private long[] amounts;
+        private long[] timestamps;
+        private int[] counterparties;
+        private int size;
+
+        private int[] previous; // Only when indexed
+        private int[] table;    // Index of the account's latest entry, or NONE, probed linearly
+        private int accounts;
+
+        private int accountId; // Of the entry visit() adds next, and the ordinal of it
+        private long ordinal;
+
+        Entries() {
+            this(true);
+        }
+
+        private Entries(boolean indexed) {
+            this(INITIAL_LENGTH);
+            if (indexed) {
+                previous = new int[INITIAL_LENGTH];
+                table = new int[INITIAL_LENGTH];
+                Arrays.fill(table, NONE);
+            }
+        }
+
+        private Entries(int length) {
+            accountIds = new int[length];
+            ordinals = new long[length];
+            types = new byte[length];
+            amounts = new long[length];
+            timestamps = new long[length];
+            counterparties = new int[length];
+        }
+
+        // A page of the given length, with every entry not found yet
+        private static Entries page(int length) {
+            Entries page = new Entries(length);
+            Arrays.fill(page.ordinals, -1);
+            return page;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void visit(TransactionType type, long amountMinor, long timestamp, int counterpartyId) {
+            add(accountId, ordinal++, (byte) type.ordinal(), amountMinor, timestamp, counterpartyId);
+        }
+
+        private void add(int accountId, long ordinal, byte type, long amountMinor, long timestamp, int counterpartyId) {
+            if (size == types.length) {
+                int length = size * 2;
+                accountIds = Arrays.copyOf(accountIds, length);
+                ordinals = Arrays.copyOf(ordinals, length);
+                types = Arrays.copyOf(types, length);
+                amounts = Arrays.copyOf(amounts, length);
+                timestamps = Arrays.copyOf(timestamps, length);
+                counterparties = Arrays.copyOf(counterparties, length);
+                if (previous != null) {
+                    previous = Arrays.copyOf(previous, length);
+                }
+            }
+            accountIds[size] = accountId;
+            ordinals[size] = ordinal;
+            types[size] = type;
+            amounts[size] = amountMinor;
+            timestamps[size] = timestamp;
+            counterparties[size] = counterpartyId;
+            if (table != null) {
+                int slot = slotOf(accountId);
+                if (table[slot] == NONE) {
+                    accounts++;
+                }
+                previous[size] = table[slot];
+                table[slot] = size;
+            }
+            size++;
+            if (table != null && accounts * 2 > table.length) {
+                rehash(table.length * 2);
+            }
+        }
+
+        // The slot holding the account's latest entry, or the empty one it would go in
+        private int slotOf(int accountId) {
+            int mask = table.length - 1;
+            int hash = accountId * 0x9E3779B9;
+            int slot = (hash ^ (hash >>> 16)) & mask; // The high bits too, a stripe's accounts share their low ones
+            while (table[slot] != NONE && accountIds[table[slot]] != accountId) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash(int length) {
+            int[] old = table;
+            table = new int[length];
+            Arrays.fill(table, NONE);
+            for (int latest : old) {
+                if (latest != NONE) {
+                    table[slotOf(accountIds[latest])] = latest;
+                }
+            }
+        }
+
+        private void append(Entries other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.accountIds[i], other.ordinals[i], other.types[i], other.amounts[i], other.timestamps[i],
+                        other.counterparties[i]);
+            }
+        }
+
+        // Puts an entry into its place in a page, returning 1 if the place was still empty
+        private int place(long fromOrdinal, long ordinal, byte type, long amountMinor, long timestamp, int counterpartyId) {
+            int i = (int) (ordinal - fromOrdinal);
+            if (ordinals[i] >= 0) {
+                return 0;
+            }
+            ordinals[i] = ordinal;
+            types[i] = type;
+            amounts[i] = amountMinor;
+            timestamps[i] = timestamp;
+            counterparties[i] = counterpartyId;
+            return 1;
+        }
+
+        // Only visits the account's own entries, following the chain from its latest one
+        private int copyBetween(int accountId, long fromOrdinal, long toOrdinal, Entries page) {
+            int placed = 0;
+            for (int i = table[slotOf(accountId)]; i != NONE; i = previous[i]) {
+                if (ordinals[i] >= fromOrdinal && ordinals[i] < toOrdinal) {
+                    placed += page.place(fromOrdinal, ordinals[i], types[i], amounts[i], timestamps[i], counterparties[i]);
+                }
+            }
+            return placed;
+        }
+    }
+
+    // One sealed segment file, with its chunk table in memory
+    private static class Segment {
+        final Path path;
+        final long journalSequence;
+        final long size; // Of the file, in bytes
+        final int[] firstAccountIds;
+        final int[] lastAccountIds;
+        final long[] offsets;
+        final int[] compressedLengths;
+        final int[] rawLengths;
+        final int[] crcs;
+
+        Segment(Path path, long journalSequence, long size, int chunkCount) {
+            this.path = path;
+            this.journalSequence = journalSequence;
+            this.size = size;
+            firstAccountIds = new int[chunkCount];
+            lastAccountIds = new int[chunkCount];
+            offsets = new long[chunkCount];
+            compressedLengths = new int[chunkCount];
+            rawLengths = new int[chunkCount];
+            crcs = new int[chunkCount];
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE + Integer.BYTES + FOOTER_SIZE) {
+                    throw new IOException(path + " is not a history segment.");
+                }
+                ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+                ByteBuffer footer = readFully(channel, size - FOOTER_SIZE, FOOTER_SIZE);
+                if (header.getInt() != MAGIC || header.getInt() != VERSION || footer.getInt(FOOTER_SIZE - Integer.BYTES) != MAGIC) {
+                    throw new IOException(path + " is not a history segment of this version.");
+                }
+                long journalSequence = header.getLong();
+                long tableOffset = footer.getLong();
+                int tableCrc = footer.getInt();
+
+                ByteBuffer table = readFully(channel, tableOffset, (int) (size - FOOTER_SIZE - tableOffset));
+                CRC32 crc = new CRC32();
+                crc.update(table.duplicate());
+                if ((int) crc.getValue() != tableCrc) {
+                    throw new IOException("The chunk table of " + path + " is corrupt.");
+                }
+                Segment segment = new Segment(path, journalSequence, size, table.getInt());
+                for (int i = 0; i < segment.offsets.length; i++) {
+                    segment.firstAccountIds[i] = table.getInt();
+                    segment.lastAccountIds[i] = table.getInt();
+                    segment.offsets[i] = table.getLong();
+                    segment.compressedLengths[i] = table.getInt();
+                    segment.rawLengths[i] = table.getInt();
+                    segment.crcs[i] = table.getInt();
+                }
+                return segment;
+            }
+        }
+
+        // Writes the entries sorted by account, then ordinal, to a temporary file and moves it into place
+        static Segment write(Path path, long journalSequence, Entries entries) throws IOException {
+            // The account in the high bits, the entry's index, in ordinal order per account, in the low bits
+            long[] order = new long[entries.size];
+            for (int i = 0; i < entries.size; i++) {
+                order[i] = (long) entries.accountIds[i] << 32 | i;
+            }
+            Arrays.sort(order);
+
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            List<long[]> rows = new ArrayList<>(); // {firstAccountId, lastAccountId, offset, compressedLength, rawLength, crc}
+            long size;
+            Deflater deflater = new Deflater();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).putLong(journalSequence);
+                writeFully(channel, header.flip());
+
+                Bytes runs = new Bytes();
+                Bytes data = new Bytes();
+                int runCount = 0;
+                int first = 0;
+                while (first < order.length) {
+                    // A run is a stretch of one account's entries with consecutive ordinals
+                    int index = (int) order[first];
+                    int accountId = entries.accountIds[index];
+                    int end = first + 1;
+                    while (end < order.length && (int) (order[end] >>> 32) == accountId
+                            && entries.ordinals[(int) order[end]] == entries.ordinals[(int) order[end - 1]] + 1) {
+                        end++;
+                    }
+                    runs.putInt(accountId).putLong(entries.ordinals[index]).putInt(end - first).putInt(data.length);
+                    long previousTimestamp = 0;
+                    for (int i = first; i < end; i++) {
+                        int entry = (int) order[i];
+                        data.put(entries.types[entry]).putVarLong(entries.amounts[entry])
+                                .putVarLong(entries.timestamps[entry] - previousTimestamp)
+                                .putVarLong(entries.counterparties[entry]);
+                        previousTimestamp = entries.timestamps[entry];
+                    }
+                    runCount++;
+                    first = end;
+
+                    // Chunks end between accounts, so an account's entries in a segment are all in one chunk
+                    boolean lastOfAccount = first == order.length || (int) (order[first] >>> 32) != accountId;
+                    if (lastOfAccount && (data.length + runs.length >= CHUNK_SIZE || first == order.length)) {
+                        rows.add(writeChunk(channel, deflater, runCount, runs, data));
+                        runs.length = 0;
+                        data.length = 0;
+                        runCount = 0;
+                    }
+                }
+
+                long tableOffset = channel.position();
+                ByteBuffer table = ByteBuffer.allocate(Integer.BYTES + rows.size() * TABLE_ROW_SIZE).putInt(rows.size());
+                for (long[] row : rows) {
+                    table.putInt((int) row[0]).putInt((int) row[1]).putLong(row[2]).putInt((int) row[3])
+                            .putInt((int) row[4]).putInt((int) row[5]);
+                }
+                table.flip();
+                CRC32 crc = new CRC32();
+                crc.update(table.duplicate());
+                writeFully(channel, table);
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE).putLong(tableOffset).putInt((int) crc.getValue()).putInt(MAGIC);
+                writeFully(channel, footer.flip());
+                channel.force(true);
+                size = channel.position();
+            } finally {
+                deflater.end();
+            }
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+
+            Segment segment = new Segment(path, journalSequence, size, rows.size());
+            for (int i = 0; i < rows.size(); i++) {
+                long[] row = rows.get(i);
+                segment.firstAccountIds[i] = (int) row[0];
+                segment.lastAccountIds[i] = (int) row[1];
+                segment.offsets[i] = row[2];
+                segment.compressedLengths[i] = (int) row[3];
+                segment.rawLengths[i] = (int) row[4];
+                segment.crcs[i] = (int) row[5];
+            }
+            return segment;
+        }
+
+        private static long[] writeChunk(FileChannel channel, Deflater deflater, int runCount, Bytes runs, Bytes data)
+                throws IOException {
+            // The run offsets are relative to the entries, which start after the runs
+            Bytes raw = new Bytes(Integer.BYTES + runs.length + data.length);
+            raw.putInt(runCount);
+            raw.put(runs.bytes, 0, runs.length).put(data.bytes, 0, data.length);
+            int firstAccountId = ByteBuffer.wrap(runs.bytes).getInt(0);
+            int lastAccountId = ByteBuffer.wrap(runs.bytes).getInt((runCount - 1) * RUN_SIZE);
+
+            deflater.reset();
+            deflater.setInput(raw.bytes, 0, raw.length);
+            deflater.finish();
+            byte[] compressed = new byte[raw.length + raw.length / 1000 + 64];
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(compressed, 0, compressedLength);
+
+            long offset = channel.position();
+            writeFully(channel, ByteBuffer.wrap(compressed, 0, compressedLength));
+            return new long[]{firstAccountId, lastAccountId, offset, compressedLength, raw.length, (int) crc.getValue()};
+        }
+
+        // Places the account's entries with ordinals in [fromOrdinal, toOrdinal) into the page
+        int copyBetween(int accountId, long fromOrdinal, long toOrdinal, Entries page) throws IOException {
+            int chunk = chunkOf(accountId);
+            if (chunk < 0) {
+                return 0;
+            }
+
+            ByteBuffer raw = readChunk(chunk);
+            int runCount = raw.getInt();
+            int entriesStart = Integer.BYTES + runCount * RUN_SIZE;
+            int placed = 0;
+            for (int run = 0; run < runCount; run++) {
+                int runAccountId = raw.getInt();
+                long firstOrdinal = raw.getLong();
+                int count = raw.getInt();
+                int offset = raw.getInt();
+                if (runAccountId != accountId || firstOrdinal >= toOrdinal || firstOrdinal + count <= fromOrdinal) {
+                    continue;
+                }
+
+                // Entries vary in length, so the run is decoded from its start up to the last one wanted
+                ByteBuffer entries = raw.duplicate().position(entriesStart + offset);
+                long timestamp = 0;
+                for (long ordinal = firstOrdinal; ordinal < firstOrdinal + count && ordinal < toOrdinal; ordinal++) {
+                    byte type = entries.get();
+                    long amount = readVarLong(entries);
+                    timestamp += readVarLong(entries);
+                    int counterpartyId = (int) readVarLong(entries);
+                    if (ordinal >= fromOrdinal) {
+                        placed += page.place(fromOrdinal, ordinal, type, amount, timestamp, counterpartyId);
+                    }
+                }
+            }
+            return placed;
+        }
+
+        // Adds every entry of the segment, for a merge
+        void readAll(Entries target) throws IOException {
+            for (int chunk = 0; chunk < offsets.length; chunk++) {
+                ByteBuffer raw = readChunk(chunk);
+                int runCount = raw.getInt();
+                int entriesStart = Integer.BYTES + runCount * RUN_SIZE;
+                for (int run = 0; run < runCount; run++) {
+                    int accountId = raw.getInt();
+                    long firstOrdinal = raw.getLong();
+                    int count = raw.getInt();
+                    ByteBuffer entries = raw.duplicate().position(entriesStart + raw.getInt());
+                    long timestamp = 0;
+                    for (long ordinal = firstOrdinal; ordinal < firstOrdinal + count; ordinal++) {
+                        byte type = entries.get();
+                        long amount = readVarLong(entries);
+                        timestamp += readVarLong(entries);
+                        target.add(accountId, ordinal, type, amount, timestamp, (int) readVarLong(entries));
+                    }
+                }
+            }
+        }
+
+        // Binary search of the chunk table, the sparse index, for the chunk the account is in, -1 if none
+        private int chunkOf(int accountId) {
+            int low = 0;
+            int high = firstAccountIds.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (lastAccountIds[middle] < accountId) {
+                    low = middle + 1;
+                } else if (firstAccountIds[middle] > accountId) {
+                    high = middle - 1;
+                } else {
+                    return middle;
+                }
+            }
+            return -1;
+        }
+
+        private ByteBuffer readChunk(int chunk) throws IOException {
+            ByteBuffer compressed;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                compressed = readFully(channel, offsets[chunk], compressedLengths[chunk]);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(compressed.duplicate());
+            if ((int) crc.getValue() != crcs[chunk]) {
+                throw new IOException("Chunk " + chunk + " of " + path + " is corrupt.");
+            }
+
+            byte[] raw = new byte[rawLengths[chunk]];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int length = 0;
+                while (length < raw.length && !inflater.finished()) {
+                    int inflated = inflater.inflate(raw, length, raw.length - length);
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    length += inflated;
+                }
+                if (length != raw.length) {
+                    throw new IOException("Chunk " + chunk + " of " + path + " is truncated.");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + chunk + " of " + path + " is corrupt.", e);
+            } finally {
+                inflater.end();
+            }
+            return ByteBuffer.wrap(raw);
+        }
+    }
+
+    // A growable byte array to encode into
+    private static class Bytes {
+        byte[] bytes;
+        int length;
+
+        Bytes() {
+            this(1024);
+        }
+
+        Bytes(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        Bytes put(byte b) {
+            ensure(1);
+            bytes[length++] = b;
+            return this;
+        }
+
+        Bytes put(byte[] source, int offset, int count) {
+            ensure(count);
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+            return this;
+        }
+
+        Bytes putInt(int value) {
+            ensure(Integer.BYTES);
+            ByteBuffer.wrap(bytes, length, Integer.BYTES).putInt(value);
+            length += Integer.BYTES;
+            return this;
+        }
+
+        Bytes putLong(long value) {
+            ensure(Long.BYTES);
+            ByteBuffer.wrap(bytes, length, Long.BYTES).putLong(value);
+            length += Long.BYTES;
+            return this;
+        }
+
+        // Zigzag encoded, so small negative values are short too, 7 bits a byte
+        Bytes putVarLong(long value) {
+            ensure(10);
+            long zigzag = (value << 1) ^ (value >> 63);
+            while ((zigzag & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((zigzag & 0x7F) | 0x80);
+                zigzag >>>= 7;
+            }
+            bytes[length++] = (byte) zigzag;
+            return this;
+        }
+
+        private void ensure(int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            zigzag |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of the history segment.");
+            }
+        }
+        return buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
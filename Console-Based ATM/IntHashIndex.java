@@ -0,0 +1,201 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An open-addressing hash index from a primitive int key to a value. Lookups, inserts and
+ * removals take constant time, and iteration follows insertion order.
+ *
+ * @param <V> The type of the values stored in the index.
+ */
+public class IntHashIndex<V> implements Iterable<V> {
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] keys;       // Keys of the hash table, probed linearly
+    private int[] positions;  // Index of the entry in entries/entryKeys, or EMPTY if the slot is free
+    private int mask;
+
+    private int[] entryKeys;  // Keys in insertion order
+    private Object[] entries; // Values in insertion order, null once removed
+    private int used;         // Number of entry slots used, including removed ones
+    private int size;         // Number of live entries
+
+    public IntHashIndex() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntHashIndex(int expectedSize) {
+        int capacity = Math.max(expectedSize, DEFAULT_CAPACITY);
+        entryKeys = new int[capacity];
+        entries = new Object[capacity];
+        allocateTable(tableSizeFor(capacity));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = findSlot(key);
+        return (slot == EMPTY) ? null : (V) entries[positions[slot]];
+    }
+
+    public boolean containsKey(int key) {
+        return findSlot(key) != EMPTY;
+    }
+
+    /**
+     * Adds or replaces the value stored under the key. A replaced value keeps its place in
+     * the iteration order.
+     */
+    public void put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null.");
+        }
+
+        int slot = findSlot(key);
+        if (slot != EMPTY) {
+            entries[positions[slot]] = value;
+            return;
+        }
+
+        if (used == entries.length) {
+            // Drop removed entries first, only grow if the index is actually full
+            resize((size * 2 > entries.length) ? entries.length * 2 : entries.length);
+        }
+
+        entryKeys[used] = key;
+        entries[used] = value;
+        insertSlot(key, used);
+        used++;
+        size++;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int slot = findSlot(key);
+        if (slot == EMPTY) {
+            return null;
+        }
+
+        int position = positions[slot];
+        V value = (V) entries[position];
+        entries[position] = null;
+        size--;
+        deleteSlot(slot);
+        return value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+        return new Iterator<V>() {
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < used && entries[from] == null) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < used;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public V next() {
+                if (next >= used) {
+                    throw new NoSuchElementException();
+                }
+                V value = (V) entries[next];
+                next = advance(next + 1);
+                return value;
+            }
+        };
+    }
+
+    private int findSlot(int key) {
+        int slot = hash(key) & mask;
+        while (positions[slot] != EMPTY) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return EMPTY;
+    }
+
+    private void insertSlot(int key, int position) {
+        int slot = hash(key) & mask;
+        while (positions[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        positions[slot] = position;
+    }
+
+    // Backward-shift deletion, so the table never fills up with tombstones
+    private void deleteSlot(int slot) {
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (positions[next] != EMPTY) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                positions[gap] = positions[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        positions[gap] = EMPTY;
+    }
+
+    // Compacts the entries (dropping removed ones) into arrays of the given capacity and rebuilds the table
+    private void resize(int capacity) {
+        int[] newEntryKeys = new int[capacity];
+        Object[] newEntries = new Object[capacity];
+        int count = 0;
+        for (int i = 0; i < used; i++) {
+            if (entries[i] != null) {
+                newEntryKeys[count] = entryKeys[i];
+                newEntries[count] = entries[i];
+                count++;
+            }
+        }
+
+        entryKeys = newEntryKeys;
+        entries = newEntries;
+        used = count;
+        allocateTable(tableSizeFor(capacity));
+        for (int i = 0; i < used; i++) {
+            insertSlot(entryKeys[i], i);
+        }
+    }
+
+    private void allocateTable(int tableSize) {
+        keys = new int[tableSize];
+        positions = new int[tableSize];
+        Arrays.fill(positions, EMPTY);
+        mask = tableSize - 1;
+    }
+
+    // Keeps the table at most half full so probe sequences stay short
+    private static int tableSizeFor(int capacity) {
+        int tableSize = Integer.highestOneBit(capacity) << 1;
+        return (tableSize < capacity * 2) ? tableSize << 1 : tableSize;
+    }
+
+    // Account IDs are sequential, so scramble the bits to spread them over the table
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,48 @@
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The ledger as it was at one journal sequence, for a checkpoint or backup to write out while
+ * operations carry on. Starting one pauses the ledger only to note the journal position and
+ * copy the node's totals; no account is copied up front.
+ *
+ * Accounts are copied on write instead. Each snapshot has an epoch, one above the last, and
+ * every account remembers the latest epoch it was copied for. The first change to an account
+ * after a snapshot started hands the snapshot a copy of the account as it was (preserve()),
+ * while the writer copies every account it finds still unchanged as it goes, so an account is
+ * copied once per snapshot at most and writers never wait for the snapshot to finish. Accounts
+ * created after the snapshot started are left out, their journal records come after it.
+ *
+ * History entries evicted to the HistoryArchive before the snapshot started are not in the
+ * copies, so the snapshot takes them along (evictedHistory) to seal into a segment with it.
+ */
+public class LedgerSnapshot {
+    public final long epoch;
+    public final long journalSequence;  // The last journal sequence the snapshot covers
+    public final long journalMark;      // The journal length then, see TransactionJournal.mark()
+    public final ByteBuffer totals;     // See LedgerTotals.encode()
+    public final List<TransactionJournal.Record> carryOver; // Kept when the journal is truncated, see TransactionJournal.truncate()
+    public final HistoryArchive.Entries[] evictedHistory; // Since the last snapshot, see HistoryArchive.detach()
+
+    // Accounts changed since the snapshot started, as they were before, until the writer takes them
+    private final ConcurrentHashMap<Integer, AccountRecord> preserved = new ConcurrentHashMap<>();
+
+    public LedgerSnapshot(long epoch, long journalSequence, long journalMark, ByteBuffer totals,
+                          List<TransactionJournal.Record> carryOver, HistoryArchive.Entries[] evictedHistory) {
+        this.epoch = epoch;
+        this.journalSequence = journalSequence;
+        this.journalMark = journalMark;
+        this.totals = totals;
+        this.carryOver = carryOver;
+        this.evictedHistory = evictedHistory;
+    }
+
+    void preserve(AccountRecord account) {
+        preserved.put(account.accountId, account);
+    }
+
+    AccountRecord take(int accountId) {
+        return preserved.remove(accountId);
+    }
+}
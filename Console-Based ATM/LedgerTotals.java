@@ -0,0 +1,251 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Running totals for the whole node: the amount and count of every transaction type per day,
+ * and the sum of every balance, which is what the bank owes its customers. BankAccount keeps
+ * them up to date on every ledger operation, so a report over a range of days costs one
+ * lookup per day instead of a scan of every account's history.
+ *
+ * Recording adds to the LongAdders of the day, reached through a cached reference to the
+ * current day, so concurrent operations never wait on a lock. Days are UTC epoch days, and
+ * only the last atm.totals.globalDays (3660 by default) are kept.
+ *
+ * The totals are saved with every checkpoint, see write().
+ */
+public final class LedgerTotals {
+    private static final int MAGIC = 0x41544D54; // "ATMT"
+    private static final int VERSION = 1;
+    private static final int TYPES = TransactionType.values().length;
+    private static final int RETAINED_DAYS = Integer.getInteger("atm.totals.globalDays", 3660);
+
+    private static final ConcurrentHashMap<Long, Day> days = new ConcurrentHashMap<>();
+    private static final LongAdder liabilities = new LongAdder();
+    private static volatile Day today; // The newest day, which nearly every operation records to
+
+    private LedgerTotals() {}
+
+    private static class Day {
+        final long day;
+        final LongAdder[] amounts = new LongAdder[TYPES];
+        final LongAdder[] counts = new LongAdder[TYPES];
+
+        Day(long day) {
+            this.day = day;
+            for (int t = 0; t < TYPES; t++) {
+                amounts[t] = new LongAdder();
+                counts[t] = new LongAdder();
+            }
+        }
+    }
+
+    /**
+     * Counts one history entry, on the day of the timestamp the history stored it with.
+     */
+    public static void record(TransactionType type, long amountMinor, long timestamp) {
+        long day = DailyTotals.dayOf(timestamp);
+        Day current = today;
+        if (current == null || current.day != day) {
+            current = dayFor(day);
+        }
+        current.amounts[type.ordinal()].add(amountMinor);
+        current.counts[type.ordinal()].increment();
+    }
+
+    /**
+     * @param deltaMinor How much the balances of all accounts together went up, negative for down.
+     */
+    public static void adjustLiabilities(long deltaMinor) {
+        liabilities.add(deltaMinor);
+    }
+
+    /**
+     * @return The sum of every balance on this node, in cents.
+     */
+    public static long getLiabilities() {
+        return liabilities.sum();
+    }
+
+    public static long getAmount(long day, TransactionType type) {
+        Day totals = days.get(day);
+        return (totals == null) ? 0 : totals.amounts[type.ordinal()].sum();
+    }
+
+    public static long getCount(long day, TransactionType type) {
+        Day totals = days.get(day);
+        return (totals == null) ? 0 : totals.counts[type.ordinal()].sum();
+    }
+
+    /**
+     * @return The oldest day still held, or Long.MAX_VALUE if there is none.
+     */
+    public static long getOldestDay() {
+        long oldest = Long.MAX_VALUE;
+        for (long day : days.keySet()) {
+            oldest = Math.min(oldest, day);
+        }
+        return oldest;
+    }
+
+    /**
+     * @return The newest day held, or Long.MIN_VALUE if there is none.
+     */
+    public static long getNewestDay() {
+        Day current = today;
+        return (current == null) ? Long.MIN_VALUE : current.day;
+    }
+
+    /**
+     * @return The oldest day that is not dropped yet, every day before it may be incomplete.
+     */
+    public static long getFirstRetainedDay() {
+        Day current = today;
+        return (current == null) ? Long.MIN_VALUE : current.day - RETAINED_DAYS + 1;
+    }
+
+    /**
+     * Renders the liabilities, then a line per day of [fromDay, toDay] with activity giving the
+     * count and amount of every transaction type.
+     */
+    public static String report(long fromDay, long toDay) {
+        StringBuilder builder = new StringBuilder(256);
+        Money.appendTo(builder.append("Liabilities: "), getLiabilities()).append('\n');
+        builder.append(String.format("%-10s", "date"));
+        for (TransactionType type : TransactionType.values()) {
+            builder.append(String.format(" %26s", type.name().toLowerCase()));
+        }
+        builder.append('\n');
+
+        for (long day = Math.max(fromDay, toDay - RETAINED_DAYS); day <= toDay; day++) {
+            Day totals = days.get(day);
+            if (totals == null) {
+                continue;
+            }
+            builder.append(LocalDate.ofEpochDay(day));
+            for (int t = 0; t < TYPES; t++) {
+                builder.append(String.format(" %8d %17s", totals.counts[t].sum(), Money.format(totals.amounts[t].sum())));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Forgets every total, before they are rebuilt from the accounts.
+     */
+    public static void clear() {
+        days.clear();
+        today = null;
+        liabilities.reset();
+    }
+
+    /**
+     * Saves the totals, stamped with the journal sequence they cover like a checkpoint.
+     * Written beside the file and renamed over it, so a crash leaves the old or the new totals.
+     */
+    public static void write(Path path, long checkpointSequence) throws IOException {
+        write(path, encode(checkpointSequence));
+    }
+
+    /**
+     * Copies the totals out as they are now, to be written later by write(Path, ByteBuffer).
+     * A snapshot of the ledger takes them while no operation is running, see LedgerSnapshot.
+     *
+     * File layout: [int magic][int version][long checkpointSequence][long liabilities][int dayCount]
+     * then per day [long day][long amount per type][long count per type], and [int crc32].
+     */
+    public static ByteBuffer encode(long checkpointSequence) {
+        Day[] held = days.values().toArray(new Day[0]);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 3 + Long.BYTES * 2 + held.length * (Long.BYTES * (1 + TYPES * 2)) + Integer.BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(checkpointSequence).putLong(getLiabilities()).putInt(held.length);
+        for (Day day : held) {
+            buffer.putLong(day.day);
+            for (int t = 0; t < TYPES; t++) {
+                buffer.putLong(day.amounts[t].sum());
+            }
+            for (int t = 0; t < TYPES; t++) {
+                buffer.putLong(day.counts[t].sum());
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Saves totals returned by encode(), the same way as write(Path, long).
+     */
+    public static void write(Path path, ByteBuffer encoded) throws IOException {
+        ByteBuffer buffer = encoded.duplicate();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the totals with those saved in the file.
+     *
+     * @return The journal sequence the file covers, or -1 if there is no file.
+     * @throws IOException If the file cannot be read or fails its checksum.
+     */
+    public static long read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return -1;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.capacity() < Integer.BYTES * 3 + Long.BYTES * 2 + Integer.BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a totals file.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.capacity() - Integer.BYTES);
+        if ((int) crc.getValue() != buffer.getInt(buffer.capacity() - Integer.BYTES)) {
+            throw new IOException(path + " fails its checksum.");
+        }
+
+        clear();
+        buffer.position(Integer.BYTES * 2);
+        long checkpointSequence = buffer.getLong();
+        liabilities.add(buffer.getLong());
+        for (int i = buffer.getInt(); i > 0; i--) {
+            Day day = dayFor(buffer.getLong());
+            for (int t = 0; t < TYPES; t++) {
+                day.amounts[t].add(buffer.getLong());
+            }
+            for (int t = 0; t < TYPES; t++) {
+                day.counts[t].add(buffer.getLong());
+            }
+        }
+        return checkpointSequence;
+    }
+
+    // Moving on to a new day drops the days that fell out of the retained range
+    private static Day dayFor(long day) {
+        Day totals = days.computeIfAbsent(day, Day::new);
+        synchronized (days) {
+            Day current = today;
+            if (current == null || day > current.day) {
+                today = totals;
+                days.keySet().removeIf(held -> held <= day - RETAINED_DAYS);
+            }
+        }
+        return totals;
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Runs a cluster of ledger nodes on this machine, each an AtmServer in its own process and
+ * directory under cluster/, talking over loopback. It creates accounts on every node, runs
+ * random transfers between them from several clients, kills one node partway through and
+ * starts it again, then waits for every cross-node transfer to finish and checks that no
+ * money was created or lost.
+ *
+ * Run with: java LocalCluster [nodes] [accountsPerNode] [transfersPerClient] [clients] [basePort]
+ */
+public class LocalCluster {
+    private static final String PIN = "123456";
+    private static final long OPENING_BALANCE = 100_000; // $1,000.00 in cents
+
+    private final int nodeCount;
+    private final int basePort;
+    private final String secret = Long.toHexString(new SecureRandom().nextLong()); // Shared by the nodes of this run
+    private final Process[] processes;
+    private final int[][] accountIds;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        int accountsPerNode = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        int transfersPerClient = (args.length > 2) ? Integer.parseInt(args[2]) : 2_000;
+        int clients = (args.length > 3) ? Integer.parseInt(args[3]) : 8;
+        int basePort = (args.length > 4) ? Integer.parseInt(args[4]) : 6000;
+
+        LocalCluster cluster = new LocalCluster(nodes, accountsPerNode, basePort);
+        try {
+            cluster.run(transfersPerClient, clients);
+        } finally {
+            cluster.stopAll();
+        }
+    }
+
+    private LocalCluster(int nodeCount, int accountsPerNode, int basePort) {
+        this.nodeCount = nodeCount;
+        this.basePort = basePort;
+        this.processes = new Process[nodeCount];
+        this.accountIds = new int[nodeCount][accountsPerNode];
+    }
+
+    private void run(int transfersPerClient, int clients) throws Exception {
+        for (int node = 0; node < nodeCount; node++) {
+            clearDirectory(nodeDirectory(node));
+            start(node);
+        }
+        createAccounts();
+        long expectedTotal = (long) nodeCount * accountIds[0].length * OPENING_BALANCE;
+
+        long start = System.nanoTime();
+        Thread[] workers = new Thread[clients];
+        for (int i = 0; i < clients; i++) {
+            long seed = i;
+            workers[i] = new Thread(() -> transfers(new SplittableRandom(seed), transfersPerClient), "cluster-client-" + i);
+            workers[i].start();
+        }
+
+        // Kill the last node without letting it shut down cleanly, then bring it back
+        long total = (long) clients * transfersPerClient;
+        while (completed.get() + refused.get() + failed.get() < total / 3) {
+            Thread.sleep(10);
+        }
+        int victim = nodeCount - 1;
+        System.out.println("Killing node " + victim);
+        processes[victim].destroyForcibly().waitFor();
+        Thread.sleep(2000);
+        System.out.println("Restarting node " + victim);
+        start(victim);
+
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%,d transfers in %.1fs: %,d completed, %,d refused, %,d failed while a node was down%n",
+                total, seconds, completed.get(), refused.get(), failed.get());
+
+        awaitSettled();
+        long actualTotal = totalBalance();
+        System.out.printf("Total balance: expected %s, actual %s -> %s%n", Money.format(expectedTotal),
+                Money.format(actualTotal), (expectedTotal == actualTotal) ? "OK" : "MISMATCH");
+        if (expectedTotal != actualTotal) {
+            System.exit(1);
+        }
+    }
+
+    private void start(int node) throws IOException, InterruptedException {
+        StringBuilder nodes = new StringBuilder();
+        for (int i = 0; i < nodeCount; i++) {
+            nodes.append((i == 0) ? "" : ",").append("127.0.0.1:").append(basePort + i);
+        }
+
+        Path directory = nodeDirectory(node);
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        processes[node] = new ProcessBuilder(java, "-cp", absoluteClassPath(),
+                "-Datm.cluster.nodes=" + nodes, "-Datm.cluster.node=" + node, "-Datm.cluster.secret=" + secret,
+                "-Datm.pin.iterations=1000", "-Datm.journal.checkpointIntervalSeconds=2",
+                "AtmServer", String.valueOf(basePort + node))
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(directory.resolve("server.log").toFile()))
+                .start();
+
+        // Ready once it accepts connections
+        for (int attempt = 0; ; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", basePort + node));
+                return;
+            } catch (IOException e) {
+                if (attempt == 300 || !processes[node].isAlive()) {
+                    throw new IOException("Node " + node + " did not start, see " + directory.resolve("server.log"));
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void stopAll() throws InterruptedException {
+        for (Process process : processes) {
+            if (process != null) {
+                process.destroy(); // SIGTERM, so the node checkpoints on the way out
+            }
+        }
+        for (Process process : processes) {
+            if (process != null) {
+                process.waitFor();
+            }
+        }
+    }
+
+    private void createAccounts() throws IOException {
+        for (int node = 0; node < nodeCount; node++) {
+            try (Client client = new Client(basePort + node)) {
+                for (int i = 0; i < accountIds[node].length; i++) {
+                    String response = client.request("CREATE " + PIN + " " + Money.format(OPENING_BALANCE) + " NODE" + node + " ACCOUNT" + i);
+                    accountIds[node][i] = Integer.parseInt(response.substring(3));
+                }
+            }
+        }
+    }
+
+    private void transfers(SplittableRandom random, int count) {
+        Client[] clients = new Client[nodeCount];
+        for (int i = 0; i < count; i++) {
+            int senderNode = random.nextInt(nodeCount);
+            int sender = accountIds[senderNode][random.nextInt(accountIds[senderNode].length)];
+            int recipientNode = random.nextInt(nodeCount);
+            int recipient = accountIds[recipientNode][random.nextInt(accountIds[recipientNode].length)];
+            long amount = 100 + random.nextInt(900);
+            if (sender == recipient) {
+                i--;
+                continue;
+            }
+
+            try {
+                if (clients[senderNode] == null) {
+                    clients[senderNode] = new Client(basePort + senderNode);
+                }
+                Client client = clients[senderNode];
+                client.expectOk("LOGIN " + sender);
+                client.expectOk("PIN " + PIN);
+                if (client.request("TRANSFER " + recipient + " " + Money.format(amount)).startsWith("OK")) {
+                    completed.incrementAndGet();
+                } else {
+                    refused.incrementAndGet(); // Insufficient balance, or the recipient's node is down
+                }
+            } catch (IOException e) {
+                failed.incrementAndGet(); // The sender's node is down
+                if (clients[senderNode] != null) {
+                    clients[senderNode].close();
+                    clients[senderNode] = null;
+                }
+            }
+        }
+
+        for (Client client : clients) {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    // Outcomes are re-sent every second until acknowledged, so this only has to wait a few rounds
+    private void awaitSettled() throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < 60; attempt++) {
+            long pending = 0;
+            for (int node = 0; node < nodeCount; node++) {
+                try (Client client = new Client(basePort + node)) {
+                    pending += Long.parseLong(client.request("PENDING").substring(3));
+                }
+            }
+            if (pending == 0) {
+                return;
+            }
+            System.out.println(pending + " transfers still in flight");
+            Thread.sleep(1000);
+        }
+    }
+
+    private long totalBalance() throws IOException {
+        long total = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            try (Client client = new Client(basePort + node)) {
+                for (int accountId : accountIds[node]) {
+                    client.expectOk("LOGIN " + accountId);
+                    client.expectOk("PIN " + PIN);
+                    total += Money.parse(client.request("BALANCE").substring(3));
+                }
+            }
+        }
+        return total;
+    }
+
+    // The nodes run in their own directories, so a relative class path would no longer resolve
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.append((classPath.length() == 0) ? "" : File.pathSeparator).append(new File(entry).getAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    private static Path nodeDirectory(int node) {
+        return Paths.get("cluster", "node-" + node);
+    }
+
+    // Every run starts from empty nodes, only the files a node writes are removed
+    private static void clearDirectory(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.isRegularFile(file)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private static class Client implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+
+        Client(int port) throws IOException {
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        String request(String line) throws IOException {
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            String response = reader.readLine();
+            if (response == null) {
+                throw new IOException("Node closed the connection.");
+            }
+            return response;
+        }
+
+        void expectOk(String line) throws IOException {
+            String response = request(line);
+            if (!response.startsWith("OK")) {
+                throw new IOException(line + " failed: " + response);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counts failed PIN attempts per account and locks the account out for a while once there
+ * are too many. Each account with recent failures costs one map entry holding a single
+ * packed long: the failure count in the top 16 bits and the lockout end time in the low 48.
+ * Accounts without failures cost nothing.
+ */
+public class LoginThrottle {
+    private static final int TIME_BITS = 48;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+    private final int maxFailures;
+    private final long lockoutMillis;
+    private final ConcurrentHashMap<Integer, Long> failures = new ConcurrentHashMap<>();
+
+    public LoginThrottle(int maxFailures, long lockoutMillis) {
+        this.maxFailures = maxFailures;
+        this.lockoutMillis = lockoutMillis;
+    }
+
+    /**
+     * Checked before any PIN hashing, so attempts on a locked account cost a map lookup.
+     */
+    public boolean isLocked(int accountId) {
+        Long state = failures.get(accountId);
+        return state != null && (state & TIME_MASK) > System.currentTimeMillis();
+    }
+
+    public void recordFailure(int accountId) {
+        long now = System.currentTimeMillis();
+        failures.compute(accountId, (id, state) -> {
+            // A lockout that has run out starts the count again
+            int count = (state == null || ((state & TIME_MASK) != 0 && (state & TIME_MASK) <= now))
+                    ? 1 : (int) (state >>> TIME_BITS) + 1;
+            long lockedUntil = (count >= maxFailures) ? now + lockoutMillis : 0;
+            return ((long) Math.min(count, 0xFFFF) << TIME_BITS) | lockedUntil;
+        });
+    }
+
+    public void recordSuccess(int accountId) {
+        failures.remove(accountId);
+    }
+}
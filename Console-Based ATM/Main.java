@@ -1,13 +1,42 @@
-import java.util.Scanner;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.NoSuchElementException;
 
 public class Main {
-    static Scanner scanner = new Scanner(System.in);
-    public static void main(String[] args) {
+    static ConsoleIO console = new ConsoleIO(System.in, new FileOutputStream(FileDescriptor.out));
+
+    /**
+     * Runs the menus on the console, or replays the answers in the file given as the only
+     * argument, as if they were typed.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            console = new ConsoleIO(Files.newInputStream(Paths.get(args[0])), new FileOutputStream(FileDescriptor.out));
+        }
+        try {
+            run();
+        } catch (NoSuchElementException e) {
+            console.println("\nThe input has ended.");
+        }
+
+        BankAccount.saveAccounts();
+        console.close();
+    }
+
+    /**
+     * Shows the main menu until the user exits.
+     */
+    static void run() {
         boolean stop = false;
         do {
             displayMenu();
 
-            int choice = scanner.nextInt();
+            int choice = console.nextInt();
             switch (choice) {
                 // Case for account creation
                 case 1:
@@ -19,14 +48,14 @@ public class Main {
                     // Login prompt
                     BankAccount account = getAccount();
                     if (account == null) {
-                        System.out.println("Login cancelled, returning to main menu.");
+                        console.println("Login cancelled, returning to main menu.");
                         break;
                     }
 
                     // Security validation (pin)
                     boolean isSuccessful = authenticateAccountPin(account);
                     if (!isSuccessful) {
-                        System.out.println("Authentication cancelled, returning to main menu.");
+                        console.println("Authentication cancelled, returning to main menu.");
                         break;
                     }
 
@@ -34,7 +63,7 @@ public class Main {
                     while (true) {
                         displayTransactionMenu();
 
-                        int transactionChoice = scanner.nextInt();
+                        int transactionChoice = console.nextInt();
                         switch (transactionChoice) {
                             // Case for deposit
                             case 1:
@@ -66,15 +95,20 @@ public class Main {
                             case 5:
                                 transactionHistory(account);
                                 break;
+
+                            // Case for this month's statement
+                            case 6:
+                                monthlyStatement(account);
+                                break;
                                 
                             // Case for exiting from the transaction menu
                             default:
-                                System.out.println("Transaction cancelled, returning to main menu.");
+                                console.println("Transaction cancelled, returning to main menu.");
                                 break TRANSACTION_PROCESS;
                         } 
                         
-                        System.out.print("Do you want to perform another transaction? (1-Yes, 0-No): ");
-                        if (scanner.nextInt() == 0) {
+                        console.print("Do you want to perform another transaction? (1-Yes, 0-No): ");
+                        if (console.nextInt() == 0) {
                             break;
                         }
                     }
@@ -82,23 +116,20 @@ public class Main {
 
                 // Case for exiting the ATM system
                 case 3:
-                    System.out.println("\nThank you for using the banking system!");
+                    console.println("\nThank you for using the banking system!");
                     stop = true;
                     break;
 
                 // Default case for invalid choice
                 default:
-                    System.out.println("Invalid choice.");
+                    console.println("Invalid choice.");
                     break;
             }
         } while (!stop);
-
-        BankAccount.saveAccounts();
-        scanner.close();
     }
 
     public static void displayMenu() {
-        System.out.print(
+        console.print(
             "\n- - - MAIN MENU - - - \n" +
             "1. Create an Account\n" +
             "2. Perform a Transaction\n" +
@@ -108,20 +139,21 @@ public class Main {
     }
 
     public static void displayTransactionMenu() {
-        System.out.print(
+        console.print(
             "\n- - SELECT YOUR TRANSACTION - - \n" +
             "1. Deposit\n" +
             "2. Withdrawal\n" +
             "3. Transfer\n" +
             "4. Balance Inquiry\n" +
             "5. Transaction History\n" +
-            "6. Cancel\n" +
+            "6. Monthly Statement\n" +
+            "7. Cancel\n" +
             "Enter your choice: "
         );
     }
 
     public static void displayAccountDetails(BankAccount account) {
-        System.out.println(
+        console.println(
             "\nAccount has been successfully created!\n" + 
             "- - - Account Details - - -\n" +
             "Account ID: " + account.getAccountId() + "\n" +
@@ -131,18 +163,18 @@ public class Main {
     }
 
     public static void createAccount() {
-        scanner.nextLine();
+        console.nextLine();
 
-        System.out.print("\nAccount Name: ");
-        String name = scanner.nextLine().toUpperCase();
-        System.out.print("Account Pin (6-digit): ");
+        console.print("\nAccount Name: ");
+        String name = console.nextLine().toUpperCase();
+        console.print("Account Pin (6-digit): ");
         String pin;
-        while (!isPinValid(pin = scanner.next())) {
-            System.out.println("Invalid pin combination, please try again.");
-            System.out.print("Account Pin (6-digit): ");
+        while (!isPinValid(pin = console.next())) {
+            console.println("Invalid pin combination, please try again.");
+            console.print("Account Pin (6-digit): ");
         }
-        System.out.print("Initial Deposit: ");
-        double amount = scanner.nextDouble();
+        console.print("Initial Deposit: ");
+        long amount = readAmount();
 
         BankAccount newAccount = new BankAccount(name, pin, amount);
 
@@ -157,27 +189,30 @@ public class Main {
      * @return true if the transaction was valid and successful, false otherwise.
      */
     public static boolean deposit(BankAccount account) {
-        double amount;
+        long amount;
+        long requestId = RequestCache.newRequestId(); // Identifies this deposit through retries, so it can't be applied twice
         // Prompts the user for the amount until the transaction is valid or cancelled 
         while (true) {
-            System.out.print("\nEnter Deposit Amount: ");
-            amount = scanner.nextDouble();
+            console.print("\nEnter Deposit Amount: ");
+            amount = readAmount();
     
-            System.out.printf("You are depositing an amount of $%,.2f.\n", amount);
-            System.out.print("(1-Confirm, 0-Cancel): ");
-            if (scanner.nextInt() == 1) {
-                try {
-                    account.deposit(amount);
-                    System.out.printf("You have successfully deposited an amount of $%,.2f.\n", amount);
+            console.print("You are depositing an amount of $").printAmount(amount).print(" (reference ").print(requestId).println(").");
+            console.print("(1-Confirm, 0-Cancel): ");
+            if (console.nextInt() == 1) {
+                OperationResult result = account.deposit(requestId, amount);
+                if (result.isOk()) {
+                    console.print("You have successfully deposited an amount of $").printAmount(amount).println(".");
                     return true; // Transaction is valid
-                } catch (IllegalArgumentException e) {
-                    System.out.println(e.getMessage()); // Amount is negative
+                }
+                console.println(result.getMessage()); // E.g. amount is negative
+                if (result != OperationResult.REQUEST_IN_PROGRESS) {
+                    requestId = RequestCache.newRequestId(); // This one has its outcome, another try is a new request
                 }
             }
 
             // Prompts the user for retry if previous transaction was invalid or cancelled
-            System.out.print("Do you wish to deposit another amount? (1-Yes, 0-No): ");
-            if (scanner.nextInt() == 0) {
+            console.print("Do you wish to deposit another amount? (1-Yes, 0-No): ");
+            if (console.nextInt() == 0) {
                 return false; // Transaction cancelled
             }
         }
@@ -191,29 +226,30 @@ public class Main {
      * @return true if the transaction was valid and successful, false otherwise.
      */
     public static boolean withdraw(BankAccount account) {
-        double amount;
+        long amount;
+        long requestId = RequestCache.newRequestId(); // Identifies this withdrawal through retries, so it can't be applied twice
         // Prompts the user for the amount until the transaction is valid or cancelled
         while (true) {
-            System.out.print("\nEnter Withdrawal Amount: ");
-            amount = scanner.nextDouble();
-
-            System.out.printf("You are withdrawing an amount of $%,.2f.\n", amount);
-            System.out.print("(1-Confirm, 0-Cancel): ");
-            if (scanner.nextInt() == 1) {
-                try {
-                    account.withdraw(amount);
-                    System.out.printf("You have successfully withdrew an amount of $%,.2f.\n", amount);
+            console.print("\nEnter Withdrawal Amount: ");
+            amount = readAmount();
+
+            console.print("You are withdrawing an amount of $").printAmount(amount).print(" (reference ").print(requestId).println(").");
+            console.print("(1-Confirm, 0-Cancel): ");
+            if (console.nextInt() == 1) {
+                OperationResult result = account.withdraw(requestId, amount);
+                if (result.isOk()) {
+                    console.print("You have successfully withdrew an amount of $").printAmount(amount).println(".");
                     return true; // Transaction is valid
-                } catch (IllegalArgumentException e) {
-                    System.out.println(e.getMessage()); // Amount is negative
-                } catch (IllegalStateException e) {
-                    System.out.println(e.getMessage()); // Amount is greater than the account's current balance
+                }
+                console.println(result.getMessage()); // E.g. amount is greater than the account's current balance
+                if (result != OperationResult.REQUEST_IN_PROGRESS) {
+                    requestId = RequestCache.newRequestId(); // This one has its outcome, another try is a new request
                 }
             }
 
             // Prompts the user for retry if previous transaction was invalid or cancelled
-            System.out.print("Do you wish to withdraw another amount? (1-Yes, 0-No): ");
-            if (scanner.nextInt() == 0) {
+            console.print("Do you wish to withdraw another amount? (1-Yes, 0-No): ");
+            if (console.nextInt() == 0) {
                 return false; // Transaction cancelled
             }
         }
@@ -229,35 +265,33 @@ public class Main {
      */
     public static boolean transfer(BankAccount account) {
         int accountId;
-        double amount;
+        long amount;
+        long requestId = RequestCache.newRequestId(); // Identifies this transfer through retries, so it can't be applied twice
         // Prompts the user for the amount until the transaction is valid or cancelled
         while (true) {
-            System.out.print("\nEnter Recepient Account ID: "); // ID of the receiving account object
-            accountId = scanner.nextInt();
-            System.out.print("Enter Transfer Amount: ");
-            amount = scanner.nextDouble();
-
-            System.out.printf("You are transferring an amount of $%,.2f to an account with an ID of %d.\n", amount, accountId);
-            System.out.print("(1-Confirm, 0-Cancel): ");
-            if (scanner.nextInt() == 1) {
-                try {
-                    account.transfer(accountId, amount);
-                    System.out.printf("You have succesfuly transferred an amount of $%,.2f to an account with an ID of %d.\n", amount, accountId);
+            console.print("\nEnter Recepient Account ID: "); // ID of the receiving account object
+            accountId = console.nextInt();
+            console.print("Enter Transfer Amount: ");
+            amount = readAmount();
+
+            console.print("You are transferring an amount of $").printAmount(amount).print(" to an account with an ID of ")
+                    .print(accountId).print(" (reference ").print(requestId).println(").");
+            console.print("(1-Confirm, 0-Cancel): ");
+            if (console.nextInt() == 1) {
+                OperationResult result = account.transfer(requestId, accountId, amount);
+                if (result.isOk()) {
+                    console.print("You have succesfuly transferred an amount of $").printAmount(amount).print(" to an account with an ID of ").print(accountId).println(".");
                     return true; // Transaction is valid
-                } catch (IllegalAccessError e) {
-                    System.out.println(e.getMessage()); // Attempt to transfer to own account
-                } catch (NullPointerException e) {
-                    System.out.println(e.getMessage()); // Recepient account ID is invalid or does not exist
-                } catch (IllegalArgumentException e) {
-                    System.out.println(e.getMessage()); // Amount is negative
-                } catch (IllegalStateException e) {
-                    System.out.println(e.getMessage()); // Amount is greater than the account's current balance
+                }
+                console.println(result.getMessage()); // E.g. own account, or the recepient account ID does not exist
+                if (result != OperationResult.REQUEST_IN_PROGRESS) {
+                    requestId = RequestCache.newRequestId(); // This one has its outcome, another try is a new request
                 }
             }
 
             // Prompts the user for retry if previous transaction was invalid or cancelled
-            System.out.print("Do you wish to do another transfer? (1-Yes, 0-No): ");
-            if (scanner.nextInt() == 0) {
+            console.print("Do you wish to do another transfer? (1-Yes, 0-No): ");
+            if (console.nextInt() == 0) {
                 return false; // Transaction cancelled
             }
         }
@@ -269,7 +303,7 @@ public class Main {
      * @param account The account for which to check the balance.
      */
     public static void balanceInquiry(BankAccount account) {
-        System.out.printf("\nYou account's current balance is $%,.2f.\n", account.balanceInquiry());
+        console.print("\nYou account's current balance is $").printAmount(account.balanceInquiry()).println(".");
     }
 
     /**
@@ -278,43 +312,86 @@ public class Main {
      * @param account The account for which to check the transaction history.
      */
     public static void transactionHistory(BankAccount account) {
-        System.out.println("\n" + account.displayTransactionHistory());
+        console.println("\n" + account.displayTransactionHistory());
+
+        // Older pages are only read from the history archive when asked for
+        for (int page = 1; (long) page * BankAccount.HISTORY_PAGE_SIZE < account.getTransactionCount(); page++) {
+            console.print("Do you want to see older transactions? (1-Yes, 0-No): ");
+            if (console.nextInt() != 1) {
+                break;
+            }
+            console.println("\n" + account.displayTransactionHistory(BankAccount.HISTORY_PAGE_SIZE, page));
+        }
+    }
+
+    /**
+     * This method prints the totals of the account object for the current month.
+     * 
+     * @param account The account for which to print the statement.
+     */
+    public static void monthlyStatement(BankAccount account) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        console.println("\n" + account.statement(today.withDayOfMonth(1), today));
     }
 
     public static BankAccount getAccount() {
         BankAccount account;
-        System.out.print("\nEnter Account ID: ");
+        console.print("\nEnter Account ID: ");
         // Prompts the user for an account ID until it's valid or attempt is cancelled
-        while ((account = BankAccount.getBankAccount(scanner.nextInt())) == null) {
-            System.out.println("Invalid, the account id does not exist.");
-            System.out.print("Do you want to try again? (1-Yes, 0-No): ");
+        while ((account = BankAccount.getBankAccount(console.nextInt())) == null) {
+            console.println("Invalid, the account id does not exist.");
+            console.print("Do you want to try again? (1-Yes, 0-No): ");
 
-            if (scanner.nextInt() == 0) {
+            if (console.nextInt() == 0) {
                 return null; // Login attempt cancelled
             }
 
-            System.out.print("Enter Account ID: ");
+            console.print("Enter Account ID: ");
         }
         return account; // Valid account found
     }
 
     public static boolean authenticateAccountPin(BankAccount account) {
-        System.out.print("\nEnter PIN Number: ");
-        // Prompts the user for PIN until it's correct or attempt is cancelled
-        while (!account.isPinValid(scanner.next())) {
-            System.out.println("Invalid pin.");
-            System.out.print("Do you want to try again? (1-Yes, 0-No): ");
+        if (account.isLocked()) {
+            console.println("\nToo many invalid pins, this account is locked. Please try again later.");
+            return false;
+        }
 
-            if (scanner.nextInt() == 0) {
+        console.print("\nEnter PIN Number: ");
+        // Prompts the user for PIN until it's correct, the account locks or attempt is cancelled
+        while (!account.isPinValid(console.next())) {
+            if (account.isLocked()) {
+                console.println("Too many invalid pins, this account is locked. Please try again later.");
+                return false;
+            }
+            console.println("Invalid pin.");
+            console.print("Do you want to try again? (1-Yes, 0-No): ");
+
+            if (console.nextInt() == 0) {
                 return false; // PIN Authentication cancelled
             }
 
-            System.out.print("Enter PIN Number: ");
+            console.print("Enter PIN Number: ");
         }
         return true; // PIN is correct
     }
 
-    private static boolean isPinValid(String pin) {
+    /**
+     * Reads an amount like "1,250.50" straight into cents, prompting again until it is valid.
+     *
+     * @return The amount, in cents.
+     */
+    private static long readAmount() {
+        while (true) {
+            try {
+                return console.nextAmount();
+            } catch (NumberFormatException e) {
+                console.print("Invalid amount, please enter a number with up to two decimals: ");
+            }
+        }
+    }
+
+    static boolean isPinValid(String pin) {
         // Checks if the pin length is valid
         if (pin.length() != 6) {
             return false;
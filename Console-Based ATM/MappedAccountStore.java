@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An account store backed by a memory-mapped file of fixed-width records, one slot per
+ * account ID. Opening the store reads nothing but the header, and an account is only
+ * materialized when it is looked up, so startup time doesn't grow with the number of accounts.
+ *
+ * The variable-length parts of an account (its name and encoded transaction history) live in a
+ * separate append-only heap file that the fixed-width record points into.
+ *
+ * Each slot holds two copies of the record, each stamped with the generation of the checkpoint
+ * that wrote it. A checkpoint writes the copy that isn't current, forces the heap and the
+ * records, and only then stamps its generation and journal sequence in the header, so a
+ * process that dies halfway leaves the copies of the last completed checkpoint untouched, and
+ * the journal replay starts from exactly the state it covers.
+ */
+public class MappedAccountStore {
+    private static final int MAGIC = 0x41544D53; // "ATMS"
+    private static final int VERSION = 4; // 2: histories are stored as structured entries, 3: PINs are hashed, 4: two copies per slot
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 128;
+    private static final int SLOT_SIZE = 2 * RECORD_SIZE;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Header layout
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_FIRST_ID = 8;
+    private static final int HEADER_CAPACITY = 12;
+    private static final int HEADER_CHECKPOINT = 16;
+    private static final int HEADER_GENERATION = 24; // Of the last completed checkpoint, 0 before the first
+
+    // Record layout
+    private static final int RECORD_FLAGS = 0;
+    private static final int RECORD_ACCOUNT_ID = 4;
+    private static final int RECORD_BALANCE = 8;        // Balance in minor units (cents)
+    private static final int RECORD_HEAP_OFFSET = 16;   // Offset of [name][history] in the heap file
+    private static final int RECORD_HISTORY_COUNT = 24; // Lifetime entry count of the stored history, to spot changes
+    private static final int RECORD_GENERATION = 28;    // Of the checkpoint that wrote the copy
+    private static final int RECORD_PIN = 36;           // Length-prefixed PinHasher hash
+    private static final int PIN_SIZE = 92;
+
+    private static final byte PRESENT = 1;
+
+    private final FileChannel recordChannel;
+    private final FileChannel heapChannel;
+    private MappedByteBuffer records;
+    private int firstId;
+    private int capacity;
+    private long generation; // Of the last completed checkpoint
+
+    /**
+     * @param recordFile The file of fixed-width account records.
+     * @param heapFile The file holding account names and transaction histories.
+     * @param firstId The lowest account ID the store will hold, it maps to slot 0.
+     */
+    public MappedAccountStore(Path recordFile, Path heapFile, int firstId) throws IOException {
+        this.recordChannel = FileChannel.open(recordFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.heapChannel = FileChannel.open(heapFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        if (recordChannel.size() == 0) {
+            this.firstId = firstId;
+            map(INITIAL_CAPACITY);
+            records.putInt(HEADER_MAGIC, MAGIC);
+            records.putInt(HEADER_VERSION, VERSION);
+            records.putInt(HEADER_FIRST_ID, firstId);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            recordChannel.read(header, 0);
+            if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != VERSION) {
+                throw new IOException(recordFile + " is not an account store.");
+            }
+            this.firstId = header.getInt(HEADER_FIRST_ID);
+            this.generation = header.getLong(HEADER_GENERATION);
+            map(header.getInt(HEADER_CAPACITY));
+        }
+    }
+
+    /**
+     * @return true until the first checkpoint completes, even if one got halfway.
+     */
+    public synchronized boolean isEmpty() {
+        return generation == 0;
+    }
+
+    /**
+     * Reads one account from its slot, or returns null if the store holds no such account.
+     */
+    public synchronized AccountRecord load(int accountId) throws IOException {
+        int slot = accountId - firstId;
+        if (slot < 0 || slot >= capacity) {
+            return null;
+        }
+
+        int base = current(slot);
+        if (base < 0) {
+            return null;
+        }
+
+        long balanceMinor = records.getLong(base + RECORD_BALANCE);
+        long heapOffset = records.getLong(base + RECORD_HEAP_OFFSET);
+        byte[] pinBytes = new byte[records.get(base + RECORD_PIN)];
+        records.get(base + RECORD_PIN + 1, pinBytes);
+
+        // The blob is [int length][name][int length][encoded history]
+        ByteBuffer blob = ByteBuffer.allocate(readLength(heapOffset));
+        readFully(blob, heapOffset + Integer.BYTES);
+        String accountName = new String(blob.array(), StandardCharsets.UTF_8);
+        long historyOffset = heapOffset + Integer.BYTES + blob.capacity();
+        blob = ByteBuffer.allocate(readLength(historyOffset));
+        readFully(blob, historyOffset + Integer.BYTES);
+        blob.flip();
+        TransactionHistory history = TransactionHistory.decode(blob);
+
+        return new AccountRecord(accountId, accountName, new String(pinBytes, StandardCharsets.UTF_8), balanceMinor, history);
+    }
+
+    /**
+     * Writes an account into the copy of its slot the next checkpoint() makes current. The name
+     * and history are only appended to the heap again when the history has changed since the
+     * last checkpoint, otherwise the new copy points at the same blob.
+     */
+    public synchronized void save(int accountId, String accountName, String pinHash, long balanceMinor, TransactionHistory history) throws IOException {
+        int slot = accountId - firstId;
+        if (slot < 0) {
+            throw new IllegalArgumentException("Account ID " + accountId + " is below the first ID of the store.");
+        }
+        if (slot >= capacity) {
+            map(Math.max(capacity * 2, slot + 1));
+        }
+
+        byte[] pinBytes = pinHash.getBytes(StandardCharsets.UTF_8);
+        if (pinBytes.length >= PIN_SIZE) {
+            throw new IllegalArgumentException("PIN hash does not fit in the account record.");
+        }
+
+        int current = current(slot);
+        // The other copy, whatever a checkpoint that never completed left in it is overwritten
+        int base = (current == HEADER_SIZE + slot * SLOT_SIZE + RECORD_SIZE) ? current - RECORD_SIZE
+                : HEADER_SIZE + slot * SLOT_SIZE + RECORD_SIZE;
+        int historyCount = (int) history.getTotalCount();
+        if (current >= 0 && records.getInt(current + RECORD_HISTORY_COUNT) == historyCount) {
+            records.putLong(base + RECORD_HEAP_OFFSET, records.getLong(current + RECORD_HEAP_OFFSET));
+        } else {
+            records.putLong(base + RECORD_HEAP_OFFSET, appendBlob(accountName, history));
+        }
+        records.putInt(base + RECORD_HISTORY_COUNT, historyCount);
+        records.put(base + RECORD_PIN, (byte) pinBytes.length);
+        records.put(base + RECORD_PIN + 1, pinBytes);
+        records.putInt(base + RECORD_ACCOUNT_ID, accountId);
+        records.putLong(base + RECORD_BALANCE, balanceMinor);
+        records.put(base + RECORD_FLAGS, PRESENT);
+        records.putLong(base + RECORD_GENERATION, generation + 1); // Last, so a copy cut short is never taken for a complete one
+    }
+
+    /**
+     * Forces heap and records to disk, then stamps the journal sequence they cover and makes the
+     * copies saved since the last checkpoint current.
+     */
+    public synchronized void checkpoint(long journalSequence) throws IOException {
+        heapChannel.force(false);
+        records.force();
+        records.putLong(HEADER_CHECKPOINT, journalSequence);
+        records.putLong(HEADER_GENERATION, generation + 1); // In the same sector as the sequence, so both change or neither
+        records.force();
+        generation++;
+    }
+
+    public synchronized long getCheckpointSequence() {
+        return records.getLong(HEADER_CHECKPOINT);
+    }
+
+    // The offset of the copy of the slot the last completed checkpoint wrote, or -1 if there is none
+    private int current(int slot) {
+        int latest = -1;
+        long latestGeneration = 0;
+        for (int base = HEADER_SIZE + slot * SLOT_SIZE; base < HEADER_SIZE + (slot + 1) * SLOT_SIZE; base += RECORD_SIZE) {
+            long copyGeneration = records.getLong(base + RECORD_GENERATION);
+            if (records.get(base + RECORD_FLAGS) == PRESENT && copyGeneration <= generation && copyGeneration > latestGeneration) {
+                latest = base;
+                latestGeneration = copyGeneration;
+            }
+        }
+        return latest;
+    }
+
+    private void map(int newCapacity) throws IOException {
+        records = recordChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        capacity = newCapacity;
+        records.putInt(HEADER_CAPACITY, capacity);
+    }
+
+    private long appendBlob(String accountName, TransactionHistory history) throws IOException {
+        byte[] nameBytes = accountName.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 2 + nameBytes.length + history.encodedSize());
+        buffer.putInt(nameBytes.length).put(nameBytes);
+        buffer.putInt(history.encodedSize());
+        history.encode(buffer);
+        buffer.flip();
+
+        long offset = heapChannel.size();
+        while (buffer.hasRemaining()) {
+            heapChannel.write(buffer, offset + buffer.position());
+        }
+        return offset;
+    }
+
+    private int readLength(long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        readFully(length, position);
+        return length.getInt(0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (heapChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Account heap file is truncated.");
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for the ledger operations, plus a count of rejected
+ * operations by cause and of retried requests answered from the RequestCache. Recording never allocates once a thread has recorded its first
+ * operation, and the hot path has no atomic instruction at all:
+ *
+ * - Every thread counts its operations in its own array, which only it writes. The report
+ *   adds the arrays up, and folds in those of threads that have ended.
+ * - Only one operation in atm.metrics.sampleEvery (64 by default) is timed, since reading
+ *   the clock twice costs far more than counting. A sample is plenty for the percentiles.
+ *   Samples go to striped LatencyHistograms.
+ *
+ * The numbers are served by the METRICS command of AtmServer and, with
+ * -Datm.metrics.dumpIntervalSeconds=N, written to metrics.txt every N seconds.
+ * -Datm.metrics=false turns recording off.
+ */
+public final class Metrics {
+    public enum Operation {
+        DEPOSIT, WITHDRAW, TRANSFER, GET_ACCOUNT, SAVE_ACCOUNTS, LOAD_ACCOUNTS, POST_CHUNK
+    }
+
+    private static final String DUMP_FILE = "metrics.txt";
+    private static final boolean ENABLED = !"false".equals(System.getProperty("atm.metrics"));
+    private static final int SAMPLE_MASK = Integer.highestOneBit(Math.max(1, Integer.getInteger("atm.metrics.sampleEvery", 64))) - 1;
+    private static final VarHandle COUNT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private static final ThreadLocal<ThreadCounts> threadCounts = ThreadLocal.withInitial(Metrics::register);
+    private static final ConcurrentLinkedQueue<ThreadCounts> liveThreadCounts = new ConcurrentLinkedQueue<>();
+    private static final long[] endedThreadCounts = new long[Operation.values().length]; // Guarded by itself
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private static final LongAdder[] rejections = new LongAdder[OperationResult.values().length]; // By result, OK unused
+    private static final LongAdder duplicateRequests = new LongAdder();
+    private static ScheduledExecutorService dumper;
+
+    static {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < rejections.length; i++) {
+            rejections[i] = new LongAdder();
+        }
+
+        long dumpIntervalSeconds = Long.getLong("atm.metrics.dumpIntervalSeconds", 0);
+        if (ENABLED && dumpIntervalSeconds > 0) {
+            startDumping(dumpIntervalSeconds);
+        }
+    }
+
+    private Metrics() {}
+
+    // The operation counts of one thread, written only by that thread
+    private static class ThreadCounts {
+        final WeakReference<Thread> owner = new WeakReference<>(Thread.currentThread());
+        final long[] counts = new long[Operation.values().length];
+    }
+
+    private static ThreadCounts register() {
+        ThreadCounts counts = new ThreadCounts();
+        liveThreadCounts.add(counts);
+        return counts;
+    }
+
+    /**
+     * Counts the operation.
+     *
+     * @return The value to pass to record() once the operation is done: the start time if this
+     *         operation is to be timed, otherwise 0.
+     */
+    public static long start(Operation operation) {
+        if (!ENABLED) {
+            return 0;
+        }
+
+        long[] counts = threadCounts.get().counts;
+        int i = operation.ordinal();
+        long count = counts[i];
+        COUNT.setOpaque(counts, i, count + 1); // Only this thread writes it, opaque just keeps it visible to the report
+        return ((count & SAMPLE_MASK) == 0) ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records how long the operation took, if start() chose to time it.
+     */
+    public static void record(Operation operation, long startNanos) {
+        if (startNanos != 0) {
+            latencies[operation.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * Records how long the operation took, and counts it by cause if it was rejected.
+     */
+    public static void record(Operation operation, long startNanos, OperationResult result) {
+        record(operation, startNanos);
+        if (ENABLED && !result.isOk()) {
+            rejections[result.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Counts a retried request answered from the RequestCache instead of being applied again.
+     */
+    public static void countDuplicateRequest() {
+        if (ENABLED) {
+            duplicateRequests.increment();
+        }
+    }
+
+    public static long getDuplicateRequests() {
+        return duplicateRequests.sum();
+    }
+
+    public static long getCount(Operation operation) {
+        int i = operation.ordinal();
+        synchronized (endedThreadCounts) {
+            long count = endedThreadCounts[i];
+            for (Iterator<ThreadCounts> iterator = liveThreadCounts.iterator(); iterator.hasNext(); ) {
+                ThreadCounts counts = iterator.next();
+                count += (long) COUNT.getOpaque(counts.counts, i);
+
+                Thread owner = counts.owner.get();
+                if (owner == null || !owner.isAlive()) {
+                    // The thread can't count anything more, so its counts move into the totals for good
+                    iterator.remove();
+                    for (int j = 0; j < endedThreadCounts.length; j++) {
+                        endedThreadCounts[j] += (long) COUNT.getOpaque(counts.counts, j);
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return The sampled latencies of the operation, in nanoseconds.
+     */
+    public static LatencyHistogram.Snapshot getLatencies(Operation operation) {
+        return latencies[operation.ordinal()].snapshot();
+    }
+
+    public static long getRejections(OperationResult cause) {
+        return rejections[cause.ordinal()].sum();
+    }
+
+    /**
+     * Renders every operation as a line of its count and latencies in microseconds, followed
+     * by the rejection counts.
+     */
+    public static String report() {
+        StringBuilder builder = new StringBuilder(1024);
+        builder.append("# ATM metrics at ").append(Instant.now()).append('\n');
+        builder.append(String.format("%-14s %12s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "mean_us", "p50_us", "p90_us", "p99_us", "p99.9_us", "max_us"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram.Snapshot snapshot = getLatencies(operation);
+            builder.append(String.format("%-14s %12d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    operation.name().toLowerCase(), getCount(operation), snapshot.getMean() / 1000,
+                    snapshot.getValueAtPercentile(50) / 1000.0, snapshot.getValueAtPercentile(90) / 1000.0,
+                    snapshot.getValueAtPercentile(99) / 1000.0, snapshot.getValueAtPercentile(99.9) / 1000.0,
+                    snapshot.getMax() / 1000.0));
+        }
+        builder.append(String.format("%-24s %12s%n", "rejection", "count"));
+        for (OperationResult cause : OperationResult.values()) {
+            if (cause.isOk()) {
+                continue;
+            }
+            builder.append(String.format("%-24s %12d%n", cause.name().toLowerCase(), getRejections(cause)));
+        }
+        builder.append(String.format("%-24s %12d%n", "duplicate_request", getDuplicateRequests()));
+        return builder.toString();
+    }
+
+    private static synchronized void startDumping(long intervalSeconds) {
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleWithFixedDelay(Metrics::dump, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Replaced atomically, so a reader never sees half a report
+    private static void dump() {
+        Path target = Paths.get(DUMP_FILE);
+        Path temporary = Paths.get(DUMP_FILE + ".tmp");
+        try {
+            Files.writeString(temporary, report(), StandardCharsets.UTF_8);
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Fixed-point money held as a long count of minor units (cents). The arithmetic is
+ * overflow-checked and allocation-free; amounts are only turned into text for display.
+ */
+public final class Money {
+    public static final int MINOR_PER_UNIT = 100;
+
+    private Money() {}
+
+    public static long add(long amountMinor, long otherMinor) {
+        return Math.addExact(amountMinor, otherMinor);
+    }
+
+    public static long subtract(long amountMinor, long otherMinor) {
+        return Math.subtractExact(amountMinor, otherMinor);
+    }
+
+    /**
+     * Parses an amount such as "1,250.5" or "-3" into minor units.
+     *
+     * @throws NumberFormatException If the text is not an amount with at most two decimals,
+     *                               or it does not fit in a long.
+     */
+    public static long parse(String text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses the amount in text[start, end), so callers splitting a line don't have to
+     * allocate a substring for it.
+     */
+    public static long parse(CharSequence text, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+            negative = text.charAt(i) == '-';
+            i++;
+        }
+
+        try {
+            long units = 0;
+            int digits = 0;
+            for (; i < end && text.charAt(i) != '.'; i++) {
+                char c = text.charAt(i);
+                if (c == ',') {
+                    continue; // Grouping separator
+                }
+                units = Math.addExact(Math.multiplyExact(units, 10), digit(text, start, end, c));
+                digits++;
+            }
+
+            long cents = 0;
+            int decimals = 0;
+            if (i < end) {
+                for (i++; i < end; i++) {
+                    if (++decimals > 2) {
+                        throw new NumberFormatException("Amount cannot have more than two decimals: " + text.subSequence(start, end));
+                    }
+                    cents = cents * 10 + digit(text, start, end, text.charAt(i));
+                }
+            }
+            if (digits == 0 && decimals == 0) {
+                throw new NumberFormatException("Not an amount: " + text.subSequence(start, end));
+            }
+            if (decimals == 1) {
+                cents *= 10;
+            }
+
+            long amountMinor = Math.addExact(Math.multiplyExact(units, MINOR_PER_UNIT), cents);
+            return negative ? -amountMinor : amountMinor;
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount is too large: " + text.subSequence(start, end));
+        }
+    }
+
+    /**
+     * Converts a double amount, only for reading data saved before balances were fixed-point.
+     */
+    public static long fromDouble(double amount) {
+        return Math.round(amount * MINOR_PER_UNIT);
+    }
+
+    /**
+     * Formats minor units with grouping and two decimals, e.g. 123456 as "1,234.56".
+     */
+    public static String format(long amountMinor) {
+        return appendTo(new StringBuilder(24), amountMinor).toString();
+    }
+
+    public static StringBuilder appendTo(StringBuilder builder, long amountMinor) {
+        if (amountMinor < 0) {
+            builder.append('-');
+        }
+        long units = Math.abs(amountMinor / MINOR_PER_UNIT);
+        int cents = (int) Math.abs(amountMinor % MINOR_PER_UNIT);
+
+        appendGrouped(builder, units);
+        builder.append('.');
+        if (cents < 10) {
+            builder.append('0');
+        }
+        return builder.append(cents);
+    }
+
+    private static void appendGrouped(StringBuilder builder, long units) {
+        if (units < 1000) {
+            builder.append(units);
+            return;
+        }
+
+        appendGrouped(builder, units / 1000);
+        int group = (int) (units % 1000);
+        builder.append(',');
+        if (group < 100) {
+            builder.append('0');
+        }
+        if (group < 10) {
+            builder.append('0');
+        }
+        builder.append(group);
+    }
+
+    private static int digit(CharSequence text, int start, int end, char c) {
+        if (c < '0' || c > '9') {
+            throw new NumberFormatException("Not an amount: " + text.subSequence(start, end));
+        }
+        return c - '0';
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * The outcome of a ledger operation. A rejection is an expected outcome rather than an
+ * error, so it is returned instead of thrown: the constants are shared, so a rejected
+ * operation allocates nothing and builds no stack trace.
+ */
+public enum OperationResult {
+    OK("OK"),
+    NEGATIVE_AMOUNT("Amount cannot be negative."),
+    INSUFFICIENT_FUNDS("Amount is greater than the current balance."),
+    UNKNOWN_RECIPIENT("Account ID does not exist."),
+    SELF_TRANSFER("Cannot transfer to own account."),
+    BALANCE_OVERFLOW("Amount would overflow the account balance."),
+    RECIPIENT_NODE_UNAVAILABLE("The recipient's bank node is unavailable, please try again later."),
+    RECIPIENT_NODE_REFUSED("The recipient's bank node refused the transfer."),
+    REQUEST_ID_REUSED("This request ID was already used for a different operation."),
+    REQUEST_IN_PROGRESS("This request is still being processed, please check again shortly.");
+
+    private final String message;
+
+    OperationResult(String message) {
+        this.message = message;
+    }
+
+    public boolean isOk() {
+        return this == OK;
+    }
+
+    /**
+     * @return The message shown to the customer.
+     */
+    public String getMessage() {
+        return message;
+    }
+}
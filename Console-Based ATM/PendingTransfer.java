@@ -0,0 +1,34 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A transfer between accounts on two ledger nodes that is still in flight. The sending node
+ * holds it from the moment the sender is debited until the receiving node has acknowledged
+ * the outcome; the receiving node holds it from its vote until the outcome arrives.
+ */
+public class PendingTransfer {
+    public static final byte PREPARED = 0;
+    public static final byte COMMITTED = 1;
+    public static final byte ABORTED = 2;
+
+    public final long transferId;
+    public final boolean outgoing;     // true on the sending node
+    public final int accountId;        // The account on this node
+    public final int counterpartyId;   // The account on the other node
+    public final long amount;          // In cents
+    public final long requestId;       // Of the sender's request, see RequestCache
+    volatile byte state = PREPARED;
+
+    // The journal records of the steps taken so far, carried over whenever the journal is truncated
+    final List<TransactionJournal.Record> records = new ArrayList<>(2);
+
+    public PendingTransfer(TransactionJournal.Record prepare) {
+        this.transferId = prepare.transferId;
+        this.outgoing = prepare.type == TransactionJournal.PREPARE_OUT;
+        this.accountId = prepare.accountId;
+        this.counterpartyId = prepare.counterpartyId;
+        this.amount = prepare.amount;
+        this.requestId = prepare.requestId;
+        this.records.add(prepare);
+    }
+}
@@ -0,0 +1,65 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.spec.KeySpec;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Hashes PINs with salted, iterated PBKDF2 so they are never stored in plaintext. A hash is
+ * kept as "pbkdf2$iterations$salt$hash", so raising the iteration count later doesn't
+ * invalidate PINs that were hashed before.
+ */
+public final class PinHasher {
+    private static final String PREFIX = "pbkdf2$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int ITERATIONS = Integer.getInteger("atm.pin.iterations", 100_000);
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private PinHasher() {}
+
+    public static String hash(String pin) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = pbkdf2(pin, salt, ITERATIONS);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PREFIX + ITERATIONS + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
+    }
+
+    /**
+     * Checks a PIN against a stored hash. The comparison takes the same time wherever the
+     * bytes differ, so it leaks nothing about how close the guess was.
+     */
+    public static boolean verify(String pin, String storedHash) {
+        String[] parts = storedHash.split("\\$");
+        if (parts.length != 4 || !storedHash.startsWith(PREFIX)) {
+            return false;
+        }
+
+        Base64.Decoder decoder = Base64.getDecoder();
+        byte[] salt = decoder.decode(parts[2]);
+        byte[] expected = decoder.decode(parts[3]);
+        byte[] actual = pbkdf2(pin, salt, Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * @return true if the value is already a hash, false for a PIN saved in plaintext by an older version.
+     */
+    public static boolean isHashed(String value) {
+        return value.startsWith(PREFIX);
+    }
+
+    private static byte[] pbkdf2(String pin, byte[] salt, int iterations) {
+        try {
+            KeySpec spec = new PBEKeySpec(pin.toCharArray(), salt, iterations, HASH_BITS);
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Posts interest or a fee to every account of this node in one run, such as month-end
+ * interest accrual or a maintenance fee. The node's account IDs are split into chunks that
+ * are posted in parallel on a ForkJoinPool, and each chunk is journaled as a single record,
+ * so it is applied completely or not at all.
+ *
+ * Progress is saved to postings.progress after every chunk. A run that was interrupted, by a
+ * crash or otherwise, is resumed by starting it again under the same name, and only the
+ * chunks not posted yet are posted. Finished runs are remembered, so none is posted twice.
+ * The run covers the accounts opened before it started; later ones wait for the next run.
+ *
+ * Run, e.g. from cron at month end, with:
+ *   java PostingEngine interest <runName> <basisPoints> [parallelism]
+ *   java PostingEngine fee <runName> <amount> [parallelism]
+ */
+public class PostingEngine {
+    private static final String PROGRESS_FILE = "postings.progress";
+    private static final int CHUNK_SIZE = Integer.getInteger("atm.posting.chunkSize", 16_384);
+
+    public enum Kind {
+        /**
+         * Credits the rate, in basis points of the balance, to every positive balance.
+         * Rounded down to the cent, so interest never creates money it didn't earn.
+         */
+        INTEREST(TransactionType.INTEREST) {
+            @Override
+            long amountFor(long balance, long basisPoints) {
+                if (balance <= 0) {
+                    return 0;
+                }
+                // Split so the multiplication can't overflow even for the largest balance
+                return balance / 10_000 * basisPoints + balance % 10_000 * basisPoints / 10_000;
+            }
+        },
+        /**
+         * Debits a fixed amount, or the whole balance if it is smaller, so no balance goes negative.
+         */
+        FEE(TransactionType.FEE) {
+            @Override
+            long amountFor(long balance, long fee) {
+                return Math.min(fee, Math.max(balance, 0));
+            }
+        };
+
+        private static final Kind[] VALUES = values();
+
+        private final TransactionType transactionType;
+
+        Kind(TransactionType transactionType) {
+            this.transactionType = transactionType;
+        }
+
+        /**
+         * @return The amount to post to an account with the balance, 0 to skip it.
+         */
+        abstract long amountFor(long balance, long parameter);
+
+        public boolean isCredit() {
+            return this == INTEREST;
+        }
+
+        public TransactionType getTransactionType() {
+            return transactionType;
+        }
+
+        public byte getCode() {
+            return (byte) ordinal();
+        }
+
+        public static Kind fromCode(int code) {
+            return VALUES[code];
+        }
+    }
+
+    /**
+     * What a call to run() did.
+     */
+    public static class Summary {
+        public final int chunks;
+        public final int chunksAlreadyPosted; // By an earlier, interrupted attempt at the run
+        public final long accountsPosted;     // By this call only
+
+        Summary(int chunks, int chunksAlreadyPosted, long accountsPosted) {
+            this.chunks = chunks;
+            this.chunksAlreadyPosted = chunksAlreadyPosted;
+            this.accountsPosted = accountsPosted;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: java PostingEngine <interest|fee> <runName> <basisPoints|amount> [parallelism]");
+            return;
+        }
+
+        Kind kind = Kind.valueOf(args[0].toUpperCase());
+        long parameter = (kind == Kind.INTEREST) ? Long.parseLong(args[2]) : Money.parse(args[2]);
+        int parallelism = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        Summary summary;
+        try {
+            summary = run(args[1], kind, parameter, parallelism);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Posted %s to %,d accounts in %,d chunks (%,d already posted) in %.2fs with %d threads%n",
+                args[1], summary.accountsPosted, summary.chunks, summary.chunksAlreadyPosted, seconds, parallelism);
+        BankAccount.saveAccounts();
+    }
+
+    /**
+     * Posts the run to every account of this node, or the part of it an earlier attempt didn't.
+     *
+     * @param runName Names the run, e.g. "interest-2026-10". Starting a run under the name of an
+     *                unfinished one resumes it.
+     * @param parameter The rate in basis points for INTEREST (0 to 10,000), the fee in cents for FEE.
+     * @throws IllegalArgumentException If the parameter is out of range.
+     * @throws IllegalStateException If the run was already posted, or another run is unfinished.
+     */
+    public static synchronized Summary run(String runName, Kind kind, long parameter, int parallelism)
+            throws InterruptedException {
+        if (runName.isBlank()) {
+            throw new IllegalArgumentException("Run name cannot be blank.");
+        }
+        if (parameter < 0 || (kind == Kind.INTEREST && parameter > 10_000)) {
+            throw new IllegalArgumentException("Rate must be between 0 and 10,000 basis points, and a fee cannot be negative.");
+        }
+
+        Progress progress = Progress.load();
+        for (String finishedRun : progress.finishedRuns) {
+            BankAccount.forgetPostings(finishedRun); // In case the process stopped right after finishing it
+        }
+        if (progress.finishedRuns.contains(runName)) {
+            throw new IllegalStateException("Run " + runName + " was already posted.");
+        }
+        if (progress.runName != null && !progress.runName.equals(runName)) {
+            throw new IllegalStateException("Run " + progress.runName + " is unfinished, start it again to resume it first.");
+        }
+        if (progress.runName == null) {
+            ShardMap shards = ShardMap.getInstance();
+            progress.start(runName, kind, parameter, shards.getFirstId(),
+                    UniqueIdGenerator.getInstance().peekNextUniqueId(), CHUNK_SIZE);
+        } else if (progress.kind != kind || progress.parameter != parameter) {
+            throw new IllegalStateException("Run " + runName + " was started as " + progress.kind + " " + progress.parameter + ".");
+        }
+
+        int chunks = progress.getChunkCount();
+        ArrayList<Callable<Integer>> pending = new ArrayList<>();
+        int alreadyPosted = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            // A chunk in the journal but not in the progress file was posted just before a crash,
+            // or just before saving the progress failed
+            if (!progress.done.get(chunk) && BankAccount.isPostingJournaled(runName, chunk)) {
+                progress.markDone(chunk);
+            }
+            if (progress.done.get(chunk)) {
+                alreadyPosted++;
+                continue;
+            }
+
+            int index = chunk;
+            int fromId = progress.firstId + chunk * progress.chunkSize;
+            int toId = (int) Math.min((long) fromId + progress.chunkSize, progress.endId);
+            pending.add(() -> BankAccount.postChunk(runName, kind, parameter, index, fromId, toId, () -> progress.markDone(index)));
+        }
+
+        long accountsPosted = 0;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            for (Future<Integer> result : pool.invokeAll(pending)) {
+                accountsPosted += result.get();
+            }
+        } catch (ExecutionException e) {
+            // The progress file keeps the chunks that made it, so the run can be resumed
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Run " + runName + " failed.", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        progress.finish();
+        BankAccount.forgetPostings(runName);
+        return new Summary(chunks, alreadyPosted, accountsPosted);
+    }
+
+    /**
+     * The runs finished so far, and which chunks of the current run are posted.
+     *
+     * File layout: [int magic][int count][finished run names][boolean running], then if running
+     * [run name][byte kind][long parameter][int firstId][int endId][int chunkSize][int length]
+     * [long[] of the posted chunks bitset], and finally [int crc32 of everything before it].
+     */
+    private static class Progress {
+        private static final int MAGIC = 0x41545050; // "ATPP"
+
+        final List<String> finishedRuns = new ArrayList<>();
+        String runName; // null when no run is unfinished
+        Kind kind;
+        long parameter;
+        int firstId;
+        int endId;
+        int chunkSize;
+        BitSet done = new BitSet();
+
+        static Progress load() {
+            Progress progress = new Progress();
+            Path path = Paths.get(PROGRESS_FILE);
+            if (!Files.exists(path)) {
+                return progress;
+            }
+
+            try {
+                byte[] bytes = Files.readAllBytes(path);
+                if (bytes.length < Integer.BYTES * 2) {
+                    throw new IOException(PROGRESS_FILE + " is truncated.");
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length - Integer.BYTES);
+                if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - Integer.BYTES)) {
+                    throw new IOException(PROGRESS_FILE + " fails its checksum.");
+                }
+
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                if (in.readInt() != MAGIC) {
+                    throw new IOException(PROGRESS_FILE + " is not a posting progress file.");
+                }
+                for (int i = in.readInt(); i > 0; i--) {
+                    progress.finishedRuns.add(in.readUTF());
+                }
+                if (in.readBoolean()) {
+                    progress.runName = in.readUTF();
+                    progress.kind = Kind.fromCode(in.readByte());
+                    progress.parameter = in.readLong();
+                    progress.firstId = in.readInt();
+                    progress.endId = in.readInt();
+                    progress.chunkSize = in.readInt();
+                    long[] words = new long[in.readInt()];
+                    for (int i = 0; i < words.length; i++) {
+                        words[i] = in.readLong();
+                    }
+                    progress.done = BitSet.valueOf(words);
+                }
+                return progress;
+            } catch (IOException e) {
+                // Guessing here could post a run twice, so refuse instead
+                throw new IllegalStateException("Could not read " + PROGRESS_FILE + ".", e);
+            }
+        }
+
+        void start(String runName, Kind kind, long parameter, int firstId, int endId, int chunkSize) {
+            this.runName = runName;
+            this.kind = kind;
+            this.parameter = parameter;
+            this.firstId = firstId;
+            this.endId = endId;
+            this.chunkSize = chunkSize;
+            this.done = new BitSet();
+            save();
+        }
+
+        int getChunkCount() {
+            return (int) (((long) endId - firstId + chunkSize - 1) / chunkSize);
+        }
+
+        synchronized void markDone(int chunk) {
+            done.set(chunk);
+            save();
+        }
+
+        void finish() {
+            finishedRuns.add(runName);
+            runName = null;
+            done = new BitSet();
+            save();
+        }
+
+        // Written to a temporary file, synced and renamed over the old one, so the file is never half-written
+        private synchronized void save() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeInt(MAGIC);
+                out.writeInt(finishedRuns.size());
+                for (String finishedRun : finishedRuns) {
+                    out.writeUTF(finishedRun);
+                }
+                out.writeBoolean(runName != null);
+                if (runName != null) {
+                    out.writeUTF(runName);
+                    out.writeByte(kind.getCode());
+                    out.writeLong(parameter);
+                    out.writeInt(firstId);
+                    out.writeInt(endId);
+                    out.writeInt(chunkSize);
+                    long[] words = done.toLongArray();
+                    out.writeInt(words.length);
+                    for (long word : words) {
+                        out.writeLong(word);
+                    }
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes.toByteArray());
+                out.writeInt((int) crc.getValue());
+
+                Path target = Paths.get(PROGRESS_FILE);
+                Path temporary = Paths.get(PROGRESS_FILE + ".tmp");
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not save the posting progress.", e);
+            }
+        }
+    }
+}
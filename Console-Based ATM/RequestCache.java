@@ -0,0 +1,448 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Remembers the outcome of every ledger operation sent with a request ID, so a client that
+ * retries after losing the answer gets the original outcome back instead of the operation
+ * being applied twice. Request IDs are chosen by the client and only need to be unique per
+ * account; 0 means the operation has none and is never deduplicated.
+ *
+ * An outcome is kept for atm.requests.windowMinutes (1440 by default) after the operation.
+ * The cache is bounded to atm.requests.capacity entries (250,000 by default), dropping the
+ * oldest ones first, so a retry older than that is treated as a new operation. Operations
+ * still in flight are never dropped, a retry of one would start it a second time, so a stripe
+ * grows past its share of the capacity while its oldest entry is in flight.
+ *
+ * The outcomes are saved to requests.bin with every checkpoint, and the request ID is journaled
+ * with every applied operation, so a restart forgets none of those. Rejections are not
+ * journaled: one after the last checkpoint is forgotten by a crash, and its retry is simply
+ * tried again, which is safe since nothing was applied.
+ *
+ * Entries are spread over stripes by key, each with its own lock, so operations on different
+ * accounts rarely wait for each other. A stripe keeps its entries in primitive arrays used as
+ * a ring in time order, indexed by an open-addressing table like IntHashIndex, so recording an
+ * outcome allocates nothing and the garbage collector has no objects to trace. Two requests
+ * with the same ID for the same account are already serialized by the account's lock, which
+ * BankAccount holds from lookup() to record().
+ */
+public class RequestCache {
+    public static final long NO_REQUEST = 0;
+
+    private static final int MAGIC = 0x41545251; // "ATRQ"
+    private static final int VERSION = 1;
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES + 1 + Integer.BYTES + Long.BYTES + Long.BYTES + 1;
+
+    private final long windowMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // Entries of one stripe, guarded by the stripe itself
+    private class Stripe {
+        private static final int EMPTY = -1;
+        private static final byte IN_FLIGHT = -1; // Result of a transfer with another node not decided yet
+        private static final byte REPLACED = -2;  // Result of an entry moved to the head, left in the ring until it is the oldest
+        private static final int INITIAL_LENGTH = 64;
+
+        final int capacity;
+
+        // The ring, oldest entry at (head - size) and the next one written at head
+        int[] accountIds;
+        long[] requestIds;
+        byte[] operations; // TransactionJournal record types, so a reused ID is told apart from a retry
+        int[] counterpartyIds;
+        long[] amounts;
+        long[] timestamps;
+        byte[] results;    // OperationResult ordinals
+        int head;
+        int size;          // Including REPLACED entries
+
+        int[] table;       // Ring index of the entry, or EMPTY, probed linearly
+        int mask;
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            allocate(Math.min(INITIAL_LENGTH, capacity));
+        }
+
+        // Ring index of the entry, or EMPTY
+        int find(int accountId, long requestId, int hash) {
+            int slot = hash & mask;
+            while (table[slot] != EMPTY) {
+                int index = table[slot];
+                if (requestIds[index] == requestId && accountIds[index] == accountId) {
+                    return index;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return EMPTY;
+        }
+
+        void put(int accountId, long requestId, int hash, byte operation, int counterpartyId, long amount,
+                 long timestamp, byte result) {
+            int index = find(accountId, requestId, hash);
+            if (index != EMPTY) {
+                // Moved to the head with its new timestamp, so the ring stays in time order
+                deleteSlot(slotOf(index, hash));
+                results[index] = REPLACED;
+            }
+
+            // Expired entries only go once they are the oldest, the ring is in time order. One in
+            // flight is moved to the head instead of dropped, so it doesn't hold up the others.
+            int requeued = 0;
+            while (size > requeued) {
+                int oldest = oldest();
+                if (results[oldest] != REPLACED && size < capacity && !isExpired(timestamps[oldest], timestamp)) {
+                    break;
+                }
+                if (results[oldest] == IN_FLIGHT) {
+                    requeueOldest();
+                    requeued++;
+                } else {
+                    removeOldest();
+                }
+            }
+            if (size == accountIds.length) {
+                allocate((size < capacity) ? Math.min(size * 2, capacity) : size * 2); // Past the capacity only when all are in flight
+            }
+            index = head;
+            head = (head + 1) % accountIds.length;
+            size++;
+            accountIds[index] = accountId;
+            requestIds[index] = requestId;
+            insertSlot(hash, index);
+            operations[index] = operation;
+            counterpartyIds[index] = counterpartyId;
+            amounts[index] = amount;
+            timestamps[index] = timestamp;
+            results[index] = result;
+        }
+
+        int oldest() {
+            return Math.floorMod(head - size, accountIds.length);
+        }
+
+        void removeOldest() {
+            int index = oldest();
+            if (results[index] != REPLACED) {
+                deleteSlot(slotOf(index, hash(accountIds[index], requestIds[index])));
+            }
+            size--;
+        }
+
+        // Moves the oldest entry to the head, keeping its timestamp
+        void requeueOldest() {
+            int index = oldest();
+            if (size == accountIds.length) {
+                head = (head + 1) % accountIds.length; // The ring is full, so the head is the oldest entry already
+                return;
+            }
+            int target = head;
+            accountIds[target] = accountIds[index];
+            requestIds[target] = requestIds[index];
+            operations[target] = operations[index];
+            counterpartyIds[target] = counterpartyIds[index];
+            amounts[target] = amounts[index];
+            timestamps[target] = timestamps[index];
+            results[target] = results[index];
+            table[slotOf(index, hash(accountIds[index], requestIds[index]))] = target;
+            head = (head + 1) % accountIds.length;
+            size++;
+            results[index] = REPLACED;
+            removeOldest();
+        }
+
+        // The table slot pointing at the ring index
+        int slotOf(int index, int hash) {
+            int slot = hash & mask;
+            while (table[slot] != index) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        void insertSlot(int hash, int index) {
+            int slot = hash & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = index;
+        }
+
+        // Backward-shift deletion, so the table never fills up with tombstones
+        void deleteSlot(int slot) {
+            int gap = slot;
+            int next = (gap + 1) & mask;
+            while (table[next] != EMPTY) {
+                int index = table[next];
+                int home = hash(accountIds[index], requestIds[index]) & mask;
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    table[gap] = index;
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table[gap] = EMPTY;
+        }
+
+        // Copies the ring oldest first into arrays of the given length, leaving out the REPLACED
+        // entries, and rebuilds the table
+        void allocate(int length) {
+            int[] oldAccountIds = accountIds;
+            long[] oldRequestIds = requestIds;
+            byte[] oldOperations = operations;
+            int[] oldCounterpartyIds = counterpartyIds;
+            long[] oldAmounts = amounts;
+            long[] oldTimestamps = timestamps;
+            byte[] oldResults = results;
+            int first = (size == 0) ? 0 : oldest();
+            int oldSize = size;
+
+            accountIds = new int[length];
+            requestIds = new long[length];
+            operations = new byte[length];
+            counterpartyIds = new int[length];
+            amounts = new long[length];
+            timestamps = new long[length];
+            results = new byte[length];
+            table = new int[Integer.highestOneBit(length) << 2]; // At most half full
+            Arrays.fill(table, EMPTY);
+            mask = table.length - 1;
+
+            size = 0;
+            for (int j = 0; j < oldSize; j++) {
+                int from = (first + j) % oldAccountIds.length;
+                if (oldResults[from] == REPLACED) {
+                    continue;
+                }
+                int i = size++;
+                accountIds[i] = oldAccountIds[from];
+                requestIds[i] = oldRequestIds[from];
+                operations[i] = oldOperations[from];
+                counterpartyIds[i] = oldCounterpartyIds[from];
+                amounts[i] = oldAmounts[from];
+                timestamps[i] = oldTimestamps[from];
+                results[i] = oldResults[from];
+                insertSlot(hash(accountIds[i], requestIds[i]), i);
+            }
+            head = size % length;
+        }
+
+        // Writes the finished entries still in the window, oldest first
+        int writeTo(ByteBuffer buffer, long now) {
+            int count = 0;
+            int first = oldest();
+            for (int i = 0; i < size; i++) {
+                int index = (first + i) % accountIds.length;
+                if (results[index] != IN_FLIGHT && results[index] != REPLACED && !isExpired(timestamps[index], now)) {
+                    buffer.putInt(accountIds[index]).putLong(requestIds[index]).put(operations[index])
+                          .putInt(counterpartyIds[index]).putLong(amounts[index]).putLong(timestamps[index])
+                          .put(results[index]);
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    public RequestCache(int maxEntries, long windowMillis) {
+        this.windowMillis = windowMillis;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxEntries / STRIPES));
+        }
+    }
+
+    /**
+     * @return A random request ID for a client that doesn't bring its own, never NO_REQUEST.
+     */
+    public static long newRequestId() {
+        long requestId;
+        do {
+            requestId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        } while (requestId == NO_REQUEST);
+        return requestId;
+    }
+
+    /**
+     * @param now The current time, which the caller reads anyway to timestamp the operation.
+     * @return The outcome of the earlier operation with this ID, REQUEST_ID_REUSED if that was a
+     *         different operation, REQUEST_IN_PROGRESS if it isn't finished yet, or null if the
+     *         ID is new and the operation should go ahead.
+     */
+    public OperationResult lookup(int accountId, long requestId, byte operation, int counterpartyId, long amount, long now) {
+        if (requestId == NO_REQUEST) {
+            return null;
+        }
+
+        int hash = hash(accountId, requestId);
+        Stripe stripe = stripeFor(hash);
+        OperationResult result;
+        synchronized (stripe) {
+            int index = stripe.find(accountId, requestId, hash);
+            if (index == Stripe.EMPTY || (stripe.results[index] != Stripe.IN_FLIGHT && isExpired(stripe.timestamps[index], now))) {
+                return null;
+            }
+            if (stripe.operations[index] != operation || stripe.counterpartyIds[index] != counterpartyId
+                    || stripe.amounts[index] != amount) {
+                result = OperationResult.REQUEST_ID_REUSED;
+            } else if (stripe.results[index] == Stripe.IN_FLIGHT) {
+                result = OperationResult.REQUEST_IN_PROGRESS;
+            } else {
+                result = OperationResult.values()[stripe.results[index]];
+            }
+        }
+        Metrics.countDuplicateRequest();
+        return result;
+    }
+
+    /**
+     * Remembers the outcome of an operation, replacing any earlier one with the same ID.
+     *
+     * @param timestamp When the operation took place, the window counts from it.
+     * @param result null for an operation that is still in flight, see complete().
+     */
+    public void record(int accountId, long requestId, byte operation, int counterpartyId, long amount,
+                       long timestamp, OperationResult result) {
+        if (requestId == NO_REQUEST) {
+            return;
+        }
+
+        int hash = hash(accountId, requestId);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            stripe.put(accountId, requestId, hash, operation, counterpartyId, amount, timestamp,
+                    (result == null) ? Stripe.IN_FLIGHT : (byte) result.ordinal());
+        }
+    }
+
+    /**
+     * Sets the outcome of an operation recorded while it was in flight.
+     */
+    public void complete(int accountId, long requestId, OperationResult result) {
+        if (requestId == NO_REQUEST) {
+            return;
+        }
+
+        int hash = hash(accountId, requestId);
+        Stripe stripe = stripeFor(hash);
+        synchronized (stripe) {
+            int index = stripe.find(accountId, requestId, hash);
+            if (index != Stripe.EMPTY) {
+                stripe.results[index] = (byte) result.ordinal();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Saves every finished outcome still in the window. Operations in flight are left out, the
+     * journal records of the unfinished transfer restore them on the next start.
+     * Written beside the file and renamed over it, so a crash leaves the old or the new file.
+     *
+     * File layout: [int magic][int version][int count] then per entry [int accountId]
+     * [long requestId][byte operation][int counterpartyId][long amount][long timestamp]
+     * [byte result ordinal], and [int crc32].
+     */
+    public void write(Path path) throws IOException {
+        long now = System.currentTimeMillis();
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES * 3 + size() * ENTRY_SIZE + Integer.BYTES);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(0);
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (buffer.remaining() < stripe.size * ENTRY_SIZE + Integer.BYTES) {
+                    // Entries were added since the size was taken, which only a concurrent operation can do
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2 + stripe.size * ENTRY_SIZE).put(buffer.flip());
+                }
+                count += stripe.writeTo(buffer, now);
+            }
+        }
+        buffer.putInt(Integer.BYTES * 2, count);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adds the outcomes saved in the file, skipping those that have left the window since.
+     * A missing file adds nothing.
+     *
+     * @throws IOException If the file cannot be read or fails its checksum.
+     */
+    public void read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.capacity() < Integer.BYTES * 4 || buffer.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not a request file.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.capacity() - Integer.BYTES);
+        if ((int) crc.getValue() != buffer.getInt(buffer.capacity() - Integer.BYTES)) {
+            throw new IOException(path + " fails its checksum.");
+        }
+
+        long now = System.currentTimeMillis();
+        buffer.position(Integer.BYTES * 2);
+        for (int i = buffer.getInt(); i > 0; i--) {
+            int accountId = buffer.getInt();
+            long requestId = buffer.getLong();
+            byte operation = buffer.get();
+            int counterpartyId = buffer.getInt();
+            long amount = buffer.getLong();
+            long timestamp = buffer.getLong();
+            byte result = buffer.get();
+            if (!isExpired(timestamp, now)) {
+                int hash = hash(accountId, requestId);
+                Stripe stripe = stripeFor(hash);
+                synchronized (stripe) {
+                    stripe.put(accountId, requestId, hash, operation, counterpartyId, amount, timestamp, result);
+                }
+            }
+        }
+    }
+
+    private boolean isExpired(long timestamp, long now) {
+        return timestamp + windowMillis <= now;
+    }
+
+    // The stripe is picked by the top bits, the table inside it is indexed by the low bits
+    private Stripe stripeFor(int hash) {
+        return stripes[hash >>> (Integer.SIZE - STRIPE_BITS)];
+    }
+
+    private static int hash(int accountId, long requestId) {
+        long h = (requestId ^ (accountId * 0xC2B2AE3D27D4EB4FL)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
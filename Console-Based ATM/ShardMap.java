@@ -0,0 +1,143 @@
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Which ledger node owns which accounts. Node i owns the account IDs
+ * [FIRST_ID + i * rangeSize, FIRST_ID + (i + 1) * rangeSize), so every node hands out new IDs
+ * from its own range without asking the others, and any node can route an ID without a lookup.
+ *
+ * Configured with -Datm.cluster.nodes=host:port,host:port,... and -Datm.cluster.node=<index of
+ * this process>. Without them there is a single node that owns every account.
+ *
+ * The nodes send each other the steps of cross-node transfers on a port of their own, the
+ * client port plus -Datm.cluster.peerPortOffset (1000 by default), and prove they are a node
+ * of the cluster with the secret they all share, -Datm.cluster.secret, which a cluster must have.
+ */
+public class ShardMap {
+    public static final int FIRST_ID = 1000;
+    private static final int DEFAULT_PEER_PORT_OFFSET = 1000;
+
+    private static final ShardMap instance = fromProperties();
+
+    private final InetSocketAddress[] nodes;
+    private final int localNode;
+    private final int rangeSize;
+    private final int peerPortOffset;
+    private final String secret;
+
+    public ShardMap(InetSocketAddress[] nodes, int localNode, int rangeSize) {
+        this(nodes, localNode, rangeSize, DEFAULT_PEER_PORT_OFFSET, null);
+    }
+
+    /**
+     * @param secret What the nodes prove to each other they are part of the cluster with.
+     */
+    public ShardMap(InetSocketAddress[] nodes, int localNode, int rangeSize, int peerPortOffset, String secret) {
+        if (localNode < 0 || localNode >= Math.max(nodes.length, 1)) {
+            throw new IllegalArgumentException("Node index " + localNode + " is not in the cluster.");
+        }
+        if (rangeSize <= 0 || (long) rangeSize * Math.max(nodes.length, 1) > Integer.MAX_VALUE - FIRST_ID) {
+            throw new IllegalArgumentException("Every node's ID range has to fit in an int.");
+        }
+        if (nodes.length > 1 && (secret == null || secret.isBlank())) {
+            throw new IllegalArgumentException("A cluster needs a secret for the nodes to prove themselves to each other.");
+        }
+        this.nodes = nodes;
+        this.localNode = localNode;
+        this.rangeSize = rangeSize;
+        this.peerPortOffset = peerPortOffset;
+        this.secret = secret;
+    }
+
+    private static ShardMap fromProperties() {
+        String nodeList = System.getProperty("atm.cluster.nodes");
+        if (nodeList == null || nodeList.isBlank()) {
+            return new ShardMap(new InetSocketAddress[0], 0, Integer.MAX_VALUE - FIRST_ID);
+        }
+
+        String[] addresses = nodeList.split(",");
+        InetSocketAddress[] nodes = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            String address = addresses[i].trim();
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected host:port in atm.cluster.nodes, got " + address);
+            }
+            nodes[i] = InetSocketAddress.createUnresolved(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        }
+        return new ShardMap(nodes, Integer.getInteger("atm.cluster.node", 0), Integer.getInteger("atm.cluster.rangeSize", 10_000_000),
+                Integer.getInteger("atm.cluster.peerPortOffset", DEFAULT_PEER_PORT_OFFSET), System.getProperty("atm.cluster.secret"));
+    }
+
+    public static ShardMap getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return true if accounts are spread over more than this process.
+     */
+    public boolean isClustered() {
+        return nodes.length > 1;
+    }
+
+    /**
+     * @return The index of the node owning the account ID, or -1 if no node can own it.
+     */
+    public int nodeFor(int accountId) {
+        if (accountId < FIRST_ID) {
+            return -1;
+        }
+        int node = (accountId - FIRST_ID) / rangeSize;
+        return (node < Math.max(nodes.length, 1)) ? node : -1;
+    }
+
+    public boolean isLocal(int accountId) {
+        return nodeFor(accountId) == localNode;
+    }
+
+    public int getLocalNode() {
+        return localNode;
+    }
+
+    public int getNodeCount() {
+        return Math.max(nodes.length, 1);
+    }
+
+    public InetSocketAddress getAddress(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * @return Where the node takes the transfer steps of the other nodes.
+     */
+    public InetSocketAddress getPeerAddress(int node) {
+        return InetSocketAddress.createUnresolved(nodes[node].getHostString(), nodes[node].getPort() + peerPortOffset);
+    }
+
+    /**
+     * @return true if the secret is the cluster's, compared in time independent of where they differ.
+     */
+    public boolean isSecret(String candidate) {
+        return secret != null && MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                candidate.getBytes(StandardCharsets.UTF_8));
+    }
+
+    String getSecret() {
+        return secret;
+    }
+
+    /**
+     * @return The first account ID of this node's range.
+     */
+    public int getFirstId() {
+        return FIRST_ID + localNode * rangeSize;
+    }
+
+    /**
+     * @return The first account ID past the end of this node's range.
+     */
+    public int getEndId() {
+        return getFirstId() + rangeSize;
+    }
+}
@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The transaction history of one account, kept as primitive columns in a bounded ring
+ * buffer. Once the buffer is full the oldest entries are overwritten, so an account's
+ * history never grows past a fixed size no matter how long it has been open. BankAccount
+ * hands each entry about to be overwritten to the HistoryArchive first, so this is only the
+ * hot tail of the history, the entries customers look at nearly every time.
+ *
+ * Entries are stored as a type, an amount in minor units (cents), a timestamp in epoch
+ * milliseconds and the ID of the other account for transfers (0 otherwise). Every entry is
+ * also added to the account's DailyTotals, which outlive the entries themselves.
+ */
+public class TransactionHistory implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Five pages of history; older pages come from the HistoryArchive
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("atm.history.capacity", 100);
+    public static final int ENTRY_SIZE = 1 + Long.BYTES + Long.BYTES + Integer.BYTES; // Encoded size of one entry
+
+    private static final int INITIAL_LENGTH = 4;
+
+    /**
+     * Receives history entries without them being boxed into objects.
+     */
+    public interface Visitor {
+        void visit(TransactionType type, long amountMinor, long timestamp, int counterpartyId);
+    }
+
+    private final int capacity;
+    private byte[] types;
+    private long[] amounts;
+    private long[] timestamps;
+    private int[] counterparties;
+    private int head;        // Index the next entry is written to
+    private int size;        // Entries currently held
+    private long totalCount; // Entries ever added, including overwritten ones
+    private DailyTotals totals = new DailyTotals();
+
+    public TransactionHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransactionHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.capacity = capacity;
+        allocate(Math.min(INITIAL_LENGTH, capacity));
+    }
+
+    /**
+     * @return The timestamp the entry was stored with, moved up to that of the previous entry
+     *         if it was earlier.
+     */
+    public long add(TransactionType type, long amountMinor, long timestamp, int counterpartyId) {
+        timestamp = append(type, amountMinor, timestamp, counterpartyId);
+        totals.add(type, amountMinor, timestamp);
+        return timestamp;
+    }
+
+    private long append(TransactionType type, long amountMinor, long timestamp, int counterpartyId) {
+        if (size == types.length && types.length < capacity) {
+            // Still growing toward the capacity, nothing has wrapped yet so head == size
+            grow(Math.min(types.length * 2, capacity));
+        }
+
+        // Keep timestamps non-decreasing, so range queries can binary search
+        if (size > 0) {
+            timestamp = Math.max(timestamp, timestamps[index(size - 1)]);
+        }
+
+        types[head] = (byte) type.ordinal();
+        amounts[head] = amountMinor;
+        timestamps[head] = timestamp;
+        counterparties[head] = counterpartyId;
+        head = (head + 1) % types.length;
+        if (size < types.length) {
+            size++;
+        }
+        totalCount++;
+        return timestamp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return Whether the next add() overwrites the oldest entry.
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The ordinal of the oldest entry held, its position among every entry ever added
+     *         from 0; the entries before it were overwritten.
+     */
+    public long getOldestOrdinal() {
+        return totalCount - size;
+    }
+
+
+    public DailyTotals getTotals() {
+        return totals;
+    }
+
+    /**
+     * @return The totals recomputed from the entries still held, to check getTotals() against.
+     */
+    public DailyTotals recomputeTotals() {
+        DailyTotals recomputed = new DailyTotals(Integer.MAX_VALUE);
+        forEachLast(size, (type, amountMinor, timestamp, counterpartyId) -> recomputed.add(type, amountMinor, timestamp));
+        return recomputed;
+    }
+
+    /**
+     * @return The day from which every entry is still held, so the totals of it and later days
+     *         can be recomputed; Long.MIN_VALUE if no entry was ever overwritten.
+     */
+    public long getCompleteFromDay() {
+        if (size == totalCount) {
+            return Long.MIN_VALUE;
+        }
+        return (size == 0) ? Long.MAX_VALUE : DailyTotals.dayOf(timestamps[index(0)]) + 1; // The oldest day may have lost entries
+    }
+
+    /**
+     * Visits up to the last limit entries, oldest first.
+     */
+    public void forEachLast(int limit, Visitor visitor) {
+        int count = Math.min(limit, size);
+        for (int i = size - count; i < size; i++) {
+            visit(i, visitor);
+        }
+    }
+
+    /**
+     * Visits the held entries with ordinals in [fromOrdinal, toOrdinal), see getOldestOrdinal(), oldest first.
+     */
+    public void forEachBetweenOrdinals(long fromOrdinal, long toOrdinal, Visitor visitor) {
+        long oldest = getOldestOrdinal();
+        for (long ordinal = Math.max(fromOrdinal, oldest); ordinal < Math.min(toOrdinal, totalCount); ordinal++) {
+            visit((int) (ordinal - oldest), visitor);
+        }
+    }
+
+    /**
+     * Visits every held entry with a timestamp in [fromTime, toTime), oldest first.
+     */
+    public void forEachBetween(long fromTime, long toTime, Visitor visitor) {
+        for (int i = firstAtOrAfter(fromTime); i < size && timestamps[index(i)] < toTime; i++) {
+            visit(i, visitor);
+        }
+    }
+
+    /**
+     * @return An independent copy, for a snapshot of the account to keep while it changes on.
+     */
+    public TransactionHistory copy() {
+        TransactionHistory copy = new TransactionHistory(capacity);
+        copy.types = types.clone();
+        copy.amounts = amounts.clone();
+        copy.timestamps = timestamps.clone();
+        copy.counterparties = counterparties.clone();
+        copy.head = head;
+        copy.size = size;
+        copy.totalCount = totalCount;
+        copy.totals = totals.copy();
+        return copy;
+    }
+
+    /**
+     * @return A history of the given capacity with the latest entries of this one, as many as
+     *         fit, and the same totals and ordinals. The ones left out should be archived first.
+     */
+    public TransactionHistory resized(int capacity) {
+        TransactionHistory resized = new TransactionHistory(capacity);
+        forEachLast(capacity, resized::append);
+        resized.totalCount = totalCount;
+        resized.totals = totals.copy();
+        return resized;
+    }
+
+    /**
+     * @return The number of bytes encode() will write.
+     */
+    public int encodedSize() {
+        return Integer.BYTES + Long.BYTES + Integer.BYTES + size * ENTRY_SIZE + totals.encodedSize();
+    }
+
+    public void encode(ByteBuffer buffer) {
+        buffer.putInt(capacity);
+        buffer.putLong(totalCount);
+        buffer.putInt(size);
+        for (int i = 0; i < size; i++) {
+            int index = index(i);
+            buffer.put(types[index]);
+            buffer.putLong(amounts[index]);
+            buffer.putLong(timestamps[index]);
+            buffer.putInt(counterparties[index]);
+        }
+        totals.encode(buffer);
+    }
+
+    /**
+     * @param buffer Holding exactly the encoded history. Histories encoded before the totals
+     *               existed end right after the entries, their totals are rebuilt from those.
+     */
+    public static TransactionHistory decode(ByteBuffer buffer) {
+        TransactionHistory history = new TransactionHistory(buffer.getInt());
+        long totalCount = buffer.getLong();
+        int size = buffer.getInt();
+        for (int i = 0; i < size; i++) {
+            history.append(TransactionType.fromCode(buffer.get()), buffer.getLong(), buffer.getLong(), buffer.getInt());
+        }
+        history.totalCount = totalCount;
+        if (buffer.hasRemaining()) {
+            history.totals = DailyTotals.decode(buffer);
+        } else {
+            history.rebuildTotals();
+        }
+        return history;
+    }
+
+    // Histories serialized before the totals existed rebuild them from their entries
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (totals == null) {
+            rebuildTotals();
+        }
+    }
+
+    private void rebuildTotals() {
+        totals = new DailyTotals();
+        forEachLast(size, (type, amountMinor, timestamp, counterpartyId) -> totals.add(type, amountMinor, timestamp));
+    }
+
+    private void visit(int i, Visitor visitor) {
+        int index = index(i);
+        visitor.visit(TransactionType.fromCode(types[index]), amounts[index], timestamps[index], counterparties[index]);
+    }
+
+    // Maps the i-th oldest held entry to its array index
+    private int index(int i) {
+        int oldest = (size < types.length) ? 0 : head;
+        return (oldest + i) % types.length;
+    }
+
+    private int firstAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[index(middle)] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void allocate(int length) {
+        types = new byte[length];
+        amounts = new long[length];
+        timestamps = new long[length];
+        counterparties = new int[length];
+    }
+
+    private void grow(int length) {
+        types = Arrays.copyOf(types, length);
+        amounts = Arrays.copyOf(amounts, length);
+        timestamps = Arrays.copyOf(timestamps, length);
+        counterparties = Arrays.copyOf(counterparties, length);
+        head = size;
+    }
+}
@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only write-ahead log of ledger operations. Every operation is written as a
+ * compact binary record before it is applied, so a crash only loses what was not yet synced.
+ *
+ * Record layout: [int length][long sequence][byte type][int accountId][int counterpartyId]
+ * [long amount in cents][long timestamp][name/pin for CREATE only][long transferId for the
+ * two-phase transfer records only][run name and postings for POSTING only][long requestId]
+ * [int crc32]
+ *
+ * The request ID (see RequestCache) is only written for DEPOSIT, WITHDRAW, TRANSFER and
+ * PREPARE_OUT records of operations that came with one, the record length tells if it is there.
+ *
+ * Only one process can have a journal open at a time, as two appending to it (and checkpointing
+ * the same accounts) would corrupt both. The constructor fails straight away if another has it.
+ */
+public class TransactionJournal {
+    public static final byte CREATE = 1;
+    public static final byte DEPOSIT = 2;
+    public static final byte WITHDRAW = 3;
+    public static final byte TRANSFER = 4;
+
+    // Two-phase transfers to and from accounts on other ledger nodes, see ShardMap
+    public static final byte PREPARE_OUT = 5; // Sender debited, outcome not decided yet
+    public static final byte PREPARE_IN = 6;  // Recipient agreed to the credit, nothing applied yet
+    public static final byte COMMIT = 7;
+    public static final byte ABORT = 8;
+
+    // One chunk of a bulk posting run, see PostingEngine. accountId is the chunk index,
+    // counterpartyId the posting kind, amount the rate or fee and name the run name.
+    public static final byte POSTING = 9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int REPLAY_WINDOW = 1024 * 1024;
+
+    private final Path path;
+    private FileChannel channel;
+    private final FileChannel lockChannel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32 crc = new CRC32();
+    private final long syncIntervalMillis;
+    private ScheduledExecutorService background;
+    private long sequence;
+
+    /**
+     * A single journaled operation. For TRANSFER, accountId is the sender and counterpartyId
+     * the recipient, so both sides of the transfer are applied from the same record.
+     */
+    public static class Record {
+        public final long sequence;
+        public final byte type;
+        public final int accountId;
+        public final int counterpartyId;
+        public final long amount;
+        public final long timestamp;
+        public final String name;
+        public final String pin;
+        public final long transferId;
+        public final int[] postingAccountIds; // POSTING only, with the amount posted to each
+        public final long[] postingAmounts;
+        public final long requestId;          // RequestCache.NO_REQUEST if the operation came without one
+
+        Record(long sequence, byte type, int accountId, int counterpartyId, long amount, long timestamp,
+               String name, String pin, long transferId) {
+            this(sequence, type, accountId, counterpartyId, amount, timestamp, name, pin, transferId, null, null,
+                    RequestCache.NO_REQUEST);
+        }
+
+        Record(long sequence, byte type, int accountId, int counterpartyId, long amount, long timestamp,
+               String name, String pin, long transferId, int[] postingAccountIds, long[] postingAmounts, long requestId) {
+            this.sequence = sequence;
+            this.type = type;
+            this.accountId = accountId;
+            this.counterpartyId = counterpartyId;
+            this.amount = amount;
+            this.timestamp = timestamp;
+            this.name = name;
+            this.pin = pin;
+            this.transferId = transferId;
+            this.postingAccountIds = postingAccountIds;
+            this.postingAmounts = postingAmounts;
+            this.requestId = requestId;
+        }
+
+        /**
+         * @return This POSTING record without its postings, which is all a checkpoint that
+         *         covers the postings needs to keep to tell the chunk was posted.
+         */
+        public Record withoutPostings() {
+            return new Record(sequence, type, accountId, counterpartyId, amount, timestamp, name, pin, transferId,
+                    new int[0], new long[0], requestId);
+        }
+    }
+
+    /**
+     * @param path The journal file, created if it does not exist.
+     * @param syncIntervalMillis How often buffered records are forced to disk; 0 syncs on every append.
+     * @throws IOException If the journal can't be opened or another process has it open.
+     */
+    public TransactionJournal(Path path, long syncIntervalMillis) throws IOException {
+        this.path = path;
+        this.syncIntervalMillis = syncIntervalMillis;
+
+        // The journal itself is replaced by truncate(), so the lock is held on a file beside it that stays put
+        this.lockChannel = FileChannel.open(path.resolveSibling(path.getFileName() + ".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(path + " is in use by another process, only one can run against the same accounts at a time.");
+        }
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Reads every intact record and hands it to the consumer, including the ones at or before
+     * the given sequence number, which the consumer is expected to skip when a checkpoint
+     * already covers them. A torn record at the end of the file (from a crash mid-write) is cut off.
+     *
+     * @param afterSequence The sequence the last checkpoint covers, new records continue after it.
+     */
+    public synchronized void replay(long afterSequence, Consumer<Record> consumer) throws IOException {
+        sequence = afterSequence;
+        long size = channel.size();
+        ByteBuffer data = ByteBuffer.allocate(REPLAY_WINDOW).limit(0);
+
+        // Read a window at a time, data's position always being the start of the next record, at validEnd
+        long validEnd = 0;
+        while (true) {
+            data = fill(data, Integer.BYTES, validEnd);
+            if (data.remaining() < Integer.BYTES) {
+                break;
+            }
+            int length = data.getInt(data.position());
+            if (length <= 0 || length > size - validEnd - Integer.BYTES * 2) {
+                break;
+            }
+            data = fill(data, length + Integer.BYTES * 2, validEnd);
+
+            int start = data.position();
+            crc.reset();
+            crc.update(data.array(), start + Integer.BYTES, length);
+            int expected = data.getInt(start + Integer.BYTES + length);
+            if ((int) crc.getValue() != expected) {
+                break;
+            }
+
+            data.position(start + Integer.BYTES);
+            Record record = readRecord(data, start + Integer.BYTES + length);
+            data.position(start + Integer.BYTES + length + Integer.BYTES);
+            validEnd += length + Integer.BYTES * 2;
+
+            consumer.accept(record);
+            sequence = Math.max(sequence, record.sequence);
+        }
+
+        if (validEnd < size) {
+            System.err.println("Discarding torn journal tail in " + path + " at byte " + validEnd);
+            channel.truncate(validEnd);
+        }
+        channel.position(validEnd);
+    }
+
+    // Makes sure data holds at least needed bytes from recordStart on, reading on from the file
+    // after what it holds. Only a record bigger than the window, a large posting chunk, grows it.
+    private ByteBuffer fill(ByteBuffer data, int needed, long recordStart) throws IOException {
+        if (data.remaining() >= needed) {
+            return data;
+        }
+        long readFrom = recordStart + data.remaining();
+        if (data.capacity() < needed) {
+            data = ByteBuffer.allocate(needed).put(data);
+        } else {
+            data.compact();
+        }
+        while (data.hasRemaining()) {
+            int read = channel.read(data, readFrom);
+            if (read < 0) {
+                break;
+            }
+            readFrom += read;
+        }
+        return data.flip();
+    }
+
+    public synchronized long append(byte type, int accountId, int counterpartyId, long amount, long timestamp) {
+        return append(type, accountId, counterpartyId, amount, timestamp, RequestCache.NO_REQUEST);
+    }
+
+    public synchronized long append(byte type, int accountId, int counterpartyId, long amount, long timestamp, long requestId) {
+        return append(type, accountId, counterpartyId, amount, timestamp, null, null, requestId);
+    }
+
+    public synchronized long append(byte type, int accountId, int counterpartyId, long amount, long timestamp, String name, String pin) {
+        return append(type, accountId, counterpartyId, amount, timestamp, name, pin, RequestCache.NO_REQUEST);
+    }
+
+    private long append(byte type, int accountId, int counterpartyId, long amount, long timestamp, String name, String pin,
+                        long requestId) {
+        try {
+            long recordSequence = ++sequence;
+            put(channel, recordSequence, type, accountId, counterpartyId, amount, timestamp, name, pin, 0, null, null, 0, requestId);
+            if (syncIntervalMillis == 0) {
+                sync();
+            }
+            return recordSequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the transaction journal.", e);
+        }
+    }
+
+    /**
+     * Appends one step of a two-phase transfer and forces it to disk straight away, since the
+     * other node acts on it as soon as it is sent. The record is returned so it can be carried
+     * over by truncate() for as long as the transfer is unfinished.
+     */
+    public synchronized Record appendTransfer(byte type, int accountId, int counterpartyId, long amount, long timestamp, long transferId) {
+        return appendTransfer(type, accountId, counterpartyId, amount, timestamp, transferId, RequestCache.NO_REQUEST);
+    }
+
+    public synchronized Record appendTransfer(byte type, int accountId, int counterpartyId, long amount, long timestamp,
+                                              long transferId, long requestId) {
+        try {
+            long recordSequence = ++sequence;
+            put(channel, recordSequence, type, accountId, counterpartyId, amount, timestamp, null, null, transferId, null, null, 0,
+                    requestId);
+            sync();
+            return new Record(recordSequence, type, accountId, counterpartyId, amount, timestamp, null, null, transferId,
+                    null, null, requestId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the transaction journal.", e);
+        }
+    }
+
+    /**
+     * Appends the first step of a transfer this node sends, giving it a transfer ID of the node
+     * in the top 16 bits and the record's own sequence below. Sequences only grow, also across
+     * restarts, so a transfer ID is never handed out twice, not even for a transfer refused
+     * before anything was journaled.
+     */
+    public synchronized Record appendOutgoingTransfer(int node, int accountId, int counterpartyId, long amount, long timestamp,
+                                                      long requestId) {
+        return appendTransfer(PREPARE_OUT, accountId, counterpartyId, amount, timestamp, ((long) node << 48) | (sequence + 1),
+                requestId);
+    }
+
+    /**
+     * Appends one chunk of a bulk posting run as a single record, so replay applies either every
+     * posting of the chunk or none of them. Forced to disk straight away, since the run counts
+     * the chunk as done once this returns.
+     *
+     * @param count How many entries of accountIds and amounts to write.
+     * @return The record without its postings, see Record.withoutPostings().
+     */
+    public synchronized Record appendPosting(String runName, byte kind, long parameter, int chunk, long timestamp,
+                                             int[] accountIds, long[] amounts, int count) {
+        try {
+            long recordSequence = ++sequence;
+            put(channel, recordSequence, POSTING, chunk, kind, parameter, timestamp, runName, null, 0, accountIds, amounts, count,
+                    RequestCache.NO_REQUEST);
+            sync();
+            return new Record(recordSequence, POSTING, chunk, kind, parameter, timestamp, runName, null, 0,
+                    new int[0], new long[0], RequestCache.NO_REQUEST);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write to the transaction journal.", e);
+        }
+    }
+
+    /**
+     * Writes out buffered records and forces them to disk.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    /**
+     * Empties the journal once its records are covered by a checkpoint.
+     */
+    public synchronized void truncate() throws IOException {
+        truncate(List.of());
+    }
+
+    /**
+     * Empties the journal except for the given records, which keep their sequence numbers.
+     * This is for the steps of unfinished two-phase transfers, which no checkpoint covers.
+     */
+    public synchronized void truncate(List<Record> carryOver) throws IOException {
+        sync();
+        if (carryOver.isEmpty()) {
+            channel.truncate(0);
+            channel.position(0);
+            return;
+        }
+
+        // Written beside the journal and renamed over it, so a crash leaves either the old journal or the new one
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Record record : carryOver) {
+                put(target, record.sequence, record.type, record.accountId, record.counterpartyId, record.amount,
+                        record.timestamp, record.name, record.pin, record.transferId, null, null, 0, record.requestId);
+            }
+            flush(target);
+            target.force(true);
+        }
+        channel.close();
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+    }
+
+    /**
+     * Writes out buffered records and returns the length of the journal, for truncate() to
+     * keep the records written after this point.
+     */
+    public synchronized long mark() throws IOException {
+        flush();
+        return channel.position();
+    }
+
+    /**
+     * Empties the journal except for the given records and every record from keepFrom, a
+     * length returned by mark(), on. This is for a checkpoint that kept the ledger running
+     * while it was written (see LedgerSnapshot): the records after its mark are not covered.
+     *
+     * Appends go on meanwhile. The records already written are copied without holding up
+     * appends, only those appended during that copy are moved over with appends waiting.
+     * Calls must not overlap, which holds as checkpoints are written one at a time.
+     */
+    public void truncate(List<Record> carryOver, long keepFrom) throws IOException {
+        FileChannel source;
+        long copiedTo;
+        synchronized (this) {
+            flush();
+            if (carryOver.isEmpty() && keepFrom == channel.position()) {
+                channel.truncate(0);
+                channel.position(0);
+                return;
+            }
+            source = channel;
+            copiedTo = channel.position();
+        }
+
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            synchronized (this) {
+                flush(); // The buffer is shared, so records appended since are written out first
+                for (Record record : carryOver) {
+                    put(target, record.sequence, record.type, record.accountId, record.counterpartyId, record.amount,
+                            record.timestamp, record.name, record.pin, record.transferId, null, null, 0, record.requestId);
+                }
+                flush(target);
+            }
+            transfer(source, keepFrom, copiedTo, target);
+        }
+
+        // Appends wait from copying the last records until the new journal is in place, so none is left behind
+        synchronized (this) {
+            flush();
+            try (FileChannel target = FileChannel.open(temporary, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                transfer(source, copiedTo, channel.position(), target);
+                target.force(true);
+            }
+            // Renamed over the journal, so a crash leaves either the old journal or the new one
+            channel.close();
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+        }
+    }
+
+    private static void transfer(FileChannel source, long from, long to, FileChannel target) throws IOException {
+        while (from < to) {
+            from += source.transferTo(from, to - from, target);
+        }
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Starts the background thread that group-commits buffered records every sync interval
+     * and runs the checkpoint task every checkpoint interval.
+     */
+    public synchronized void startBackground(Runnable checkpoint, long checkpointIntervalMillis) {
+        if (background != null) {
+            return;
+        }
+
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-background");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(() -> {
+                try {
+                    sync();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        if (checkpointIntervalMillis > 0) {
+            background.scheduleWithFixedDelay(checkpoint, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        // Still lose nothing buffered when the JVM exits on an uncaught exception or a signal
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "journal-shutdown"));
+    }
+
+    public synchronized void close() throws IOException {
+        if (background != null) {
+            background.shutdown();
+        }
+        sync();
+        channel.close();
+        lockChannel.close(); // Releases the lock
+    }
+
+    private void flush() throws IOException {
+        flush(channel);
+    }
+
+    private void flush(FileChannel target) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    // Buffers one record, first writing out the buffer to the target if the record doesn't fit.
+    // A record bigger than the whole buffer, which only a posting chunk can be, is written on its own.
+    private void put(FileChannel target, long recordSequence, byte type, int accountId, int counterpartyId,
+                     long amount, long timestamp, String name, String pin, long transferId,
+                     int[] postingAccountIds, long[] postingAmounts, int postingCount, long requestId) throws IOException {
+        byte[] nameBytes = (name == null) ? null : name.getBytes(StandardCharsets.UTF_8);
+        byte[] pinBytes = (pin == null) ? null : pin.getBytes(StandardCharsets.UTF_8);
+        int length = Long.BYTES + 1 + Integer.BYTES * 2 + Long.BYTES + Long.BYTES;
+        if (type == CREATE) {
+            length += Integer.BYTES + nameBytes.length + Integer.BYTES + pinBytes.length;
+        } else if (isTransferStep(type)) {
+            length += Long.BYTES;
+        } else if (type == POSTING) {
+            length += Integer.BYTES + nameBytes.length + Integer.BYTES + postingCount * (Integer.BYTES + Long.BYTES);
+        }
+        if (requestId != RequestCache.NO_REQUEST) {
+            length += Long.BYTES;
+        }
+
+        if (buffer.remaining() < length + Integer.BYTES * 2) {
+            flush(target);
+        }
+        ByteBuffer out = (buffer.remaining() < length + Integer.BYTES * 2) ? ByteBuffer.allocate(length + Integer.BYTES * 2) : buffer;
+
+        out.putInt(length);
+        int payloadStart = out.position();
+        out.putLong(recordSequence);
+        out.put(type);
+        out.putInt(accountId);
+        out.putInt(counterpartyId);
+        out.putLong(amount);
+        out.putLong(timestamp);
+        if (type == CREATE) {
+            out.putInt(nameBytes.length).put(nameBytes);
+            out.putInt(pinBytes.length).put(pinBytes);
+        } else if (isTransferStep(type)) {
+            out.putLong(transferId);
+        } else if (type == POSTING) {
+            out.putInt(nameBytes.length).put(nameBytes);
+            out.putInt(postingCount);
+            for (int i = 0; i < postingCount; i++) {
+                out.putInt(postingAccountIds[i]).putLong(postingAmounts[i]);
+            }
+        }
+        if (requestId != RequestCache.NO_REQUEST) {
+            out.putLong(requestId);
+        }
+
+        crc.reset();
+        crc.update(out.duplicate().position(payloadStart).limit(payloadStart + length));
+        out.putInt((int) crc.getValue());
+
+        if (out != buffer) {
+            out.flip();
+            while (out.hasRemaining()) {
+                target.write(out);
+            }
+        }
+    }
+
+    public static boolean isTransferStep(byte type) {
+        return type >= PREPARE_OUT && type <= ABORT;
+    }
+
+    // end is the position right after the record's payload
+    private static Record readRecord(ByteBuffer data, int end) {
+        long sequence = data.getLong();
+        byte type = data.get();
+        int accountId = data.getInt();
+        int counterpartyId = data.getInt();
+        long amount = data.getLong();
+        long timestamp = data.getLong();
+        String name = null;
+        String pin = null;
+        long transferId = 0;
+        int[] postingAccountIds = null;
+        long[] postingAmounts = null;
+        if (type == CREATE) {
+            name = readString(data);
+            pin = readString(data);
+        } else if (isTransferStep(type)) {
+            transferId = data.getLong();
+        } else if (type == POSTING) {
+            name = readString(data);
+            int count = data.getInt();
+            postingAccountIds = new int[count];
+            postingAmounts = new long[count];
+            for (int i = 0; i < count; i++) {
+                postingAccountIds[i] = data.getInt();
+                postingAmounts[i] = data.getLong();
+            }
+        }
+        long requestId = (data.position() < end) ? data.getLong() : RequestCache.NO_REQUEST;
+        return new Record(sequence, type, accountId, counterpartyId, amount, timestamp, name, pin, transferId,
+                postingAccountIds, postingAmounts, requestId);
+    }
+
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getInt()];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
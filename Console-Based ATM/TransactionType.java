@@ -0,0 +1,37 @@
+/**
+ * The kinds of entries in an account's transaction history, with the label and sign used
+ * when the history is displayed.
+ */
+public enum TransactionType {
+    INITIAL_DEPOSIT("Initial Deposit: \t+"),
+    DEPOSIT("Deposit: \t\t+"),
+    WITHDRAWAL("Withdrawal: \t\t\t\t\t-"),
+    TRANSFER("Transfer: \t\t\t\t\t-"),
+    RECEIVE("Receive: \t\t+"),
+    INTEREST("Interest: \t\t+"),
+    FEE("Fee: \t\t\t\t\t\t-");
+
+    private static final TransactionType[] VALUES = values();
+
+    private final String label;
+
+    TransactionType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return true if the entry adds to the balance, as the + of its label shows.
+     */
+    public boolean isCredit() {
+        return label.endsWith("+");
+    }
+
+    // values() copies the array on every call, this doesn't
+    public static TransactionType fromCode(int code) {
+        return VALUES[code];
+    }
+}
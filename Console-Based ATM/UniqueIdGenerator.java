@@ -1,37 +1,97 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Hands out account IDs from blocks leased ahead of time. Leasing a block is one durable
+ * write of its upper bound to uniqueId.txt, and every ID inside the block then comes from
+ * an in-memory counter. After a restart allocation resumes at the saved bound, so an ID can
+ * be skipped by a crash but never issued twice.
+ */
 public class UniqueIdGenerator implements Serializable {
-    private static UniqueIdGenerator instance;
-    private int currentUniqueId;
-    private static final String FILE_NAME = "uniqueId.txt";
+    // Created eagerly, so concurrent first calls to getInstance() can't build two generators
+    private static final UniqueIdGenerator instance = new UniqueIdGenerator();
+    static final String FILE_NAME = "uniqueId.txt";
+    private static final int BLOCK_SIZE = Integer.getInteger("atm.id.blockSize", 10_000);
+
+    private final ShardMap shards = ShardMap.getInstance();
+    private final AtomicInteger currentUniqueId;
+    private volatile int leaseLimit; // IDs below this are durably leased and safe to hand out
 
     private UniqueIdGenerator() {
-        this.currentUniqueId = loadUniqueId();
+        int start = loadUniqueId();
+        this.currentUniqueId = new AtomicInteger(start);
+        this.leaseLimit = start;
     }
 
     private int loadUniqueId() {
         try (BufferedReader reader = new BufferedReader(new FileReader(FILE_NAME))) {
-            return Integer.parseInt(reader.readLine());
-        } catch (Exception e) {}
-        return 1000;
+            return Integer.parseInt(reader.readLine().trim());
+        } catch (FileNotFoundException e) {
+            return shards.getFirstId(); // First run, start at this node's range
+        } catch (Exception e) {
+            // Guessing here could hand out IDs that already exist, so refuse to start instead
+            throw new IllegalStateException("Could not read " + FILE_NAME + ".", e);
+        }
     }
 
     public int getNextUniqueId() {
-        int current = currentUniqueId++;
-        saveUniqueId();
+        int current = currentUniqueId.getAndIncrement();
+        if (current >= shards.getEndId()) {
+            throw new IllegalStateException("This node has used up its range of account IDs.");
+        }
+        if (current >= leaseLimit) {
+            leaseThrough(current);
+        }
         return current;
     }
 
-    public void saveUniqueId() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE_NAME))) {
-            writer.write("" + currentUniqueId);
-        } catch (Exception e) {}
+    /**
+     * @return The ID the next account will get. Every ID issued so far is below it.
+     */
+    public int peekNextUniqueId() {
+        return Math.min(currentUniqueId.get(), shards.getEndId());
     }
 
-    public static UniqueIdGenerator getInstance() {
-        if (instance == null) {
-            instance = new UniqueIdGenerator();
+    // Leases blocks until the given ID is covered, only one thread writes the file at a time
+    private synchronized void leaseThrough(int id) {
+        while (id >= leaseLimit) {
+            int newLimit = leaseLimit + BLOCK_SIZE;
+            saveLeaseLimit(newLimit);
+            leaseLimit = newLimit;
         }
+    }
+
+    // Written to a temporary file, synced and renamed over the old one, so the file is never half-written
+    private void saveLeaseLimit(int limit) {
+        Path target = Paths.get(FILE_NAME);
+        Path temporary = Paths.get(FILE_NAME + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(String.valueOf(limit).getBytes(StandardCharsets.US_ASCII));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lease account IDs.", e);
+        }
+
+        try {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not lease account IDs.", e);
+        }
+    }
+
+    public static UniqueIdGenerator getInstance() {
         return instance;
     }
 }
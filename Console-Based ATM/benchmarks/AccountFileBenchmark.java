@@ -0,0 +1,94 @@
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * Times saving and loading every account with Java serialization, the way accounts.ser was
+ * written, against the block-checksummed binary format of AccountFile.
+ *
+ * Run from a scratch directory, loading BankAccount opens a journal there:
+ * java -Xmx4g AccountFileBenchmark [accounts] [historyEntriesPerAccount]
+ */
+public class AccountFileBenchmark {
+    public static void main(String[] args) throws Exception {
+        int accountCount = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int historyEntries = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+
+        ArrayList<AccountRecord> records = new ArrayList<>(accountCount);
+        ArrayList<BankAccount> accounts = new ArrayList<>(accountCount);
+        String pinHash = PinHasher.hash("123456"); // Shared, hashing a million PINs would dominate the setup
+        for (int i = 0; i < accountCount; i++) {
+            TransactionHistory history = new TransactionHistory();
+            for (int e = 0; e < historyEntries; e++) {
+                history.add(TransactionType.DEPOSIT, 100 + e, 1_700_000_000_000L + e, 0);
+            }
+            AccountRecord record = new AccountRecord(1000 + i, "ACCOUNT " + i, pinHash, 100_000 + i, history);
+            records.add(record);
+            accounts.add(new BankAccount(record));
+        }
+
+        Path serialized = Paths.get("benchmark-accounts.ser");
+        Path binary = Paths.get("benchmark-accounts.bin");
+
+        // Warm up both paths before timing
+        for (int round = 0; round < 2; round++) {
+            saveSerialized(serialized, accounts);
+            loadSerialized(serialized);
+            AccountFile.write(binary, 0, records);
+            loadBinary(binary);
+        }
+
+        long start = System.nanoTime();
+        saveSerialized(serialized, accounts);
+        double serializedSave = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        int serializedCount = loadSerialized(serialized);
+        double serializedLoad = (System.nanoTime() - start) / 1e6;
+
+        start = System.nanoTime();
+        AccountFile.write(binary, 0, records);
+        double binarySave = (System.nanoTime() - start) / 1e6;
+        start = System.nanoTime();
+        int binaryCount = loadBinary(binary);
+        double binaryLoad = (System.nanoTime() - start) / 1e6;
+
+        System.out.printf("%,d accounts, %d history entries each%n", accountCount, historyEntries);
+        System.out.printf("Serialization: save %,.0f ms, load %,.0f ms, %,d bytes (%,d accounts)%n",
+                serializedSave, serializedLoad, Files.size(serialized), serializedCount);
+        System.out.printf("AccountFile:   save %,.0f ms, load %,.0f ms, %,d bytes (%,d accounts)%n",
+                binarySave, binaryLoad, Files.size(binary), binaryCount);
+
+        Files.delete(serialized);
+        Files.delete(binary);
+    }
+
+    // Forced to disk like a real checkpoint, so both paths pay for the sync
+    private static void saveSerialized(Path path, ArrayList<BankAccount> accounts) throws IOException {
+        try (FileOutputStream fileOutputStream = new FileOutputStream(path.toFile());
+             ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream)) {
+            objectOutputStream.writeObject(accounts);
+            objectOutputStream.writeLong(0);
+            objectOutputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int loadSerialized(Path path) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(path.toFile()))) {
+            return ((ArrayList<BankAccount>) objectInputStream.readObject()).size();
+        }
+    }
+
+    private static int loadBinary(Path path) throws IOException {
+        int[] count = new int[1];
+        AccountFile.read(path, record -> count[0]++);
+        return count[0];
+    }
+}
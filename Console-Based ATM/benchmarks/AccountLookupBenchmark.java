@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Compares the old linear scan in BankAccount.getBankAccount with the IntHashIndex lookup
+ * at 10k, 1M and 10M accounts.
+ *
+ * Run with: java -Xmx2g AccountLookupBenchmark
+ */
+public class AccountLookupBenchmark {
+    private static final int FIRST_ID = 1000;
+
+    // Stand-in for BankAccount, so the benchmark doesn't touch accounts.bin or uniqueId.txt
+    static class Account {
+        final int accountId;
+
+        Account(int accountId) {
+            this.accountId = accountId;
+        }
+    }
+
+    public static void main(String[] args) {
+        int[] sizes = {10_000, 1_000_000, 10_000_000};
+        for (int size : sizes) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        ArrayList<Account> list = new ArrayList<>(size);
+        IntHashIndex<Account> index = new IntHashIndex<>(size);
+        for (int i = 0; i < size; i++) {
+            Account account = new Account(FIRST_ID + i);
+            list.add(account);
+            index.put(account.accountId, account);
+        }
+
+        // The scan is O(n), so it gets far fewer lookups to keep the run short
+        int scanLookups = Math.max(10, 100_000_000 / size);
+        int indexLookups = 10_000_000;
+        int[] ids = randomIds(size, indexLookups);
+
+        // Warm up both paths before timing
+        scan(list, ids, scanLookups);
+        lookup(index, ids, indexLookups);
+
+        long start = System.nanoTime();
+        long checksum = scan(list, ids, scanLookups);
+        double scanNanos = (double) (System.nanoTime() - start) / scanLookups;
+
+        start = System.nanoTime();
+        checksum += lookup(index, ids, indexLookups);
+        double indexNanos = (double) (System.nanoTime() - start) / indexLookups;
+
+        System.out.printf("%,12d accounts: linear scan %,14.1f ns/op, hash index %,8.1f ns/op (checksum %d)%n",
+                size, scanNanos, indexNanos, checksum);
+    }
+
+    private static long scan(ArrayList<Account> list, int[] ids, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            int id = ids[i];
+            for (Account account : list) {
+                if (account.accountId == id) {
+                    checksum += account.accountId;
+                    break;
+                }
+            }
+        }
+        return checksum;
+    }
+
+    private static long lookup(IntHashIndex<Account> index, int[] ids, int count) {
+        long checksum = 0;
+        for (int i = 0; i < count; i++) {
+            checksum += index.get(ids[i]).accountId;
+        }
+        return checksum;
+    }
+
+    private static int[] randomIds(int size, int count) {
+        Random random = new Random(42);
+        int[] ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = FIRST_ID + random.nextInt(size);
+        }
+        return ids;
+    }
+}
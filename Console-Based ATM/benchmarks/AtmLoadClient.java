@@ -0,0 +1,103 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drives an AtmServer with many sessions and reports request latency percentiles. Active
+ * sessions each create an account, log in and then loop over deposit, withdraw and balance;
+ * idle sessions just hold their connection open for the whole run.
+ *
+ * Run with: java AtmLoadClient [host] [port] [activeSessions] [requestsPerSession] [idleSessions]
+ */
+public class AtmLoadClient {
+    public static void main(String[] args) throws Exception {
+        String host = (args.length > 0) ? args[0] : "localhost";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 5050;
+        int activeSessions = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        int requestsPerSession = (args.length > 3) ? Integer.parseInt(args[3]) : 10_000;
+        int idleSessions = (args.length > 4) ? Integer.parseInt(args[4]) : 0;
+
+        List<Socket> idle = new ArrayList<>(idleSessions);
+        for (int i = 0; i < idleSessions; i++) {
+            idle.add(new Socket(host, port));
+        }
+
+        long[][] latencies = new long[activeSessions][];
+        Thread[] workers = new Thread[activeSessions];
+        for (int i = 0; i < activeSessions; i++) {
+            int session = i;
+            workers[i] = new Thread(() -> {
+                try {
+                    latencies[session] = runSession(host, port, requestsPerSession);
+                } catch (IOException e) {
+                    System.err.println("Session " + session + " failed: " + e.getMessage());
+                    latencies[session] = new long[0];
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d active + %d idle sessions, %,d requests in %.2fs (%,.0f requests/s)%n",
+                activeSessions, idleSessions, all.length, seconds, all.length / seconds);
+        if (all.length > 0) {
+            System.out.printf("p50 %.1f us, p99 %.1f us, max %.1f us%n",
+                    percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, all[all.length - 1] / 1e3);
+        }
+
+        for (Socket socket : idle) {
+            socket.close();
+        }
+    }
+
+    private static long[] runSession(String host, int port, int requests) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            socket.setTcpNoDelay(true);
+            String accountId = request(reader, writer, "CREATE 123456 1000 LOAD CLIENT").substring(3);
+            request(reader, writer, "LOGIN " + accountId);
+            request(reader, writer, "PIN 123456");
+
+            String[] commands = {"DEPOSIT 1.00", "WITHDRAW 1.00", "BALANCE"};
+            long[] latencies = new long[requests];
+            for (int i = 0; i < requests; i++) {
+                long start = System.nanoTime();
+                request(reader, writer, commands[i % commands.length]);
+                latencies[i] = System.nanoTime() - start;
+            }
+            request(reader, writer, "QUIT");
+            return latencies;
+        }
+    }
+
+    private static String request(BufferedReader reader, BufferedWriter writer, String command) throws IOException {
+        writer.write(command);
+        writer.write('\n');
+        writer.flush();
+        String response = reader.readLine();
+        if (response == null || !response.startsWith("OK")) {
+            throw new IOException("Unexpected response to " + command + ": " + response);
+        }
+        return response;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how long deposits wait while checkpoints of a large ledger are written. Worker
+ * threads deposit into random accounts the whole time, first with no checkpoint running, then
+ * while the main thread writes checkpoints back to back; the slowest deposit of each phase
+ * shows the longest the ledger was held up.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java -Datm.pin.iterations=1 CheckpointPauseBenchmark [accounts] [threads] [checkpoints]
+ */
+public class CheckpointPauseBenchmark {
+    private static final long QUIET_MILLIS = 3_000;
+
+    public static void main(String[] args) throws InterruptedException {
+        int accountCount = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int checkpoints = (args.length > 2) ? Integer.parseInt(args[2]) : 5;
+
+        BankAccount[] accounts = new BankAccount[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = new BankAccount("CHECKPOINT " + i, "123456", 100_000);
+            for (int d = 0; d < 10; d++) {
+                accounts[i].deposit(100 + d);
+            }
+        }
+        BankAccount.saveAccounts(); // Starts both phases from an empty journal
+
+        AtomicBoolean checkpointing = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        LatencyHistogram quietLatency = new LatencyHistogram();
+        LatencyHistogram duringLatency = new LatencyHistogram();
+        LongAdder quietDeposits = new LongAdder();
+        LongAdder duringDeposits = new LongAdder();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                while (!stop.get()) {
+                    boolean running = checkpointing.get();
+                    long start = System.nanoTime();
+                    accounts[random.nextInt(accountCount)].deposit(1);
+                    long nanos = System.nanoTime() - start;
+                    (running ? duringLatency : quietLatency).record(nanos);
+                    (running ? duringDeposits : quietDeposits).increment();
+                }
+            });
+            workers[t].start();
+        }
+
+        Thread.sleep(QUIET_MILLIS);
+        long checkpointStart = System.nanoTime();
+        checkpointing.set(true);
+        for (int i = 0; i < checkpoints; i++) {
+            BankAccount.saveAccounts();
+        }
+        checkpointing.set(false);
+        double checkpointMillis = (System.nanoTime() - checkpointStart) / 1e6;
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        System.out.printf("%,d accounts, %d threads depositing%n", accountCount, threads);
+        System.out.printf("Checkpoint: %,.0f ms each%n", checkpointMillis / checkpoints);
+        report("No checkpoint", quietLatency, quietDeposits.sum() / (QUIET_MILLIS / 1000.0));
+        report("During checkpoints", duringLatency, duringDeposits.sum() / (checkpointMillis / 1000));
+    }
+
+    private static void report(String phase, LatencyHistogram latency, double depositsPerSecond) {
+        LatencyHistogram.Snapshot snapshot = latency.snapshot();
+        System.out.printf("%-20s %,10.0f deposits/s, p99.9 %,8.1f us, max %,10.1f us%n", phase + ":", depositsPerSecond,
+                snapshot.getValueAtPercentile(99.9) / 1e3, snapshot.getMax() / 1e3);
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs millions of random transfers between a shared set of accounts from many threads at
+ * once, then checks that no money was created or lost and that every account is still
+ * non-negative.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java ConcurrentTransferStress [threads] [transfersPerThread] [accounts]
+ */
+public class ConcurrentTransferStress {
+    public static void main(String[] args) throws InterruptedException {
+        int threads = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int transfersPerThread = (args.length > 1) ? Integer.parseInt(args[1]) : 500_000;
+        int accountCount = (args.length > 2) ? Integer.parseInt(args[2]) : 100;
+
+        BankAccount[] accounts = new BankAccount[accountCount];
+        for (int i = 0; i < accountCount; i++) {
+            accounts[i] = new BankAccount("STRESS " + i, "123456", 100_000);
+        }
+        long expectedTotal = total(accounts);
+
+        AtomicLong completed = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            long seed = t;
+            workers[t] = new Thread(() -> {
+                SplittableRandom random = new SplittableRandom(seed);
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < transfersPerThread; i++) {
+                    BankAccount from = accounts[random.nextInt(accountCount)];
+                    BankAccount to = accounts[random.nextInt(accountCount)];
+                    if (from == to) {
+                        continue;
+                    }
+                    if (from.transfer(to.getAccountId(), random.nextInt(1, 20_000)).isOk()) {
+                        completed.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet(); // Insufficient funds, expected under contention
+                    }
+                }
+            });
+            workers[t].start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - begin) / 1e9;
+
+        long actualTotal = total(accounts);
+        boolean negative = false;
+        for (BankAccount account : accounts) {
+            negative |= account.balanceInquiry() < 0;
+        }
+
+        System.out.printf("%d threads, %,d transfers (%,d rejected) in %.2fs, %,.0f transfers/s%n",
+                threads, completed.get(), rejected.get(), seconds, completed.get() / seconds);
+        System.out.printf("Total before: %s, after: %s%n", Money.format(expectedTotal), Money.format(actualTotal));
+        if (actualTotal != expectedTotal || negative) {
+            System.out.println("FAILED: money was created or lost, or a balance went negative.");
+            System.exit(1);
+        }
+        System.out.println("OK: total money is conserved.");
+        BankAccount.saveAccounts();
+    }
+
+    private static long total(BankAccount[] accounts) {
+        long total = 0;
+        for (BankAccount account : accounts) {
+            total += account.balanceInquiry();
+        }
+        return total;
+    }
+}
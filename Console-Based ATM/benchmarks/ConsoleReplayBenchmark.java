@@ -0,0 +1,116 @@
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.SplittableRandom;
+
+/**
+ * Replays a script of menu answers through Main, as when the ATM is driven from a file or a
+ * pipe: deposits, withdrawals, transfers and balance inquiries on one account, with the output
+ * counted and thrown away. Then reads the same script's tokens with a Scanner, the way Main
+ * used to, and with ConsoleIO, to compare the tokenizers alone.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java ConsoleReplayBenchmark [operations]
+ */
+public class ConsoleReplayBenchmark {
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+
+        BankAccount account = new BankAccount("REPLAY", "123456", Money.parse("1000000000"));
+        BankAccount recipient = new BankAccount("REPLAY RECIPIENT", "123456", 0);
+        StringBuilder script = new StringBuilder(operations * 12);
+        boolean[] amounts = new boolean[operations * 5 + 8]; // Whether each token of the script is an amount
+        int tokens = script(script, amounts, account.getAccountId(), recipient.getAccountId(), operations);
+        byte[] bytes = script.toString().getBytes(StandardCharsets.US_ASCII);
+
+        CountingStream output = new CountingStream();
+        long start = System.nanoTime();
+        Main.console = new ConsoleIO(new ByteArrayInputStream(bytes), output);
+        Main.run();
+        Main.console.flush();
+        double replayNanos = (double) (System.nanoTime() - start) / operations;
+        System.out.printf("Replayed %,d operations (%,d bytes in, %,d bytes out): %.0f ns/operation%n",
+                operations, bytes.length, output.count, replayNanos);
+
+        for (int round = 0; round < 3; round++) {
+            scanner(bytes, amounts, tokens);
+            console(bytes, amounts, tokens);
+        }
+        double scannerNanos = scanner(bytes, amounts, tokens);
+        double consoleNanos = console(bytes, amounts, tokens);
+        System.out.printf("Scanner:   %.1f ns/token%n", scannerNanos);
+        System.out.printf("ConsoleIO: %.1f ns/token (%.1fx)%n", consoleNanos, scannerNanos / consoleNanos);
+    }
+
+    // Writes the answers to the menus, from logging in to exiting, and returns the token count
+    private static int script(StringBuilder script, boolean[] amounts, int accountId, int recipientId, int operations) {
+        SplittableRandom random = new SplittableRandom(18);
+        int tokens = 0;
+        script.append("2\n").append(accountId).append("\n123456\n");
+        tokens += 3;
+        for (int i = 0; i < operations; i++) {
+            if (i > 0) {
+                script.append("1\n"); // Perform another transaction
+                tokens++;
+            }
+            int kind = random.nextInt(10);
+            if (kind < 4) {
+                script.append("1\n").append(random.nextInt(1, 500)).append(".25\n1\n");
+                amounts[tokens + 1] = true;
+                tokens += 3;
+            } else if (kind < 7) {
+                script.append("2\n").append(random.nextInt(1, 100)).append(".50\n1\n");
+                amounts[tokens + 1] = true;
+                tokens += 3;
+            } else if (kind < 9) {
+                script.append("3\n").append(recipientId).append('\n').append(random.nextInt(1, 50)).append("\n1\n");
+                amounts[tokens + 2] = true;
+                tokens += 4;
+            } else {
+                script.append("4\n");
+                tokens++;
+            }
+        }
+        script.append("0\n3\n");
+        return tokens + 2;
+    }
+
+    private static double scanner(byte[] bytes, boolean[] amounts, int tokens) {
+        long start = System.nanoTime();
+        Scanner scanner = new Scanner(new ByteArrayInputStream(bytes), StandardCharsets.US_ASCII);
+        long total = 0;
+        for (int i = 0; i < tokens; i++) {
+            total += amounts[i] ? Money.parse(scanner.next()) : scanner.nextInt();
+        }
+        sink = total;
+        return (double) (System.nanoTime() - start) / tokens;
+    }
+
+    private static double console(byte[] bytes, boolean[] amounts, int tokens) {
+        long start = System.nanoTime();
+        ConsoleIO console = new ConsoleIO(new ByteArrayInputStream(bytes), OutputStream.nullOutputStream());
+        long total = 0;
+        for (int i = 0; i < tokens; i++) {
+            total += amounts[i] ? console.nextAmount() : console.nextInt();
+        }
+        sink = total;
+        return (double) (System.nanoTime() - start) / tokens;
+    }
+
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
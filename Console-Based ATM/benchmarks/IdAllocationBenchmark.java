@@ -0,0 +1,44 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+
+/**
+ * Compares account ID allocation before and after block leasing. The old generator rewrote
+ * uniqueId.txt through a new FileWriter for every ID; the leasing generator makes one synced
+ * write per block and hands out the rest from memory.
+ *
+ * Run from a scratch directory, it writes uniqueId.txt and old-uniqueId.txt:
+ * java IdAllocationBenchmark [ids]
+ */
+public class IdAllocationBenchmark {
+    public static void main(String[] args) {
+        int ids = (args.length > 0) ? Integer.parseInt(args[0]) : 200_000;
+
+        long start = System.nanoTime();
+        long checksum = perIdWrites(ids);
+        double beforeSeconds = (System.nanoTime() - start) / 1e9;
+
+        UniqueIdGenerator generator = UniqueIdGenerator.getInstance();
+        start = System.nanoTime();
+        for (int i = 0; i < ids; i++) {
+            checksum += generator.getNextUniqueId();
+        }
+        double afterSeconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("Rewrite file per ID: %,12.0f IDs/s%n", ids / beforeSeconds);
+        System.out.printf("Leased blocks:       %,12.0f IDs/s%n", ids / afterSeconds);
+        System.out.println("checksum " + checksum);
+    }
+
+    // The allocation path as it was before leasing
+    private static long perIdWrites(int ids) {
+        int currentUniqueId = 1000;
+        long checksum = 0;
+        for (int i = 0; i < ids; i++) {
+            checksum += currentUniqueId++;
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter("old-uniqueId.txt"))) {
+                writer.write("" + currentUniqueId);
+            } catch (Exception e) {}
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The standing benchmark of the ledger: creating accounts, looking them up, deposits,
+ * withdrawals, transfers, rendering the history, a mix of all of them, and saving and loading
+ * the accounts, at each of several ledger sizes. The operations come from a WorkloadGenerator
+ * with a fixed seed, so every run measures the same workload and a change is judged against
+ * the numbers from before it rather than against a different random run.
+ *
+ * Each benchmark warms up for WARMUP iterations and is measured over MEASURED more, and the
+ * score is the mean time per operation with the standard deviation between the measured
+ * iterations, like JMH reports it. The ledger grows from one size to the next, the accounts
+ * created on the way are what the create benchmark times.
+ *
+ * The results are written to ledger-benchmark.csv. Given the file from an earlier run as
+ * baseline, each score is also shown as a change from it.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java -Xmx4g -Datm.pin.iterations=1 LedgerBenchmark [sizes] [seed] [hotFraction] [hotShare] [baseline.csv]
+ * with sizes as a comma separated list, such as 10000,100000,1000000. The operation mix is
+ * set with -Datm.bench.mix=lookup,deposit,withdraw,transfer,history weights.
+ */
+public class LedgerBenchmark {
+    private static final int WARMUP = 3;
+    private static final int MEASURED = 5;
+    private static final int FILE_WARMUP = 1; // Saving and loading a large ledger takes seconds
+    private static final int FILE_MEASURED = 3;
+    private static final int OPERATIONS = 100_000; // Per iteration
+    private static final int HISTORY_OPERATIONS = 20_000;
+    private static final String RESULTS_FILE = "ledger-benchmark.csv";
+    private static final String DEFAULT_MIX = "40,20,20,10,10";
+
+    private static volatile long sink;
+
+    private interface Iteration {
+        // Runs one iteration of the benchmark and returns something computed from it
+        long run();
+    }
+
+    private static class Result {
+        final String name;
+        final int accounts;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String name, int accounts, double score, double error, String unit) {
+            this.name = name;
+            this.accounts = accounts;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int[] sizes = parseSizes((args.length > 0) ? args[0] : "10000,100000,1000000");
+        long seed = (args.length > 1) ? Long.parseLong(args[1]) : 22;
+        double hotFraction = (args.length > 2) ? Double.parseDouble(args[2]) : 0.01;
+        double hotShare = (args.length > 3) ? Double.parseDouble(args[3]) : 0.8;
+        Map<String, Double> baseline = (args.length > 4) ? readBaseline(Paths.get(args[4])) : new HashMap<>();
+        int[] mix = WorkloadGenerator.parseWeights(System.getProperty("atm.bench.mix", DEFAULT_MIX));
+
+        System.out.printf("Seed %d, %.1f%% of operations to %.2f%% hot accounts, mix %s%n", seed, hotShare * 100,
+                hotFraction * 100, System.getProperty("atm.bench.mix", DEFAULT_MIX));
+        System.out.printf("%-10s %10s %14s %12s  %-6s %s%n", "Benchmark", "Accounts", "Score", "Error", "Units",
+                baseline.isEmpty() ? "" : "Change");
+
+        List<Result> results = new ArrayList<>();
+        BankAccount[] accounts = new BankAccount[sizes[sizes.length - 1]];
+        int[] ids = new int[accounts.length];
+        int created = 0;
+        for (int size : sizes) {
+            WorkloadGenerator generator = new WorkloadGenerator(seed, size, hotFraction, hotShare);
+
+            // Grows the ledger to this size, timing the accounts created in WARMUP + MEASURED chunks
+            int first = created;
+            int chunk = Math.max(1, (size - first) / (WARMUP + MEASURED));
+            int[] next = {first};
+            results.add(measure("create", size, chunk, WARMUP, MEASURED, "ns/op", baseline, () -> {
+                long total = 0;
+                for (int end = Math.min(next[0] + chunk, size); next[0] < end; next[0]++) {
+                    BankAccount account = new BankAccount("WORKLOAD " + next[0], "123456", generator.nextOpeningBalance());
+                    accounts[next[0]] = account;
+                    ids[next[0]] = account.getAccountId();
+                    total += ids[next[0]];
+                }
+                return total;
+            }));
+            // Integer division leaves a few, untimed
+            for (; next[0] < size; next[0]++) {
+                accounts[next[0]] = new BankAccount("WORKLOAD " + next[0], "123456", generator.nextOpeningBalance());
+                ids[next[0]] = accounts[next[0]].getAccountId();
+            }
+            created = size;
+
+            WorkloadGenerator.Operations lookups = generator.operations(OPERATIONS, WorkloadGenerator.Operation.LOOKUP);
+            results.add(measure("lookup", size, OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(lookups, accounts, ids)));
+            WorkloadGenerator.Operations deposits = generator.operations(OPERATIONS, WorkloadGenerator.Operation.DEPOSIT);
+            results.add(measure("deposit", size, OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(deposits, accounts, ids)));
+            WorkloadGenerator.Operations withdrawals = generator.operations(OPERATIONS, WorkloadGenerator.Operation.WITHDRAW);
+            results.add(measure("withdraw", size, OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(withdrawals, accounts, ids)));
+            WorkloadGenerator.Operations transfers = generator.operations(OPERATIONS, WorkloadGenerator.Operation.TRANSFER);
+            results.add(measure("transfer", size, OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(transfers, accounts, ids)));
+            WorkloadGenerator.Operations histories = generator.operations(HISTORY_OPERATIONS, WorkloadGenerator.Operation.HISTORY);
+            results.add(measure("history", size, HISTORY_OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(histories, accounts, ids)));
+            WorkloadGenerator.Operations mixed = generator.operations(OPERATIONS, mix);
+            results.add(measure("mixed", size, OPERATIONS, WARMUP, MEASURED, "ns/op", baseline,
+                    () -> run(mixed, accounts, ids)));
+
+            results.add(measure("save", size, 1, FILE_WARMUP, FILE_MEASURED, "ms/op", baseline, () -> {
+                BankAccount.saveAccounts();
+                return 0;
+            }));
+            results.add(measure("load", size, 1, FILE_WARMUP, FILE_MEASURED, "ms/op", baseline, LedgerBenchmark::load));
+        }
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(RESULTS_FILE)))) {
+            writer.println("benchmark,accounts,score,error,units");
+            for (Result result : results) {
+                writer.printf(Locale.ROOT, "%s,%d,%.3f,%.3f,%s%n", result.name, result.accounts, result.score, result.error, result.unit);
+            }
+        }
+        System.out.println("Results written to " + RESULTS_FILE);
+    }
+
+    private static Result measure(String name, int accounts, int operations, int warmup, int measured, String unit,
+                                  Map<String, Double> baseline, Iteration iteration) {
+        double scale = unit.equals("ms/op") ? 1e6 : 1;
+        double[] scores = new double[measured];
+        long total = 0;
+        for (int i = 0; i < warmup + measured; i++) {
+            long start = System.nanoTime();
+            total += iteration.run();
+            double score = (double) (System.nanoTime() - start) / operations / scale;
+            if (i >= warmup) {
+                scores[i - warmup] = score;
+            }
+        }
+        sink = total;
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score / measured;
+        }
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean) / Math.max(1, measured - 1);
+        }
+        Result result = new Result(name, accounts, mean, Math.sqrt(variance), unit);
+
+        Double before = baseline.get(name + "," + accounts);
+        String change = (before == null) ? "" : String.format("%+.1f%%", (mean - before) / before * 100);
+        System.out.printf("%-10s %,10d %,14.1f +- %,9.1f  %-6s %s%n", name, accounts, mean, result.error, unit, change);
+        return result;
+    }
+
+    // Runs every operation in order and returns a checksum of the outcomes
+    private static long run(WorkloadGenerator.Operations operations, BankAccount[] accounts, int[] ids) {
+        long total = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            BankAccount account = accounts[operations.accounts[i]];
+            long amount = operations.amounts[i];
+            switch (operations.kinds[i]) {
+                case LOOKUP -> total += BankAccount.getBankAccount(ids[operations.accounts[i]]).getAccountId();
+                case DEPOSIT -> total += account.deposit(amount).ordinal();
+                case WITHDRAW -> total += account.withdraw(amount).ordinal();
+                case TRANSFER -> total += account.transfer(ids[operations.targets[i]], amount).ordinal();
+                case HISTORY -> total += account.displayTransactionHistory().length();
+            }
+        }
+        return total;
+    }
+
+    // Reads accounts.bin into a new registry, the way BankAccount loads the accounts on startup
+    private static long load() {
+        AccountRegistry registry = new AccountRegistry();
+        try {
+            return AccountFile.read(Paths.get("accounts.bin"), record -> registry.putIfAbsent(new BankAccount(record)));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read accounts.bin.", e);
+        }
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] parts = sizes.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+            if (parsed[i] < 2 || (i > 0 && parsed[i] <= parsed[i - 1])) {
+                throw new IllegalArgumentException("Sizes must be at least 2 and increasing, the ledger only grows.");
+            }
+        }
+        return parsed;
+    }
+
+    // Scores of an earlier run by "benchmark,accounts", written with Locale.ROOT so any locale reads them
+    private static Map<String, Double> readBaseline(Path path) throws IOException {
+        Map<String, Double> scores = new HashMap<>();
+        List<String> lines = Files.readAllLines(path);
+        for (String line : lines.subList(1, lines.size())) {
+            String[] fields = line.split(",");
+            scores.put(fields[0] + "," + fields[1], Double.parseDouble(fields[2]));
+        }
+        return scores;
+    }
+}
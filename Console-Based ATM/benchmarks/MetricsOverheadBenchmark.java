@@ -0,0 +1,67 @@
+/**
+ * Measures what recording metrics adds to a ledger operation, by timing deposits against the
+ * instrumentation calls on their own. For an end-to-end comparison run it a second time with
+ * -Datm.metrics=false and compare the deposit times.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java MetricsOverheadBenchmark [operations] [threads]
+ */
+public class MetricsOverheadBenchmark {
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000_000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+        BankAccount[] accounts = new BankAccount[threads];
+        for (int i = 0; i < threads; i++) {
+            accounts[i] = new BankAccount("METRICS " + i, "123456", 0);
+        }
+
+        // Warm up both paths before timing
+        for (int round = 0; round < 3; round++) {
+            run(threads, operations / 10, t -> deposits(accounts[t], operations / 10));
+            run(threads, operations / 10, t -> instrumentation(operations / 10));
+        }
+
+        double depositNanos = run(threads, operations, t -> deposits(accounts[t], operations));
+        double instrumentationNanos = run(threads, operations, t -> instrumentation(operations));
+
+        System.out.printf("Metrics %s, %d thread(s)%n", "false".equals(System.getProperty("atm.metrics")) ? "off" : "on", threads);
+        System.out.printf("Deposit:         %.1f ns/op%n", depositNanos);
+        System.out.printf("Instrumentation: %.1f ns/op (%.2f%% of a deposit)%n", instrumentationNanos, 100 * instrumentationNanos / depositNanos);
+    }
+
+    private interface Task {
+        void run(int thread);
+    }
+
+    // Returns the wall time per operation of each thread
+    private static double run(int threads, int operations, Task task) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> task.run(thread));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    private static void deposits(BankAccount account, int operations) {
+        for (int i = 0; i < operations; i++) {
+            account.deposit(1);
+        }
+    }
+
+    private static void instrumentation(int operations) {
+        for (int i = 0; i < operations; i++) {
+            long start = Metrics.start(Metrics.Operation.DEPOSIT);
+            Metrics.record(Metrics.Operation.DEPOSIT, start);
+        }
+        sink = Metrics.getCount(Metrics.Operation.DEPOSIT);
+    }
+}
@@ -0,0 +1,59 @@
+/**
+ * Compares the old double balance path, which formats every amount with String.format as it
+ * is recorded, against fixed-point cents that are only formatted when displayed.
+ *
+ * Run with: java MoneyBenchmark [operations]
+ */
+public class MoneyBenchmark {
+    public static void main(String[] args) {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000_000;
+        long[] amountsMinor = new long[1024];
+        double[] amounts = new double[amountsMinor.length];
+        for (int i = 0; i < amountsMinor.length; i++) {
+            amountsMinor[i] = 100 + i * 37L;
+            amounts[i] = amountsMinor[i] / 100.0;
+        }
+
+        // Warm up both paths before timing
+        for (int round = 0; round < 3; round++) {
+            doublePath(amounts, operations / 10);
+            fixedPointPath(amountsMinor, operations / 10);
+        }
+
+        long start = System.nanoTime();
+        long checksum = doublePath(amounts, operations);
+        double doubleNanos = (double) (System.nanoTime() - start) / operations;
+
+        start = System.nanoTime();
+        checksum += fixedPointPath(amountsMinor, operations);
+        double fixedNanos = (double) (System.nanoTime() - start) / operations;
+
+        System.out.printf("double + String.format: %8.1f ns/op (%,.0f ops/s)%n", doubleNanos, 1e9 / doubleNanos);
+        System.out.printf("fixed-point cents:      %8.1f ns/op (%,.0f ops/s)%n", fixedNanos, 1e9 / fixedNanos);
+        System.out.println("checksum " + checksum);
+    }
+
+    // What a deposit used to cost: double arithmetic plus a formatted history line
+    private static long doublePath(double[] amounts, int operations) {
+        double balance = 0;
+        long checksum = 0;
+        for (int i = 0; i < operations; i++) {
+            double amount = amounts[i & (amounts.length - 1)];
+            balance += amount;
+            checksum += String.format("Deposit: \t\t+%,.2f", amount).length();
+        }
+        return checksum + (long) balance;
+    }
+
+    // What a deposit costs now: checked long arithmetic, the amount is stored as is
+    private static long fixedPointPath(long[] amountsMinor, int operations) {
+        long balanceMinor = 0;
+        long checksum = 0;
+        for (int i = 0; i < operations; i++) {
+            long amountMinor = amountsMinor[i & (amountsMinor.length - 1)];
+            balanceMinor = Money.add(balanceMinor, amountMinor);
+            checksum += amountMinor;
+        }
+        return checksum + balanceMinor;
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+
+/**
+ * Times a PostingEngine interest run over every account, end to end including the journal and
+ * progress syncs, once for each thread count given. The accounts are written straight to
+ * accounts.bin before BankAccount loads, since opening millions of accounts one by one would
+ * take far longer than the runs themselves.
+ *
+ * Run from an empty scratch directory, it creates accounts.bin, the journal and uniqueId.txt:
+ * java -Xmx4g PostingBenchmark [accounts] [threadCounts, e.g. 1,2,4,8]
+ */
+public class PostingBenchmark {
+    public static void main(String[] args) throws Exception {
+        int accountCount = (args.length > 0) ? Integer.parseInt(args[0]) : 10_000_000;
+        String[] threadCounts = ((args.length > 1) ? args[1] : "1,2,4,8").split(",");
+        if (Files.exists(Paths.get("accounts.bin")) || Files.exists(Paths.get("postings.progress"))) {
+            System.out.println("Run from an empty directory, this one already holds accounts.");
+            return;
+        }
+
+        int firstId = ShardMap.getInstance().getFirstId();
+        String pinHash = PinHasher.hash("123456"); // Shared, hashing millions of PINs would dominate the setup
+        ArrayList<AccountRecord> records = new ArrayList<>(accountCount);
+        for (int i = 0; i < accountCount; i++) {
+            TransactionHistory history = new TransactionHistory();
+            history.add(TransactionType.INITIAL_DEPOSIT, 100_000 + i, 1_700_000_000_000L, 0);
+            records.add(new AccountRecord(firstId + i, "ACCOUNT " + i, pinHash, 100_000 + i, history));
+        }
+        AccountFile.write(Paths.get("accounts.bin"), 0, records);
+        Files.writeString(Paths.get("uniqueId.txt"), String.valueOf(firstId + accountCount), StandardCharsets.US_ASCII);
+        records = null;
+
+        long start = System.nanoTime();
+        BankAccount.getBankAccount(firstId); // Loads accounts.bin
+        System.out.printf("Loaded %,d accounts in %.1fs, %d processor(s) available%n",
+                accountCount, (System.nanoTime() - start) / 1e9, Runtime.getRuntime().availableProcessors());
+
+        PostingEngine.run("warm-up", PostingEngine.Kind.INTEREST, 1, 1);
+        for (String threads : threadCounts) {
+            int parallelism = Integer.parseInt(threads.trim());
+            start = System.nanoTime();
+            PostingEngine.Summary summary = PostingEngine.run("interest-" + parallelism + "-threads",
+                    PostingEngine.Kind.INTEREST, 25, parallelism);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%2d thread(s): %,d accounts in %,d chunks in %.2fs, %,.0f accounts/s%n",
+                    parallelism, summary.accountsPosted, summary.chunks, seconds, summary.accountsPosted / seconds);
+        }
+
+        // No checkpoint, with every account in memory twice it needs more heap than the runs do
+        Files.deleteIfExists(Path.of("accounts.bin"));
+    }
+}
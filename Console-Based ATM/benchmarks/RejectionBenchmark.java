@@ -0,0 +1,79 @@
+/**
+ * Measures what a rejected operation costs now that rejections are returned as an
+ * OperationResult, against the old way of throwing an exception and catching it at the caller.
+ * The workload is mostly rejections: withdrawals over the balance, transfers to the account
+ * itself and transfers to an account that doesn't exist, with the odd deposit in between.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java RejectionBenchmark [operations]
+ */
+public class RejectionBenchmark {
+    private static final int UNKNOWN_ID = Integer.MAX_VALUE;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 5_000_000;
+        BankAccount account = new BankAccount("REJECTIONS", "123456", 0);
+
+        // Warm up both paths before timing
+        for (int round = 0; round < 3; round++) {
+            results(account, operations / 10);
+            exceptions(account, operations / 10);
+        }
+
+        double resultNanos = time(() -> results(account, operations), operations);
+        double exceptionNanos = time(() -> exceptions(account, operations), operations);
+
+        System.out.printf("Result codes: %.1f ns/op%n", resultNanos);
+        System.out.printf("Exceptions:   %.1f ns/op (%.1fx)%n", exceptionNanos, exceptionNanos / resultNanos);
+    }
+
+    private static double time(Runnable task, int operations) {
+        long start = System.nanoTime();
+        task.run();
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    private static void results(BankAccount account, int operations) {
+        long rejected = 0;
+        for (int i = 0; i < operations; i++) {
+            if (!operation(account, i).isOk()) {
+                rejected++;
+            }
+        }
+        sink = rejected;
+    }
+
+    private static void exceptions(BankAccount account, int operations) {
+        long rejected = 0;
+        for (int i = 0; i < operations; i++) {
+            try {
+                throwIfRejected(operation(account, i));
+            } catch (IllegalArgumentException | IllegalStateException | NullPointerException e) {
+                rejected++;
+            }
+        }
+        sink = rejected;
+    }
+
+    // Three rejections for every deposit, so the balance stays far below every withdrawal
+    private static OperationResult operation(BankAccount account, int i) {
+        return switch (i & 3) {
+            case 0 -> account.withdraw(1_000_000_000L);
+            case 1 -> account.transfer(account.getAccountId(), 1);
+            case 2 -> account.transfer(UNKNOWN_ID, 1);
+            default -> (i & 1023) == 3 ? account.deposit(1) : account.withdraw(-1);
+        };
+    }
+
+    // What every operation used to do on a rejection
+    private static void throwIfRejected(OperationResult result) {
+        switch (result) {
+            case OK -> { }
+            case UNKNOWN_RECIPIENT -> throw new NullPointerException(result.getMessage());
+            case NEGATIVE_AMOUNT, BALANCE_OVERFLOW -> throw new IllegalArgumentException(result.getMessage());
+            default -> throw new IllegalStateException(result.getMessage());
+        }
+    }
+}
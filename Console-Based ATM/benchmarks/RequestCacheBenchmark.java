@@ -0,0 +1,68 @@
+/**
+ * Measures what request IDs add to a deposit: deposits without one, deposits with a new ID
+ * each (a lookup and a record in the RequestCache), and retries of IDs already seen, which
+ * are answered from the cache without touching the journal. Each thread uses its own account.
+ *
+ * Run from a scratch directory, it creates its own accounts.bin, journal and uniqueId.txt:
+ * java -Datm.requests.capacity=4000000 RequestCacheBenchmark [operations] [threads]
+ */
+public class RequestCacheBenchmark {
+    public static void main(String[] args) throws InterruptedException {
+        int operations = (args.length > 0) ? Integer.parseInt(args[0]) : 1_000_000;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+
+        BankAccount[] accounts = new BankAccount[threads];
+        for (int i = 0; i < threads; i++) {
+            accounts[i] = new BankAccount("REQUESTS " + i, "123456", 0);
+        }
+
+        // Warm up every path before timing, with IDs far from the timed ones
+        for (int round = 0; round < 3; round++) {
+            long firstId = (round + 1) * 1_000_000_000L;
+            run(threads, operations / 10, t -> withoutIds(accounts[t], operations / 10));
+            run(threads, operations / 10, t -> withIds(accounts[t], firstId, operations / 10));
+            run(threads, operations / 10, t -> withIds(accounts[t], firstId, operations / 10));
+        }
+
+        double withoutNanos = run(threads, operations, t -> withoutIds(accounts[t], operations));
+        double newNanos = run(threads, operations, t -> withIds(accounts[t], 1, operations));
+        double retryNanos = run(threads, operations, t -> withIds(accounts[t], 1, operations));
+
+        System.out.printf("%d thread(s)%n", threads);
+        System.out.printf("Without request IDs: %.1f ns/op%n", withoutNanos);
+        System.out.printf("New request IDs:     %.1f ns/op%n", newNanos);
+        System.out.printf("Retried request IDs: %.1f ns/op, %,d answered from the cache%n", retryNanos,
+                Metrics.getDuplicateRequests());
+    }
+
+    private interface Task {
+        void run(int thread);
+    }
+
+    // Returns the wall time per operation of each thread
+    private static double run(int threads, int operations, Task task) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> task.run(thread));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) (System.nanoTime() - start) / operations;
+    }
+
+    private static void withoutIds(BankAccount account, int operations) {
+        for (int i = 0; i < operations; i++) {
+            account.deposit(1);
+        }
+    }
+
+    private static void withIds(BankAccount account, long firstId, int operations) {
+        for (int i = 0; i < operations; i++) {
+            account.deposit(firstId + i, 1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Measures a month's statement answered from an account's DailyTotals against summing the
+ * same month by scanning the raw TransactionHistory, as a statement had to before the totals
+ * existed. The history is full, a few entries a day over the days the totals hold.
+ *
+ * Needs no files: java StatementBenchmark [historyCapacity] [statements]
+ */
+public class StatementBenchmark {
+    private static final long START = 1_700_000_000_000L;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        int capacity = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        int statements = (args.length > 1) ? Integer.parseInt(args[1]) : 200_000;
+
+        TransactionHistory history = new TransactionHistory(capacity);
+        long spacing = DailyTotals.MILLIS_PER_DAY * Math.min(capacity, DailyTotals.DEFAULT_CAPACITY) / capacity;
+        for (int i = 0; i < capacity; i++) {
+            TransactionType type = (i % 3 == 0) ? TransactionType.WITHDRAWAL : TransactionType.DEPOSIT;
+            history.add(type, 1_000 + i, START + i * spacing, 0);
+        }
+        long lastDay = DailyTotals.dayOf(START + (capacity - 1) * spacing);
+        long fromDay = lastDay - 29;
+
+        // Both must agree before either is timed
+        if (fromTotals(history, fromDay, lastDay) != fromHistory(history, fromDay, lastDay)) {
+            throw new IllegalStateException("The totals and the history disagree.");
+        }
+        for (int round = 0; round < 3; round++) {
+            time(() -> fromTotals(history, fromDay, lastDay), statements / 10);
+            time(() -> fromHistory(history, fromDay, lastDay), statements / 10);
+        }
+
+        double totalsNanos = time(() -> fromTotals(history, fromDay, lastDay), statements);
+        double historyNanos = time(() -> fromHistory(history, fromDay, lastDay), statements);
+        System.out.printf("%,d entries, 30 day statement%n", capacity);
+        System.out.printf("Daily totals: %,.0f ns/statement%n", totalsNanos);
+        System.out.printf("History scan: %,.0f ns/statement (%.1fx)%n", historyNanos, historyNanos / totalsNanos);
+    }
+
+    private interface Statement {
+        long net();
+    }
+
+    private static double time(Statement statement, int statements) {
+        long start = System.nanoTime();
+        long net = 0;
+        for (int i = 0; i < statements; i++) {
+            net += statement.net();
+        }
+        sink = net;
+        return (double) (System.nanoTime() - start) / statements;
+    }
+
+    private static long fromTotals(TransactionHistory history, long fromDay, long toDay) {
+        DailyTotals totals = history.getTotals();
+        return totals.getTotal(TransactionType.DEPOSIT, fromDay, toDay) - totals.getTotal(TransactionType.WITHDRAWAL, fromDay, toDay);
+    }
+
+    private static long fromHistory(TransactionHistory history, long fromDay, long toDay) {
+        long[] net = new long[1];
+        history.forEachBetween(fromDay * DailyTotals.MILLIS_PER_DAY, (toDay + 1) * DailyTotals.MILLIS_PER_DAY,
+                (type, amountMinor, timestamp, counterpartyId) -> {
+                    net[0] += type.isCredit() ? amountMinor : -amountMinor;
+                });
+        return net[0];
+    }
+}
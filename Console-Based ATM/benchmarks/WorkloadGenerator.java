@@ -0,0 +1,170 @@
+import java.util.SplittableRandom;
+
+/**
+ * Generates synthetic ledger workloads for the benchmarks: which accounts operations go to,
+ * the amounts, and mixes of operation kinds. Everything comes from one seeded generator, so
+ * the same seed and settings give the same workload on every run and every machine, and
+ * results from before and after a change are measured against the same operations.
+ *
+ * Real traffic is skewed, a few accounts (payroll, merchants) see most of the operations, so
+ * a share of the operations, hotShare, goes to a small set of hot accounts, hotFraction of
+ * them, chosen at random once. The rest go to any account uniformly. A hotShare of 0 gives a
+ * uniform workload.
+ *
+ * Accounts are given as indexes from 0 to accounts - 1, in the order the benchmark created
+ * them, and operations are generated up front into arrays, so a benchmark's timed loop only
+ * reads them.
+ */
+public class WorkloadGenerator {
+    public enum Operation {
+        LOOKUP, DEPOSIT, WITHDRAW, TRANSFER, HISTORY
+    }
+
+    /**
+     * A run of operations, the i-th being kinds[i] on accounts[i], with amounts[i] and, for a
+     * transfer, the recipient targets[i].
+     */
+    public static class Operations {
+        public final Operation[] kinds;
+        public final int[] accounts;
+        public final int[] targets;
+        public final long[] amounts;
+
+        Operations(int count) {
+            kinds = new Operation[count];
+            accounts = new int[count];
+            targets = new int[count];
+            amounts = new long[count];
+        }
+
+        public int size() {
+            return kinds.length;
+        }
+    }
+
+    private final SplittableRandom random;
+    private final int accounts;
+    private final int[] hotAccounts;
+    private final double hotShare;
+
+    /**
+     * @param hotFraction The fraction of the accounts that are hot, from 0 to 1.
+     * @param hotShare    The fraction of the operations that go to the hot accounts, from 0 to 1.
+     */
+    public WorkloadGenerator(long seed, int accounts, double hotFraction, double hotShare) {
+        if (accounts <= 0) {
+            throw new IllegalArgumentException("There must be at least one account.");
+        }
+        if (hotFraction < 0 || hotFraction > 1 || hotShare < 0 || hotShare > 1) {
+            throw new IllegalArgumentException("The hot fraction and share must be from 0 to 1.");
+        }
+        this.random = new SplittableRandom(seed);
+        this.accounts = accounts;
+        this.hotShare = hotShare;
+        this.hotAccounts = new int[Math.max(1, (int) (accounts * hotFraction))];
+        for (int i = 0; i < hotAccounts.length; i++) {
+            hotAccounts[i] = random.nextInt(accounts);
+        }
+    }
+
+    /**
+     * @return The index of the account the next operation goes to.
+     */
+    public int nextAccount() {
+        if (hotShare > 0 && random.nextDouble() < hotShare) {
+            return hotAccounts[random.nextInt(hotAccounts.length)];
+        }
+        return random.nextInt(accounts);
+    }
+
+    /**
+     * @return An account other than the given one, from the same skewed distribution.
+     */
+    public int nextAccountOtherThan(int account) {
+        if (accounts == 1) {
+            throw new IllegalStateException("A transfer needs a second account.");
+        }
+        int other;
+        do {
+            other = nextAccount();
+        } while (other == account);
+        return other;
+    }
+
+    /**
+     * @return An amount in cents from 0.01 to 500.00, mostly small, as ATM amounts are.
+     */
+    public long nextAmount() {
+        // Uniform in the logarithm, so each power of ten between a cent and 500.00 is as likely
+        return Math.max(1, (long) Math.exp(random.nextDouble() * Math.log(50_000)));
+    }
+
+    /**
+     * @return An opening balance in cents, large enough that withdrawals and transfers of
+     *         nextAmount() rarely run it dry during a benchmark.
+     */
+    public long nextOpeningBalance() {
+        return 10_000_000 + random.nextLong(90_000_000);
+    }
+
+    /**
+     * @return count operations, all of the given kind.
+     */
+    public Operations operations(int count, Operation kind) {
+        int[] weights = new int[Operation.values().length];
+        weights[kind.ordinal()] = 1;
+        return operations(count, weights);
+    }
+
+    /**
+     * @param weights The relative weight of each kind of operation, by Operation ordinal.
+     * @return count operations, each of a kind drawn by the weights.
+     */
+    public Operations operations(int count, int[] weights) {
+        if (weights.length != Operation.values().length) {
+            throw new IllegalArgumentException("There must be a weight for every kind of operation.");
+        }
+        int totalWeight = 0;
+        for (int weight : weights) {
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weights can't be negative.");
+            }
+            totalWeight += weight;
+        }
+        if (totalWeight == 0) {
+            throw new IllegalArgumentException("At least one weight must be positive.");
+        }
+
+        Operations operations = new Operations(count);
+        Operation[] kinds = Operation.values();
+        for (int i = 0; i < count; i++) {
+            int pick = random.nextInt(totalWeight);
+            int kind = 0;
+            while (pick >= weights[kind]) {
+                pick -= weights[kind++];
+            }
+            operations.kinds[i] = kinds[kind];
+            operations.accounts[i] = nextAccount();
+            if (kinds[kind] == Operation.TRANSFER) {
+                operations.targets[i] = nextAccountOtherThan(operations.accounts[i]);
+            }
+            operations.amounts[i] = nextAmount();
+        }
+        return operations;
+    }
+
+    /**
+     * Parses weights written as a comma separated list, such as 40,20,20,10,10, in Operation order.
+     */
+    public static int[] parseWeights(String weights) {
+        String[] parts = weights.split(",");
+        if (parts.length != Operation.values().length) {
+            throw new IllegalArgumentException("Expected " + Operation.values().length + " weights, got " + weights);
+        }
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+}
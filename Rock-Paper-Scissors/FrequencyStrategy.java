@@ -0,0 +1,18 @@
+import java.util.SplittableRandom;
+
+/**
+ * Counts how often the opponent has played each move and plays what beats their favourite.
+ */
+public class FrequencyStrategy implements Strategy {
+    private final int[] counts = new int[3];
+
+    @Override
+    public int nextMove(SplittableRandom random) {
+        return RockPaperScissors.beating(Strategy.mostFrequent(counts, 0, random));
+    }
+
+    @Override
+    public void observe(int ownMove, int opponentMove) {
+        counts[opponentMove]++;
+    }
+}
@@ -0,0 +1,26 @@
+import java.util.SplittableRandom;
+
+/**
+ * Treats the opponent's moves as a Markov chain: counts which move they played after each of
+ * their moves, predicts the most frequent follower of their last move and plays what beats it.
+ */
+public class MarkovStrategy implements Strategy {
+    private final int[] transitions = new int[9]; // [previous * 3 + next]
+    private int lastOpponentMove = -1;
+
+    @Override
+    public int nextMove(SplittableRandom random) {
+        if (lastOpponentMove < 0) {
+            return random.nextInt(3);
+        }
+        return RockPaperScissors.beating(Strategy.mostFrequent(transitions, lastOpponentMove * 3, random));
+    }
+
+    @Override
+    public void observe(int ownMove, int opponentMove) {
+        if (lastOpponentMove >= 0) {
+            transitions[lastOpponentMove * 3 + opponentMove]++;
+        }
+        lastOpponentMove = opponentMove;
+    }
+}
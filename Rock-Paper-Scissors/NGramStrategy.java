@@ -0,0 +1,126 @@
+import java.util.SplittableRandom;
+
+/**
+ * Predicts the opponent's next move from n-grams of the rounds before it and plays what beats
+ * it; the computer in RockPaperScissors. A context is the last n rounds, both players' moves,
+ * so it picks up habits like repeating a move that won or switching after a loss as well as
+ * plain sequences, and there is a model for every n from 0 (just how often each move is
+ * played) to maxOrder.
+ *
+ * Every model keeps, for each of its contexts, a count of the moves that followed it. The
+ * counts of a context are multiplied by the decay before each new one is added, so old habits
+ * fade and a player who changes style is caught up with in a few rounds. Each model's
+ * predictions are scored the same way, by how its counter-move would have done, and the move
+ * is taken from the model scoring best lately. If none scores above 0, the player is beating
+ * or matching every model, and the move is random, so it can't be exploited.
+ *
+ * The counts are one array per model sized for all its contexts up front, 3^(2n + 1) doubles,
+ * so memory and the work per round, a few dozen arithmetic operations per model, stay the same
+ * however long the game goes on.
+ */
+public class NGramStrategy implements Strategy {
+    public static final int DEFAULT_MAX_ORDER = 3;
+    public static final double DEFAULT_DECAY = 0.9;
+    private static final double SCORE_DECAY = 0.8;
+
+    private final int maxOrder;
+    private final double decay;
+    private final double[][] counts;    // counts[n][context * 3 + move], context being the last n rounds in base 9
+    private final int[] contexts;       // Each model's current context
+    private final int[] predictions;    // Each model's prediction of the opponent's next move
+    private final double[] scores;
+    private int recent;                 // The last maxOrder rounds in base 9, the latest lowest
+    private int rounds;
+
+    public NGramStrategy() {
+        this(DEFAULT_MAX_ORDER, DEFAULT_DECAY);
+    }
+
+    /**
+     * @param maxOrder The longest context, in rounds; from 0 to 6, the counts of an order of 6 take 12 MB.
+     * @param decay    What counts are multiplied by each time their context comes up, from 0 to 1.
+     */
+    public NGramStrategy(int maxOrder, double decay) {
+        if (maxOrder < 0 || maxOrder > 6) {
+            throw new IllegalArgumentException("The order must be from 0 to 6.");
+        }
+        if (!(decay > 0 && decay <= 1)) {
+            throw new IllegalArgumentException("The decay must be above 0 and at most 1.");
+        }
+        this.maxOrder = maxOrder;
+        this.decay = decay;
+        counts = new double[maxOrder + 1][];
+        for (int n = 0; n <= maxOrder; n++) {
+            counts[n] = new double[power(9, n) * 3];
+        }
+        contexts = new int[maxOrder + 1];
+        predictions = new int[maxOrder + 1];
+        scores = new double[maxOrder + 1];
+    }
+
+    @Override
+    public int nextMove(SplittableRandom random) {
+        int best = -1;
+        double bestScore = 0;
+        for (int n = 0; n <= maxOrder; n++) {
+            // Models whose context is longer than the game so far have nothing to say yet
+            if (n <= rounds && scores[n] > bestScore) {
+                best = n;
+                bestScore = scores[n];
+            }
+        }
+        if (best < 0) {
+            return random.nextInt(3);
+        }
+        return RockPaperScissors.beating(predictions[best]);
+    }
+
+    @Override
+    public void observe(int ownMove, int opponentMove) {
+        int modulus = 1;
+        for (int n = 0; n <= maxOrder; n++) {
+            if (n <= rounds) {
+                // Score what this model predicted for the round just played, as if its counter-move had been played
+                int outcome = RockPaperScissors.outcome(RockPaperScissors.beating(predictions[n]), opponentMove);
+                scores[n] = scores[n] * SCORE_DECAY
+                        + ((outcome == RockPaperScissors.WIN) ? 1 : (outcome == RockPaperScissors.LOSS) ? -1 : 0);
+
+                double[] modelCounts = counts[n];
+                int row = contexts[n] * 3;
+                modelCounts[row] *= decay;
+                modelCounts[row + 1] *= decay;
+                modelCounts[row + 2] *= decay;
+                modelCounts[row + opponentMove] += 1;
+            }
+            modulus *= 9;
+        }
+
+        recent = (recent * 9 + opponentMove * 3 + ownMove) % (modulus / 9);
+        rounds++;
+        modulus = 1;
+        for (int n = 0; n <= maxOrder; n++) {
+            contexts[n] = recent % modulus;
+            predictions[n] = mostLikely(counts[n], contexts[n] * 3);
+            modulus *= 9;
+        }
+    }
+
+    // Ties go to the lowest move; a context never seen predicts rock, and scores tell if that is any good
+    private static int mostLikely(double[] counts, int from) {
+        int best = 0;
+        for (int i = 1; i < 3; i++) {
+            if (counts[from + i] > counts[from + best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static int power(int base, int exponent) {
+        int result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
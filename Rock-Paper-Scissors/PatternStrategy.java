@@ -0,0 +1,48 @@
+import java.util.SplittableRandom;
+
+/**
+ * Looks for the longest run of the opponent's latest moves, up to MAX_LENGTH, that they have
+ * played before, assumes they will go on the way they did last time and plays what beats that.
+ *
+ * Rather than searching the history, it remembers for every run of each length what the
+ * opponent played right after it last time, indexed by the run read as a number in base 3. A
+ * prediction is then one lookup per length, and the tables stay the same size however long
+ * the match goes on.
+ */
+public class PatternStrategy implements Strategy {
+    private static final int MAX_LENGTH = 6;
+    private static final int[] POWERS = {1, 3, 9, 27, 81, 243, 729};
+
+    // followers[length][run]: the opponent's move after the run last time, plus one; 0 if never seen
+    private final byte[][] followers = new byte[MAX_LENGTH + 1][];
+    private int recent;   // The opponent's last MAX_LENGTH moves in base 3, the latest lowest
+    private int seen;     // How many of them there are, up to MAX_LENGTH
+
+    public PatternStrategy() {
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            followers[length] = new byte[POWERS[length]];
+        }
+    }
+
+    @Override
+    public int nextMove(SplittableRandom random) {
+        for (int length = seen; length > 0; length--) {
+            int follower = followers[length][recent % POWERS[length]];
+            if (follower != 0) {
+                return RockPaperScissors.beating(follower - 1);
+            }
+        }
+        return random.nextInt(3);
+    }
+
+    @Override
+    public void observe(int ownMove, int opponentMove) {
+        for (int length = 1; length <= seen; length++) {
+            followers[length][recent % POWERS[length]] = (byte) (opponentMove + 1);
+        }
+        recent = (recent * 3 + opponentMove) % POWERS[MAX_LENGTH];
+        if (seen < MAX_LENGTH) {
+            seen++;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.SplittableRandom;
+
+/**
+ * Plays uniformly at random, like the computer in RockPaperScissors. Nothing can beat it or
+ * lose to it in the long run, which makes it the baseline the other strategies are measured by.
+ */
+public class RandomStrategy implements Strategy {
+    @Override
+    public int nextMove(SplittableRandom random) {
+        return random.nextInt(3);
+    }
+
+    @Override
+    public void observe(int ownMove, int opponentMove) {
+    }
+}
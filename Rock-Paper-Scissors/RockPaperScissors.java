@@ -1,9 +1,15 @@
 import java.util.Scanner;
-import java.util.Random;
+import java.util.SplittableRandom;
 
 public class RockPaperScissors {
+    // Moves are 0 for rock, 1 for paper and 2 for scissors; outcomes are from the first player's side
+    public static final int DRAW = 0;
+    public static final int WIN = 1;
+    public static final int LOSS = 2;
+
     static Scanner scanner = new Scanner(System.in);
-    static Random random = new Random();
+    static SplittableRandom random = new SplittableRandom();
+    static Strategy computer = new NGramStrategy(); // Learns the player's habits as the game goes on
     public static void main(String[] args) {
         System.out.println("Enter 0 to exit the program.");
         while (true) {
@@ -12,23 +18,41 @@ public class RockPaperScissors {
             if (choice == -1) {
                 break;
             }
-            int opponentChoice = random.nextInt(3);
+            if (choice < 0 || choice > 2) {
+                System.out.println("Please choose 1, 2 or 3.");
+                continue;
+            }
+            int opponentChoice = computer.nextMove(random);
+            computer.observe(opponentChoice, choice);
 
             display("Player", choice);
             System.out.println();
             display("Computer", opponentChoice);
 
-            if (choice == (opponentChoice + 1) % 3) {
-                System.out.println("You won! Congratulations.");
-            } else if (choice == (opponentChoice - 1 + 3) % 3) {
-                System.out.println("You lost. Better luck next time!");
-            } else {
-                System.out.println("Draw!");
+            switch (outcome(choice, opponentChoice)) {
+                case WIN -> System.out.println("You won! Congratulations.");
+                case LOSS -> System.out.println("You lost. Better luck next time!");
+                default -> System.out.println("Draw!");
             }
             System.out.println();
         }
     }
 
+    /**
+     * @return WIN if move beats opponentMove, LOSS if it loses to it, DRAW if they are the same.
+     *         Each move beats the one before it, wrapping around, so this is their difference mod 3.
+     */
+    public static int outcome(int move, int opponentMove) {
+        return (move - opponentMove + 3) % 3;
+    }
+
+    /**
+     * @return The move that beats the given one.
+     */
+    public static int beating(int move) {
+        return (move + 1) % 3;
+    }
+
     public static void display(String player, int move) {
         System.out.print(player + " chose ");
         switch (move) {
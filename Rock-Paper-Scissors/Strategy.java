@@ -0,0 +1,41 @@
+import java.util.SplittableRandom;
+
+/**
+ * A bot that plays Rock-Paper-Scissors, with moves numbered as in RockPaperScissors. A strategy
+ * plays one match at a time and keeps what it has learned about its opponent for the rest of
+ * it, so a tournament makes a new one for every match.
+ *
+ * Tournaments play billions of rounds, so neither method may allocate: state lives in
+ * primitive fields and arrays made up front, and randomness comes from the generator passed
+ * in, which belongs to the thread playing the match.
+ */
+public interface Strategy {
+    /**
+     * @return The move for the next round, 0 for rock, 1 for paper or 2 for scissors.
+     */
+    int nextMove(SplittableRandom random);
+
+    /**
+     * Called after every round with both moves played in it.
+     */
+    void observe(int ownMove, int opponentMove);
+
+    /**
+     * @return The index, from 0, of the largest of the three counts starting at from, with
+     *         ties broken at random so a strategy that has seen nothing yet plays at random.
+     */
+    static int mostFrequent(int[] counts, int from, SplittableRandom random) {
+        int best = 0;
+        int ties = 1;
+        for (int i = 1; i < 3; i++) {
+            int count = counts[from + i];
+            if (count > counts[from + best]) {
+                best = i;
+                ties = 1;
+            } else if (count == counts[from + best] && random.nextInt(++ties) == 0) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
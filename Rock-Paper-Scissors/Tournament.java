@@ -0,0 +1,152 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Plays Rock-Paper-Scissors strategies against each other without the console, for as many
+ * rounds as asked, and reports how fast the rounds went and how often each strategy won.
+ *
+ * Every pair of strategies plays its share of the rounds as matches of MATCH_ROUNDS rounds,
+ * each between new instances. A pair's matches are split into tasks that run in parallel on a
+ * ForkJoinPool, one per core by default, and each task has its own SplittableRandom, split from
+ * one seeded generator, so a tournament is the same every time it is run with the same seed and
+ * the rounds themselves allocate nothing and share nothing between threads.
+ *
+ * Run with: java Tournament [rounds] [threads] [seed]
+ */
+public class Tournament {
+    // Also keeps every count a strategy makes within a match far from overflowing
+    public static final int MATCH_ROUNDS = 1 << 20;
+    private static final int TASKS_PER_THREAD = 4;
+
+    // The strategies that take part, by name, in the order they are reported
+    public static final Map<String, Supplier<Strategy>> STRATEGIES = new LinkedHashMap<>();
+
+    static {
+        STRATEGIES.put("random", RandomStrategy::new);
+        STRATEGIES.put("frequency", FrequencyStrategy::new);
+        STRATEGIES.put("markov", MarkovStrategy::new);
+        STRATEGIES.put("pattern", PatternStrategy::new);
+        STRATEGIES.put("ngram", NGramStrategy::new);
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        long rounds = (args.length > 0) ? Long.parseLong(args[0]) : 1_000_000_000L;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        long seed = (args.length > 2) ? Long.parseLong(args[2]) : 20;
+
+        List<String> names = new ArrayList<>(STRATEGIES.keySet());
+        int count = names.size();
+        long[][] results = new long[count * count][]; // [first * count + second], for first < second
+
+        long start = System.nanoTime();
+        run(names, rounds, threads, new SplittableRandom(seed), results);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long played = 0;
+        for (long[] result : results) {
+            if (result != null) {
+                played += result[RockPaperScissors.DRAW] + result[RockPaperScissors.WIN] + result[RockPaperScissors.LOSS];
+            }
+        }
+        System.out.printf("%,d rounds on %d threads in %.1f s: %,.0f rounds/s%n", played, threads, seconds, played / seconds);
+
+        System.out.println();
+        for (int first = 0; first < count; first++) {
+            for (int second = first + 1; second < count; second++) {
+                long[] result = results[first * count + second];
+                double total = result[RockPaperScissors.DRAW] + result[RockPaperScissors.WIN] + result[RockPaperScissors.LOSS];
+                System.out.printf("%-10s vs %-10s %5.1f%% wins, %5.1f%% losses, %5.1f%% draws%n", names.get(first),
+                        names.get(second), 100 * result[RockPaperScissors.WIN] / total,
+                        100 * result[RockPaperScissors.LOSS] / total, 100 * result[RockPaperScissors.DRAW] / total);
+            }
+        }
+
+        System.out.println();
+        for (int strategy = 0; strategy < count; strategy++) {
+            long wins = 0;
+            long total = 0;
+            for (int other = 0; other < count; other++) {
+                if (other != strategy) {
+                    long[] result = results[Math.min(strategy, other) * count + Math.max(strategy, other)];
+                    wins += result[(strategy < other) ? RockPaperScissors.WIN : RockPaperScissors.LOSS];
+                    total += result[RockPaperScissors.DRAW] + result[RockPaperScissors.WIN] + result[RockPaperScissors.LOSS];
+                }
+            }
+            System.out.printf("%-10s won %5.1f%% of its rounds%n", names.get(strategy), 100.0 * wins / total);
+        }
+    }
+
+    /**
+     * Plays the rounds, shared out evenly between every pair of the named strategies, and
+     * fills in results[first * names.size() + second] for each pair, first < second, with the
+     * outcome counts from first's side, indexed by RockPaperScissors.WIN, LOSS and DRAW.
+     */
+    public static void run(List<String> names, long rounds, int threads, SplittableRandom random, long[][] results)
+            throws InterruptedException, ExecutionException {
+        int count = names.size();
+        int pairs = count * (count - 1) / 2;
+        long roundsPerPair = rounds / pairs;
+        int tasksPerPair = (int) Math.max(1, Math.min(threads * TASKS_PER_THREAD,
+                (roundsPerPair + MATCH_ROUNDS - 1) / MATCH_ROUNDS));
+
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (int first = 0; first < count; first++) {
+                for (int second = first + 1; second < count; second++) {
+                    Supplier<Strategy> firstStrategy = STRATEGIES.get(names.get(first));
+                    Supplier<Strategy> secondStrategy = STRATEGIES.get(names.get(second));
+                    for (int task = 0; task < tasksPerPair; task++) {
+                        long taskRounds = roundsPerPair / tasksPerPair + ((task < roundsPerPair % tasksPerPair) ? 1 : 0);
+                        SplittableRandom taskRandom = random.split();
+                        Callable<long[]> matches = () -> {
+                            long[] result = new long[3];
+                            for (long left = taskRounds; left > 0; left -= MATCH_ROUNDS) {
+                                play(firstStrategy.get(), secondStrategy.get(), Math.min(left, MATCH_ROUNDS), taskRandom, result);
+                            }
+                            return result;
+                        };
+                        futures.add(pool.submit(matches));
+                    }
+                }
+            }
+
+            int index = 0;
+            for (int first = 0; first < count; first++) {
+                for (int second = first + 1; second < count; second++) {
+                    long[] total = new long[3];
+                    for (int task = 0; task < tasksPerPair; task++) {
+                        long[] result = futures.get(index++).get();
+                        for (int i = 0; i < 3; i++) {
+                            total[i] += result[i];
+                        }
+                    }
+                    results[first * count + second] = total;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Plays one match and adds its outcomes, from first's side, to result.
+     */
+    public static void play(Strategy first, Strategy second, long rounds, SplittableRandom random, long[] result) {
+        for (long round = 0; round < rounds; round++) {
+            int firstMove = first.nextMove(random);
+            int secondMove = second.nextMove(random);
+            first.observe(firstMove, secondMove);
+            second.observe(secondMove, firstMove);
+            result[RockPaperScissors.outcome(firstMove, secondMove)]++;
+        }
+    }
+}
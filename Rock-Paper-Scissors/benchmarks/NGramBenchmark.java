@@ -0,0 +1,114 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Plays NGramStrategy, the computer in RockPaperScissors, against scripted players with the
+ * kinds of habits people have, and reports how often it wins against each, then how long it
+ * takes to pick a move and learn from the round, one round at a time.
+ *
+ * Run with: java NGramBenchmark [rounds] [maxOrder] [decay]
+ */
+public class NGramBenchmark {
+    private static final int MATCHES = 20;
+    private static final int STYLE_ROUNDS = 1_000;
+
+    private static volatile long sink;
+
+    private interface Script {
+        Strategy player(SplittableRandom random);
+    }
+
+    public static void main(String[] args) {
+        int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 100_000;
+        int maxOrder = (args.length > 1) ? Integer.parseInt(args[1]) : NGramStrategy.DEFAULT_MAX_ORDER;
+        double decay = (args.length > 2) ? Double.parseDouble(args[2]) : NGramStrategy.DEFAULT_DECAY;
+
+        String[] names = {"Always rock", "Cycle", "Favours rock", "Win-stay, lose-shift", "Beats last",
+                "Copies last", "Sequence of 7", "Switches style", "Random"};
+        Script[] scripts = {
+                random -> new Scripted((own, opponent, round) -> 0),
+                random -> new Scripted((own, opponent, round) -> round % 3),
+                random -> new Scripted((own, opponent, round) -> random.nextBoolean() ? 0 : random.nextInt(3)),
+                random -> new Scripted((own, opponent, round) -> (round == 0) ? random.nextInt(3)
+                        : (RockPaperScissors.outcome(own, opponent) == RockPaperScissors.WIN) ? own
+                        : RockPaperScissors.beating(opponent)),
+                random -> new Scripted((own, opponent, round) -> (round == 0) ? 0 : RockPaperScissors.beating(opponent)),
+                random -> new Scripted((own, opponent, round) -> (round == 0) ? 0 : opponent),
+                random -> {
+                    int[] sequence = random.ints(7, 0, 3).toArray();
+                    return new Scripted((own, opponent, round) -> sequence[round % sequence.length]);
+                },
+                random -> new Scripted((own, opponent, round) -> (round / STYLE_ROUNDS % 2 == 0) ? round % 3
+                        : (round == 0) ? 0 : RockPaperScissors.beating(opponent)),
+                random -> new RandomStrategy(),
+        };
+
+        System.out.printf("NGramStrategy, order %d, decay %.2f, %d matches of %,d rounds%n", maxOrder, decay, MATCHES, rounds);
+        SplittableRandom random = new SplittableRandom(21);
+        for (int s = 0; s < scripts.length; s++) {
+            long[] result = new long[3];
+            for (int match = 0; match < MATCHES; match++) {
+                Tournament.play(new NGramStrategy(maxOrder, decay), scripts[s].player(random), rounds, random, result);
+            }
+            double total = (double) MATCHES * rounds;
+            System.out.printf("%-22s %5.1f%% wins, %5.1f%% losses, %5.1f%% draws%n", names[s] + ":",
+                    100 * result[RockPaperScissors.WIN] / total, 100 * result[RockPaperScissors.LOSS] / total,
+                    100 * result[RockPaperScissors.DRAW] / total);
+        }
+
+        for (int round = 0; round < 3; round++) {
+            latency(maxOrder, decay, rounds, random);
+        }
+        long[] nanos = latency(maxOrder, decay, rounds, random);
+        Arrays.sort(nanos);
+        System.out.printf("Per round, nextMove() and observe(): p50 %,d ns, p99 %,d ns, p99.9 %,d ns, max %,d ns%n",
+                nanos[nanos.length / 2], nanos[(int) (nanos.length * 0.99)], nanos[(int) (nanos.length * 0.999)],
+                nanos[nanos.length - 1]);
+    }
+
+    // Times every round against a random player, as the model's cost doesn't depend on the moves
+    private static long[] latency(int maxOrder, double decay, int rounds, SplittableRandom random) {
+        NGramStrategy computer = new NGramStrategy(maxOrder, decay);
+        long[] nanos = new long[rounds];
+        long total = 0;
+        for (int round = 0; round < rounds; round++) {
+            int player = random.nextInt(3);
+            long start = System.nanoTime();
+            int move = computer.nextMove(random);
+            computer.observe(move, player);
+            nanos[round] = System.nanoTime() - start;
+            total += move;
+        }
+        sink = total;
+        return nanos;
+    }
+
+    private interface Rule {
+        // Both moves of the last round, from the player's side, and the number of the next round from 0
+        int move(int own, int opponent, int round);
+    }
+
+    // A player that follows a rule, whatever the computer does
+    private static class Scripted implements Strategy {
+        private final Rule rule;
+        private int own;
+        private int opponent;
+        private int round;
+
+        Scripted(Rule rule) {
+            this.rule = rule;
+        }
+
+        @Override
+        public int nextMove(SplittableRandom random) {
+            return rule.move(own, opponent, round);
+        }
+
+        @Override
+        public void observe(int ownMove, int opponentMove) {
+            own = ownMove;
+            opponent = opponentMove;
+            round++;
+        }
+    }
+}